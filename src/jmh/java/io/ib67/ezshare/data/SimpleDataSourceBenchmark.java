@@ -0,0 +1,118 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.data;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.metrics.Metrics;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mapping rows and the insert and lookup statements of {@link SimpleDataSource} against an in-memory H2,
+ * without the caching and batching layers in front of it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleDataSourceBenchmark {
+    private static final String KNOWN_ID = "known";
+
+    private final AtomicLong nextId = new AtomicLong();
+    private Vertx vertx;
+    private JDBCPool pool;
+    private SimpleDataSource source;
+    private Row row;
+
+    @Setup
+    public void setup() {
+        vertx = Vertx.vertx();
+        pool = JDBCPool.pool(vertx, new JsonObject()
+                .put("url", "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1")
+                .put("driver_class", "org.h2.Driver"));
+        source = new SimpleDataSource(pool, new AppConfig(), new Metrics());
+        await(SimpleDataSource.createSchema(pool).compose(it -> source.addFileRecord(record(KNOWN_ID))));
+        row = await(pool.preparedQuery("SELECT * FROM " + DataSource.TABLE_FILE + " WHERE id = ?").execute(Tuple.of(KNOWN_ID)))
+                .iterator().next();
+    }
+
+    @TearDown
+    public void tearDown() {
+        await(pool.close());
+        await(vertx.close());
+    }
+
+    @Benchmark
+    public FileRecord fromRow() {
+        return SimpleDataSource.fromRow(row);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object insert() {
+        return await(source.addFileRecord(record("b" + nextId.incrementAndGet())));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public FileRecord lookup() {
+        var promise = Promise.<FileRecord>promise();
+        source.fetchFileById(KNOWN_ID, it -> it.onComplete(promise));
+        return await(promise.future());
+    }
+
+    private static FileRecord record(String id) {
+        return new FileRecord(id, LocalDateTime.now(), "abcdefghijklmnop", 4096, "notes.txt", "text/plain",
+                "127.0.0.1", "local", "identity");
+    }
+
+    private static <T> T await(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.id;
+
+import io.ib67.ezshare.data.records.SequenceRange;
+import io.ib67.ezshare.util.RandomHelper;
+import io.vertx.core.Future;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of an id: the old random generator, the codec alone, and the allocator with and without contention.
+ * Blocks are reserved from memory here, so the database round trip every {@code id-block-size} ids is not included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdAllocatorBenchmark {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    private IdCodec codec;
+    private IdAllocator allocator;
+    private long sequence;
+
+    @Setup
+    public void setup() {
+        codec = new IdCodec(ALPHABET, 8, 42);
+        var next = new AtomicLong();
+        allocator = new IdAllocator(count -> {
+            var start = next.getAndAdd(count);
+            return Future.succeededFuture(new SequenceRange(start, start + count, 42));
+        }, ALPHABET, 8, 1000);
+    }
+
+    @Benchmark
+    public String legacyRandom() {
+        return RandomHelper.randomString();
+    }
+
+    @Benchmark
+    public String codec() {
+        return codec.encode(sequence++ % codec.space());
+    }
+
+    @Benchmark
+    public String allocator() {
+        return allocator.next().result();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String allocatorContended() {
+        return allocator.next().result();
+    }
+}
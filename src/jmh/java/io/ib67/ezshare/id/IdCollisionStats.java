@@ -0,0 +1,59 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.id;
+
+import io.ib67.ezshare.util.RandomHelper;
+
+import java.util.HashSet;
+import java.util.function.LongFunction;
+
+/**
+ * Counts how many duplicates random ids and allocated ids produce.
+ * Usage: {@code IdCollisionStats [count]}, run by the {@code idCollisionStats} task.
+ */
+public final class IdCollisionStats {
+    public static void main(String[] args) {
+        var count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        report("random (6 of 26)", count, Math.pow(26, 6), i -> RandomHelper.randomString());
+        var codec = new IdCodec("abcdefghijklmnopqrstuvwxyz0123456789", 8, System.nanoTime());
+        report("allocator (8 of 36)", count, codec.space(), codec::encode);
+        var padded = new IdCodec("abcdefghijklmnopqrstuvwxyz0123456789", 20, System.nanoTime());
+        report("allocator, padded (20 of 36)", count, padded.space(), padded::encode);
+        var small = new IdCodec("ab", 16, System.nanoTime());
+        report("allocator, whole space (16 of 2)", (int) small.space(), small.space(), small::encode);
+    }
+
+    private static void report(String name, int count, double space, LongFunction<String> generator) {
+        var seen = new HashSet<String>(count * 2);
+        var collisions = 0;
+        for (int i = 0; i < count; i++) {
+            if (!seen.add(generator.apply(i))) collisions++;
+        }
+        // birthday estimate for uniformly random ids.
+        var expected = count + space * Math.expm1(-count / space);
+        System.out.printf("%-34s %,d ids, %,d collisions (%.1f expected if random)%n", name, count, collisions, expected);
+    }
+}
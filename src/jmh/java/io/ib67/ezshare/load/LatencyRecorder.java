@@ -0,0 +1,83 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.load;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every latency of one operation, percentiles are exact. Used from a single event loop.
+ */
+final class LatencyRecorder {
+    private long[] values = new long[1024];
+    private int count;
+    private long errors;
+    private long bytes;
+
+    void success(long nanos, long transferred) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = nanos;
+        bytes += transferred;
+    }
+
+    void error() {
+        errors++;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long errors() {
+        return errors;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    JsonObject toJson(double seconds) {
+        var sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return new JsonObject()
+                .put("requests", count)
+                .put("errors", errors)
+                .put("throughput", count / seconds)
+                .put("bytes", bytes)
+                .put("p50Millis", millis(sorted, 0.5))
+                .put("p99Millis", millis(sorted, 0.99))
+                .put("p999Millis", millis(sorted, 0.999))
+                .put("maxMillis", count == 0 ? 0 : sorted[count - 1] / 1e6);
+    }
+
+    private static double millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        var index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
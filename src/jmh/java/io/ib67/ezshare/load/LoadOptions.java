@@ -0,0 +1,186 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.load;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Options of {@link LoadTest}, given as {@code --name=value}.
+ */
+record LoadOptions(
+        int durationSeconds,
+        int warmupSeconds,
+        int concurrency,
+        int connections,
+        boolean http2,
+        boolean keepAlive,
+        int rate,
+        Map<Operation, Integer> mix,
+        int fileSize,
+        int pasteSize,
+        int seed,
+        int port,
+        Path report,
+        List<String> conf,
+        List<String> serverJvmArgs
+) {
+    static final String USAGE = """
+            Options, all optional:
+              --duration=30          seconds to measure
+              --warmup=10            seconds to run before measuring
+              --concurrency=32       requests in flight
+              --protocol=http1       or "h2c", HTTP/2 with prior knowledge
+              --connections=0        connections to open, 0 for one per request in flight with http1 and one with h2c
+              --keep-alive=true      false to open a connection per request, to measure connections per second
+              --rate=0               requests per second, 0 to send as fast as the server answers
+              --mix=upload=1,download=4,paste=3,redirect=2
+              --file-size=65536      bytes per uploaded and downloaded file
+              --paste-size=4096      bytes per paste
+              --seed=64              files, pastes and urls created before the run
+              --port=18090
+              --report=load-report.json
+              --conf=key=value       extra application.conf line, may be repeated
+              --server-jvm-args="-Xmx512m"
+            """;
+
+    static LoadOptions parse(String[] args) {
+        var values = new JsonObject();
+        var conf = new ArrayList<String>();
+        for (String arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Not an option: " + arg + "\n" + USAGE);
+            }
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+            if (name.equals("conf")) {
+                conf.add(value);
+            } else {
+                values.put(name, value);
+            }
+        }
+        var options = new LoadOptions(
+                Integer.parseInt(values.getString("duration", "30")),
+                Integer.parseInt(values.getString("warmup", "10")),
+                Integer.parseInt(values.getString("concurrency", "32")),
+                Integer.parseInt(values.getString("connections", "0")),
+                parseProtocol(values.getString("protocol", "http1")),
+                Boolean.parseBoolean(values.getString("keep-alive", "true")),
+                Integer.parseInt(values.getString("rate", "0")),
+                parseMix(values.getString("mix", "upload=1,download=4,paste=3,redirect=2")),
+                Integer.parseInt(values.getString("file-size", "65536")),
+                Integer.parseInt(values.getString("paste-size", "4096")),
+                Integer.parseInt(values.getString("seed", "64")),
+                Integer.parseInt(values.getString("port", "18090")),
+                Path.of(values.getString("report", "load-report.json")),
+                List.copyOf(conf),
+                splitArgs(values.getString("server-jvm-args", ""))
+        );
+        var known = List.of("duration", "warmup", "concurrency", "connections", "protocol", "keep-alive", "rate", "mix", "file-size", "paste-size", "seed", "port", "report", "server-jvm-args");
+        for (String name : values.fieldNames()) {
+            if (!known.contains(name)) throw new IllegalArgumentException("Unknown option --" + name + "\n" + USAGE);
+        }
+        return options;
+    }
+
+    private static boolean parseProtocol(String protocol) {
+        return switch (protocol) {
+            case "http1" -> false;
+            case "h2c" -> true;
+            default -> throw new IllegalArgumentException("Unknown protocol " + protocol + "\n" + USAGE);
+        };
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        var weights = new EnumMap<Operation, Integer>(Operation.class);
+        for (String part : mix.split(",")) {
+            var pair = part.trim().split("=");
+            weights.put(Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1].trim()));
+        }
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("The mix has no operations: " + mix);
+        }
+        return weights;
+    }
+
+    private static List<String> splitArgs(String args) {
+        return args.isBlank() ? List.of() : List.of(args.trim().split("\\s+"));
+    }
+
+    /**
+     * The server's config: in-memory H2, storage in the working directory and no rate limits.
+     * Lines from {@code --conf} come last and win.
+     */
+    List<String> serverConf(Path directory) {
+        return serverConf(directory, port, conf);
+    }
+
+    static List<String> serverConf(Path directory, int port, List<String> conf) {
+        var lines = new ArrayList<>(List.of(
+                "port=" + port,
+                "listen-addr=\"127.0.0.1\"",
+                "base-url=\"http://127.0.0.1:" + port + "\"",
+                "jdbcUrl=\"jdbc:h2:mem:ezshare;DB_CLOSE_DELAY=-1\"",
+                "local-destination=\"" + directory.resolve("storage") + "\"",
+                "archive-destination=\"" + directory.resolve("archive") + "\"",
+                "metadata-dir=\"" + directory.resolve("metadata") + "\"",
+                "preserved-space=0",
+                "rate-limit-uploads-per-minute=0",
+                "rate-limit-downloads-per-minute=0",
+                "rate-limit-redirects-per-minute=0",
+                "max-uploads-per-ip=0",
+                "max-downloads-per-ip=0"
+        ));
+        lines.addAll(conf);
+        return lines;
+    }
+
+    JsonObject toJson() {
+        var weights = new JsonObject();
+        mix.forEach((operation, weight) -> weights.put(operation.label(), weight));
+        return new JsonObject()
+                .put("durationSeconds", durationSeconds)
+                .put("warmupSeconds", warmupSeconds)
+                .put("concurrency", concurrency)
+                .put("connections", connections)
+                .put("protocol", http2 ? "h2c" : "http1")
+                .put("keepAlive", keepAlive)
+                .put("rate", rate)
+                .put("mix", weights)
+                .put("fileSize", fileSize)
+                .put("pasteSize", pasteSize)
+                .put("seed", seed)
+                .put("conf", new JsonArray(conf))
+                .put("serverJvmArgs", new JsonArray(serverJvmArgs));
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.load;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.codec.BodyCodec;
+import io.vertx.ext.web.multipart.MultipartForm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Boots EzShare against an in-memory H2 and drives a mix of requests at it, then writes a JSON report
+ * with the throughput and latency percentiles of every operation and the server's peak RSS and cpu time.
+ * <p>
+ * Requests are sent by a fixed number of workers. With a rate, they're scheduled at fixed intervals and
+ * latency is measured from the scheduled time, so a stalled server shows up in the percentiles.
+ * Run it with {@code gradle loadTest -PloadArgs="--duration=60 --concurrency=64"}, see {@link LoadOptions#USAGE}.
+ * To compare HTTP/1.1 and HTTP/2 for many small pastes, run {@code --mix=paste=1 --paste-size=512 --concurrency=128}
+ * once with {@code --protocol=http1} and once with {@code --protocol=h2c}.
+ * To compare transports, run {@code --mix=redirect=1 --keep-alive=false} once with {@code --conf=native-transport=true}
+ * and once with {@code --conf=native-transport=false}, the report has the connections per second and cpu per GB served.
+ */
+public final class LoadTest {
+    private final Vertx vertx;
+    private final LoadOptions options;
+    private final ServerProcess server;
+    private final WebClient client;
+    private final Path payload;
+    private final Path paste;
+    private final Map<Operation, LatencyRecorder> recorders = new EnumMap<>(Operation.class);
+    private final Operation[] weighted;
+    private final LongAdder connections = new LongAdder();
+    private final List<String> files = new ArrayList<>();
+    private final List<String> pastes = new ArrayList<>();
+    private final List<String> urls = new ArrayList<>();
+
+    // the window is also read when connections are counted, the rest is accessed from the client's context only.
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil;
+    private long nextSlot;
+    private double cpuAtStart;
+
+    private LoadTest(Vertx vertx, LoadOptions options, ServerProcess server, Path directory) throws IOException {
+        this.vertx = vertx;
+        this.options = options;
+        this.server = server;
+        var clientOptions = new WebClientOptions()
+                .setDefaultHost("127.0.0.1")
+                .setDefaultPort(options.port())
+                .setFollowRedirects(false)
+                .setUserAgent("ezshare-load");
+        if (options.http2()) {
+            // streams are only limited by the server's max concurrent streams.
+            clientOptions.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setHttp2ClearTextUpgrade(false)
+                    .setHttp2MaxPoolSize(options.connections() > 0 ? options.connections() : 1);
+        } else {
+            clientOptions.setMaxPoolSize(options.connections() > 0 ? options.connections() : options.concurrency())
+                    .setKeepAlive(options.keepAlive());
+        }
+        // connections are set up on the event loops of the client's pool, not only on the client's context.
+        var httpClient = vertx.createHttpClient(clientOptions).connectionHandler(connection -> {
+            var now = System.nanoTime();
+            if (now >= measureFrom && now < measureUntil) connections.increment();
+        });
+        this.client = WebClient.wrap(httpClient, clientOptions);
+        var bytes = new byte[options.fileSize()];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        this.payload = Files.write(directory.resolve("payload.bin"), bytes);
+        var line = "Hello from the load test, <b>escaped</b> & all.\n";
+        this.paste = Files.writeString(directory.resolve("paste.txt"),
+                line.repeat(options.pasteSize() / line.length() + 1).substring(0, options.pasteSize()));
+        var operations = new ArrayList<Operation>();
+        options.mix().forEach((operation, weight) -> {
+            for (int i = 0; i < weight; i++) operations.add(operation);
+        });
+        this.weighted = operations.toArray(Operation[]::new);
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new LatencyRecorder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = LoadOptions.parse(args);
+        var directory = Files.createTempDirectory("ezshare-load");
+        var vertx = Vertx.vertx();
+        try (var server = ServerProcess.start(directory, options.serverConf(directory), options.serverJvmArgs(), options.port())) {
+            var test = new LoadTest(vertx, options, server, directory);
+            var promise = Promise.<JsonObject>promise();
+            vertx.runOnContext(v -> test.run().onComplete(promise));
+            var report = promise.future().toCompletionStage().toCompletableFuture().join();
+            Files.createDirectories(options.report().toAbsolutePath().getParent());
+            Files.writeString(options.report(), report.encodePrettily());
+            System.out.println(report.encodePrettily());
+            System.out.println("Report written to " + options.report().toAbsolutePath());
+        } finally {
+            vertx.close().toCompletionStage().toCompletableFuture().join();
+            deleteRecursively(directory);
+        }
+    }
+
+    private Future<JsonObject> run() {
+        return seed().compose(it -> {
+            var start = System.nanoTime();
+            measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds());
+            measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds());
+            nextSlot = start;
+            vertx.setTimer(Math.max(1, options.warmupSeconds() * 1000L), id -> cpuAtStart = server.cpuSeconds());
+            var workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < options.concurrency(); i++) {
+                var done = Promise.<Void>promise();
+                next(done);
+                workers.add(done.future());
+            }
+            return CompositeFuture.all(new ArrayList<>(workers));
+        }).map(it -> report());
+    }
+
+    private Future<Void> seed() {
+        Future<Void> chain = Future.succeededFuture();
+        for (int i = 0; i < options.seed(); i++) {
+            chain = chain
+                    .compose(it -> upload(payload, "application/octet-stream").map(id -> files.add(id)))
+                    .compose(it -> upload(paste, "text/plain").map(id -> pastes.add(id)))
+                    .compose(it -> client.post("/").sendBuffer(Buffer.buffer("https://example.com/" + urls.size())))
+                    .map(response -> {
+                        urls.add(lastSegment(response.bodyAsString()));
+                        return null;
+                    });
+        }
+        return chain;
+    }
+
+    private void next(Promise<Void> done) {
+        var now = System.nanoTime();
+        long scheduled;
+        if (options.rate() > 0) {
+            scheduled = nextSlot;
+            nextSlot += TimeUnit.SECONDS.toNanos(1) / options.rate();
+        } else {
+            scheduled = now;
+        }
+        if (scheduled >= measureUntil) {
+            done.complete();
+            return;
+        }
+        var delayMillis = TimeUnit.NANOSECONDS.toMillis(scheduled - now);
+        if (delayMillis >= 1) {
+            vertx.setTimer(delayMillis, id -> send(scheduled, done));
+        } else {
+            send(scheduled, done);
+        }
+    }
+
+    private void send(long scheduled, Promise<Void> done) {
+        var operation = weighted[ThreadLocalRandom.current().nextInt(weighted.length)];
+        var counter = new CountingStream();
+        Future<? extends HttpResponse<?>> sent = switch (operation) {
+            case UPLOAD -> client.post("/").sendMultipartForm(form(payload, "application/octet-stream"));
+            case DOWNLOAD -> client.get("/files/" + pick(files)).as(BodyCodec.pipe(counter)).send();
+            case PASTE -> client.get("/paste/" + pick(pastes)).as(BodyCodec.pipe(counter)).send();
+            case REDIRECT -> client.get("/" + pick(urls)).send();
+        };
+        sent.onComplete(ar -> {
+            if (scheduled >= measureFrom) {
+                record(operation, ar, System.nanoTime() - scheduled,
+                        operation == Operation.UPLOAD ? options.fileSize() : counter.bytes);
+            }
+            next(done);
+        });
+    }
+
+    private void record(Operation operation, AsyncResult<? extends HttpResponse<?>> ar, long nanos, long bytes) {
+        var recorder = recorders.get(operation);
+        if (ar.succeeded() && ar.result().statusCode() < 400) {
+            recorder.success(nanos, bytes);
+        } else {
+            recorder.error();
+        }
+    }
+
+    private JsonObject report() {
+        var seconds = (double) options.durationSeconds();
+        var operations = new JsonObject();
+        long requests = 0;
+        long errors = 0;
+        long served = 0;
+        for (var entry : recorders.entrySet()) {
+            if (!options.mix().containsKey(entry.getKey())) continue;
+            var recorder = entry.getValue();
+            operations.put(entry.getKey().label(), recorder.toJson(seconds));
+            requests += recorder.count();
+            errors += recorder.errors();
+            if (entry.getKey() != Operation.UPLOAD) served += recorder.bytes();
+        }
+        var cpu = server.cpuSeconds() - cpuAtStart;
+        return new JsonObject()
+                .put("startedAt", Instant.now().minusSeconds(options.warmupSeconds() + options.durationSeconds()).toString())
+                .put("options", options.toJson())
+                .put("requests", requests)
+                .put("errors", errors)
+                .put("throughput", requests / seconds)
+                .put("connectionsPerSecond", connections.sum() / seconds)
+                .put("operations", operations)
+                .put("server", new JsonObject()
+                        .put("transport", server.transport())
+                        .put("peakRssBytes", server.peakRssBytes())
+                        .put("cpuSeconds", cpu)
+                        .put("bytesServed", served)
+                        .put("cpuSecondsPerGbServed", served == 0 ? 0 : cpu / (served / 1e9)));
+    }
+
+    private Future<String> upload(Path file, String mimeType) {
+        return client.post("/").sendMultipartForm(form(file, mimeType)).compose(response -> response.statusCode() == 200
+                ? Future.succeededFuture(lastSegment(response.bodyAsString().lines().findFirst().orElse("")))
+                : Future.failedFuture("Cannot seed, the server answered " + response.statusCode() + ": " + response.bodyAsString()));
+    }
+
+    private static MultipartForm form(Path file, String mimeType) {
+        return MultipartForm.create().binaryFileUpload("file", file.getFileName().toString(), file.toString(), mimeType);
+    }
+
+    static String lastSegment(String url) {
+        return url.trim().substring(url.trim().lastIndexOf('/') + 1);
+    }
+
+    private static String pick(List<String> ids) {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Drops response bodies, counting their bytes.
+     */
+    private static final class CountingStream implements WriteStream<Buffer> {
+        private long bytes;
+
+        @Override
+        public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+            return this;
+        }
+
+        @Override
+        public Future<Void> write(Buffer data) {
+            bytes += data.length();
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+            bytes += data.length();
+            handler.handle(Future.succeededFuture());
+        }
+
+        @Override
+        public void end(Handler<AsyncResult<Void>> handler) {
+            handler.handle(Future.succeededFuture());
+        }
+
+        @Override
+        public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+            return this;
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            return false;
+        }
+
+        @Override
+        public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.load;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EzShareBoot in a process of its own, so its memory and cpu time can be told apart from the load generator's.
+ * The working directory holds its application.conf, storage and logs.
+ */
+final class ServerProcess implements AutoCloseable {
+    private static final long CLOCK_TICKS_PER_SECOND = 100; // USER_HZ, the same on every Linux we run on.
+
+    private final Process process;
+    private final Path directory;
+    private final long startedAt;
+    private long startupNanos;
+
+    private ServerProcess(Process process, Path directory, long startedAt) {
+        this.process = process;
+        this.directory = directory;
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * Starts EzShare from the classpath of this JVM.
+     */
+    static ServerProcess start(Path directory, List<String> conf, List<String> jvmArgs, int port) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                "io.ib67.ezshare.EzShareLauncher", "run", "io.ib67.ezshare.EzShareBoot"));
+        return startCommand(directory, conf, command, port);
+    }
+
+    /**
+     * Starts EzShare with the given command, e.g. {@code java -jar} with the fat jar or the native image.
+     */
+    static ServerProcess startCommand(Path directory, List<String> conf, List<String> command, int port) throws IOException, InterruptedException {
+        Files.write(directory.resolve("application.conf"), conf);
+        var startedAt = System.nanoTime();
+        var process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.log").toFile())
+                .start();
+        var server = new ServerProcess(process, directory, startedAt);
+        server.awaitReady(port);
+        return server;
+    }
+
+    private void awaitReady(int port) throws IOException, InterruptedException {
+        var deadline = startedAt + TimeUnit.MINUTES.toNanos(1);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("EzShare exited with " + process.exitValue() + ", see " + directory.resolve("server.log"));
+            }
+            try {
+                var connection = (HttpURLConnection) URI.create("http://127.0.0.1:" + port + "/").toURL().openConnection();
+                if (connection.getResponseCode() == 200) {
+                    startupNanos = System.nanoTime() - startedAt;
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet.
+            }
+            // short, startup of the native image is measured in milliseconds.
+            Thread.sleep(2);
+        }
+        throw new IOException("EzShare didn't start within a minute, see " + directory.resolve("server.log"));
+    }
+
+    /**
+     * @return nanoseconds from starting the process until it served the main page.
+     */
+    long startupNanos() {
+        return startupNanos;
+    }
+
+    /**
+     * @return the peak resident set size in bytes, -1 where /proc isn't available.
+     */
+    long peakRssBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux.
+        }
+        return -1;
+    }
+
+    /**
+     * @return user and system cpu time spent so far, -1 where /proc isn't available.
+     */
+    double cpuSeconds() {
+        try {
+            var stat = Files.readString(Path.of("/proc", String.valueOf(process.pid()), "stat"));
+            // the command may contain spaces, the fields after it don't.
+            var fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) / (double) CLOCK_TICKS_PER_SECOND;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The transport the server logged at startup, "native" or "nio".
+     */
+    String transport() {
+        try (var lines = Files.lines(directory.resolve("server.log"))) {
+            return lines.anyMatch(line -> line.contains("Using the native transport")) ? "native" : "nio";
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Stops the server, forcibly if it takes longer than 10s. If interrupted meanwhile, it is killed without waiting.
+     */
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
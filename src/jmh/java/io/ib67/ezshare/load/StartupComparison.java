@@ -0,0 +1,159 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.load;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts EzShare from the fat jar and from the native image a few times each and reports how long it takes
+ * until the main page is served, and the peak RSS after a short burst of requests.
+ * Run it with {@code gradle startupComparison}, add {@code -PstartupArgs="--conf=metadata-store=\"log\""}
+ * to leave H2 out of it, the setup we recommend for many small instances.
+ */
+public final class StartupComparison {
+    static final String USAGE = """
+            Options:
+              --jar=path             the fat jar, started with java -jar
+              --binary=path          the native image, skipped if it doesn't exist
+              --runs=5               starts of each
+              --requests=200         requests sent after startup, before the RSS is read
+              --port=18090
+              --report=startup-report.json
+              --conf=key=value       extra application.conf line, may be repeated
+              --jvm-args="-Xmx64m"   for the jar
+            """;
+
+    public static void main(String[] args) throws Exception {
+        var options = new LinkedHashMap<String, String>();
+        var conf = new ArrayList<String>();
+        for (String arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Not an option: " + arg + "\n" + USAGE);
+            }
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+            if (name.equals("conf")) {
+                conf.add(value);
+            } else {
+                options.put(name, value);
+            }
+        }
+        var runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        var requests = Integer.parseInt(options.getOrDefault("requests", "200"));
+        var port = Integer.parseInt(options.getOrDefault("port", "18090"));
+        var report = Path.of(options.getOrDefault("report", "startup-report.json"));
+
+        var commands = new LinkedHashMap<String, List<String>>();
+        if (options.containsKey("jar")) {
+            var command = new ArrayList<String>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            var jvmArgs = options.getOrDefault("jvm-args", "");
+            if (!jvmArgs.isBlank()) command.addAll(List.of(jvmArgs.trim().split("\\s+")));
+            command.addAll(List.of("-jar", Path.of(options.get("jar")).toAbsolutePath().toString()));
+            commands.put("jar", command);
+        }
+        if (options.containsKey("binary")) {
+            var binary = Path.of(options.get("binary")).toAbsolutePath();
+            if (Files.isExecutable(binary)) {
+                commands.put("native", List.of(binary.toString()));
+            } else {
+                System.out.println("No native image at " + binary + ", skipped");
+            }
+        }
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to start\n" + USAGE);
+        }
+
+        var results = new JsonObject();
+        for (Map.Entry<String, List<String>> entry : commands.entrySet()) {
+            var startups = new double[runs];
+            var rss = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                var directory = Files.createTempDirectory("ezshare-startup");
+                try (var server = ServerProcess.startCommand(directory, LoadOptions.serverConf(directory, port, conf), entry.getValue(), port)) {
+                    startups[i] = server.startupNanos() / 1e6;
+                    exercise(port, requests);
+                    rss[i] = server.peakRssBytes();
+                } finally {
+                    LoadTest.deleteRecursively(directory);
+                }
+                System.out.printf("%s #%d: started in %.1fms, peak RSS %dKiB%n", entry.getKey(), i + 1, startups[i], rss[i] / 1024);
+            }
+            results.put(entry.getKey(), new JsonObject()
+                    .put("startupMillis", new JsonArray(Arrays.stream(startups).boxed().toList()))
+                    .put("medianStartupMillis", median(startups))
+                    .put("peakRssBytes", new JsonArray(Arrays.stream(rss).boxed().toList()))
+                    .put("medianPeakRssBytes", (long) median(Arrays.stream(rss).asDoubleStream().toArray())));
+        }
+        var json = new JsonObject()
+                .put("runs", runs)
+                .put("requests", requests)
+                .put("conf", new JsonArray(conf))
+                .put("results", results);
+        Files.createDirectories(report.toAbsolutePath().getParent());
+        Files.writeString(report, json.encodePrettily());
+        System.out.println(json.encodePrettily());
+        System.out.println("Report written to " + report.toAbsolutePath());
+    }
+
+    /**
+     * Shortens an url, then follows it and loads the main page, so that the request paths are warm.
+     */
+    private static void exercise(int port, int requests) throws IOException, InterruptedException {
+        var client = HttpClient.newHttpClient();
+        var base = "http://127.0.0.1:" + port;
+        var created = client.send(HttpRequest.newBuilder(URI.create(base + "/"))
+                .POST(HttpRequest.BodyPublishers.ofString("https://example.com/")).build(), HttpResponse.BodyHandlers.ofString());
+        if (created.statusCode() / 100 != 2) {
+            throw new IOException("Cannot shorten an url, the server answered " + created.statusCode() + ": " + created.body());
+        }
+        var id = LoadTest.lastSegment(created.body());
+        for (int i = 0; i < requests; i++) {
+            var path = i % 2 == 0 ? "/" + id : "/";
+            client.send(HttpRequest.newBuilder(URI.create(base + path)).build(), HttpResponse.BodyHandlers.discarding());
+        }
+    }
+
+    private static double median(double[] values) {
+        var sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
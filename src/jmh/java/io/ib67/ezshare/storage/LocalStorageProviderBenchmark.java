@@ -0,0 +1,140 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.impl.LocalStorageProvider;
+import io.ib67.ezshare.util.BufferReadStream;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Streaming files of several sizes into and out of {@link LocalStorageProvider} in a temporary directory.
+ * Operations per second times the size is the throughput, the page cache will serve most reads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocalStorageProviderBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private Vertx vertx;
+    private Context context;
+    private Path directory;
+    private LocalStorageProvider provider;
+    private Buffer content;
+    private FileRecord stored;
+    private final List<String> written = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        directory = Files.createTempDirectory("ezshare-bench");
+        provider = new LocalStorageProvider(vertx, new AppConfig(), directory);
+        var bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        content = Buffer.buffer(bytes);
+        var id = onContext(() -> provider.store(new BufferReadStream(context, content), size));
+        stored = new FileRecord("bench", LocalDateTime.now(), id, size, "bench.bin", "application/octet-stream",
+                "127.0.0.1", "local", ContentEncoding.IDENTITY);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteWritten() throws IOException {
+        for (String id : written) {
+            Files.deleteIfExists(directory.resolve(id));
+        }
+        written.clear();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public String write() {
+        var id = onContext(() -> provider.store(new BufferReadStream(context, content), size));
+        written.add(id);
+        return id;
+    }
+
+    @Benchmark
+    public long read() {
+        return onContext(() -> provider.read(stored).compose(stream -> {
+            var promise = Promise.<Long>promise();
+            var read = new long[1];
+            stream.exceptionHandler(promise::tryFail)
+                    .endHandler(end -> promise.tryComplete(read[0]))
+                    .handler(chunk -> read[0] += chunk.length());
+            return promise.future();
+        }));
+    }
+
+    private <T> T onContext(Supplier<Future<T>> action) {
+        var promise = Promise.<T>promise();
+        context.runOnContext(v -> action.get().onComplete(promise));
+        return promise.future().toCompletionStage().toCompletableFuture().join();
+    }
+}
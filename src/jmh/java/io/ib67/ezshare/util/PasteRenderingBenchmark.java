@@ -0,0 +1,107 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.util;
+
+import io.vertx.core.Context;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a paste the way {@code handleShowPaste} does: the template halves around the escaped content,
+ * streamed in chunks on an event loop. The response is replaced by a buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasteRenderingBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    /**
+     * "text" has nothing to escape, "html" has an escaped character every few bytes.
+     */
+    @Param({"text", "html"})
+    public String kind;
+
+    private Vertx vertx;
+    private Context context;
+    private Buffer head;
+    private Buffer tail;
+    private Buffer content;
+
+    @Setup
+    public void setup() throws IOException {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        try (var in = PasteRenderingBenchmark.class.getClassLoader().getResourceAsStream("templates/paste.html")) {
+            var template = new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\\{template}");
+            head = Buffer.buffer(template[0]);
+            tail = Buffer.buffer(template[1]);
+        }
+        var line = "text".equals(kind) ? "The quick brown fox jumps over the lazy dog.\n" : "<p class=\"x\">a & b</p>\n";
+        var sb = new StringBuilder(size + line.length());
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        content = Buffer.buffer(sb.substring(0, size));
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public Buffer render() {
+        var promise = Promise.<Buffer>promise();
+        context.runOnContext(v -> {
+            var out = Buffer.buffer(size + head.length() + tail.length() + 64).appendBuffer(head);
+            new HtmlEscapeReadStream(new BufferReadStream(context, content))
+                    .handler(out::appendBuffer)
+                    .endHandler(end -> promise.complete(out.appendBuffer(tail)));
+        });
+        return promise.future().toCompletionStage().toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.controller.QrCodes;
+import io.ib67.ezshare.controller.StaticPages;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.expiry.ExpiryEngine;
+import io.ib67.ezshare.id.IdAllocator;
+import io.ib67.ezshare.limit.ClientAddresses;
+import io.ib67.ezshare.limit.RateLimiter;
+import io.ib67.ezshare.metrics.Metrics;
+import io.ib67.ezshare.quota.QuotaManager;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.tiering.TieringEngine;
+import io.ib67.ezshare.upload.ResumableUploads;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * State which is created once by {@link EzShareBoot} and shared by all {@link HttpVerticle} instances.
+ * Everything in here must be safe to use from multiple event loops.
+ */
+public record AppContext(
+        AppConfig config,
+        DataSource dataSource,
+        Map<String, IStorageProvider> providers,
+        ExpiryEngine expiry,
+        TieringEngine tiering,
+        QuotaManager quota,
+        RateLimiter limiter,
+        ClientAddresses clients,
+        Metrics metrics,
+        Path staticPath,
+        StaticPages pages,
+        QrCodes qrCodes,
+        IdAllocator ids,
+        ResumableUploads uploads
+) {
+}
@@ -28,23 +28,37 @@ package io.ib67.ezshare;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import io.ib67.ezshare.config.AppConfig;
-import io.ib67.ezshare.controller.EzShareController;
-import io.ib67.ezshare.controller.MainController;
+import io.ib67.ezshare.controller.QrCodes;
+import io.ib67.ezshare.controller.StaticPages;
+import io.ib67.ezshare.data.BatchingDataSource;
+import io.ib67.ezshare.data.CachingDataSource;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.LogDataSource;
 import io.ib67.ezshare.data.SimpleDataSource;
+import io.ib67.ezshare.expiry.ExpiryEngine;
+import io.ib67.ezshare.id.IdAllocator;
+import io.ib67.ezshare.limit.ClientAddresses;
+import io.ib67.ezshare.limit.RateLimiter;
+import io.ib67.ezshare.limit.RouteClass;
+import io.ib67.ezshare.metrics.Metrics;
+import io.ib67.ezshare.quota.QuotaManager;
 import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.storage.impl.DedupStorageProvider;
 import io.ib67.ezshare.storage.impl.LocalStorageProvider;
+import io.ib67.ezshare.storage.impl.PackedStorageProvider;
+import io.ib67.ezshare.storage.impl.S3StorageProvider;
+import io.ib67.ezshare.tiering.TieringEngine;
+import io.ib67.ezshare.upload.ResumableUploads;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
-import io.vertx.core.Verticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
-import io.vertx.core.http.HttpServer;
-import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.net.PemKeyCertOptions;
-import io.vertx.ext.web.Router;
-import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.jdbcclient.JDBCPool;
-import io.vertx.sqlclient.Tuple;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -52,11 +66,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -69,81 +83,98 @@ public final class EzShareBoot extends AbstractVerticle {
     private static final Path STATIC = ROOT.resolve("static");
 
     private Vertx vertx;
-    private Router router;
     private AppConfig config;
     private Config rawConfig;
-    private MainController mainController;
     private Map<String, IStorageProvider> providers = new HashMap<>();
-    private ScheduledExecutorService expiryDeleter = Executors.newSingleThreadScheduledExecutor();
+    private final Metrics metrics = new Metrics();
 
     @Override
-    public void start() {
+    public void start(Promise<Void> startPromise) {
         vertx = getVertx();
-        router = Router.router(vertx);
-        init();
+        init(startPromise);
     }
 
-    private void init() {
+    private void init(Promise<Void> startPromise) {
         // try to read buildInfo.
         log.info(readBuildInfo());
         // initialization.
         config = loadConfig();
         loadStorageProviders();
         extractResources();
-        // initiate datasource
-        loadDatabase(dataSource -> {
-            var ds = new SimpleDataSource(dataSource, config);
-            mainController = new EzShareController(
-                    config,
-                    ds,
-                    vertx,
-                    STATIC,
-                    providers
-            );
-            // load routes
-            expiryDeleter.scheduleAtFixedRate(() -> launchExpiry(dataSource, ds), 0L, 1, TimeUnit.MINUTES);
-            var bodyHandler = BodyHandler.create()
-                    .setHandleFileUploads(true)
-                    .setBodyLimit(config.getMaxBodySize() * 1024)
-                    .setDeleteUploadedFilesOnEnd(false)
-                    .setUploadsDirectory(config.getUploadTmpDir());
+        var pages = loadStaticPages();
+        // initiate datasource, everything below is shared by http verticles.
+        loadDataSource(ds -> {
+            var quota = new QuotaManager(vertx, config, providers);
+            var uploads = new ResumableUploads(vertx, config, Map.copyOf(providers), quota);
+            var expiry = new ExpiryEngine(vertx, ds, providers, quota, uploads, metrics, config);
+            var tiering = new TieringEngine(vertx, ds, providers, quota, config);
+            var clients = new ClientAddresses(config.getTrustedProxies());
+            var limiter = new RateLimiter(vertx, config, clients);
+            registerLimiterMetrics(limiter);
+            metrics.gaugeOf("ezshare_resumable_uploads", "Resumable uploads which haven't been finished.", uploads::size);
+            var app = new AppContext(config, ds, Map.copyOf(providers), expiry, tiering, quota, limiter, clients, metrics, STATIC, pages,
+                    new QrCodes(vertx, config.getQrCacheSize(), config.getCacheTtlSeconds() * 1000L),
+                    new IdAllocator(count -> ds.reserveSequence("ids:" + config.getIdLength(), count),
+                            config.getIdAlphabet(), config.getIdLength(), config.getIdBlockSize()),
+                    uploads);
+            var instances = config.getInstances() > 0 ? config.getInstances() : VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE;
+            recoverStorageProviders(ds)
+                    .compose(it -> quota.start(ds))
+                    .compose(it -> uploads.start())
+                    .compose(it -> {
+                        expiry.start().onFailure(t -> log.error("Cannot start the expiry engine! ", t));
+                        tiering.start().onFailure(t -> log.error("Cannot start the tiering engine! ", t));
+                        return vertx.deployVerticle(() -> new HttpVerticle(app), new DeploymentOptions().setInstances(instances));
+                    })
+                    .onComplete(it -> whenHttpReady(it, instances))
+                    .<Void>mapEmpty()
+                    .onComplete(startPromise);
+        });
+    }
 
-            // root handler
-            router.get("/").handler(mainController::handleMainPage);
-            router.get("/:id").handler(mainController::handleRedirection);
-            router.get("/files/:id").handler(mainController::handleDownload);
-            router.get("/paste/:id").handler(mainController::handleShowPaste);
-            var upload = router.post("/");
-            if (config.isEnablePassword()) {
-                upload.handler(mainController::authPass);
+    private void loadDataSource(Consumer<DataSource> callback) {
+        if ("log".equals(config.getMetadataStore())) {
+            // lookups are served from memory already, neither caching nor batching would help.
+            callback.accept(loadLog());
+            return;
+        }
+        loadDatabase(pool -> {
+            DataSource backend = new SimpleDataSource(pool, config, metrics);
+            if (config.getWriteFlushMillis() > 0) {
+                backend = new BatchingDataSource(vertx, backend, config);
             }
-            upload.handler(bodyHandler).handler(mainController::handleUpload);
-            // LETS GO
-            vertx.createHttpServer(getHttpOptions())
-                    .requestHandler(router)
-                    .listen(config.getPort(), config.getListenAddr(), this::whenHttpReady);
+            var cache = new CachingDataSource(backend, config);
+            registerCacheMetrics(cache);
+            callback.accept(cache);
         });
     }
 
-    private void launchExpiry(JDBCPool dataSource, SimpleDataSource ds) {
-        //- ? hour
-        dataSource.preparedQuery("SELECT * FROM t_files WHERE creationDate <= CURRENT_TIMESTAMP - ? minute")
-                .execute(Tuple.of(config.getExpireHours()))
-                .onSuccess(it -> {
-                    if (it.size() > 0) log.info("Cleaned {} files", it.size());
-                    for (io.vertx.sqlclient.Row row : it) {
-                        var i = SimpleDataSource.fromRow(row);
-                        ds.removeFileRecord(i)
-                                .onSuccess(itz -> {
-                                    providers.get(i.storageType()).delete(i);
-                                    log.info("File: {} - {}M", i.fileName(), i.size() / 1024 / 1024);
-                                }).onFailure(t -> {
-                                    log.warn("Failed to remove {}! {} ", i, t);
-                                });
-                    }
-                }).onFailure(t -> {
-                    log.warn("Failed to clean files! ", t);
-                });
+    private void registerCacheMetrics(CachingDataSource cache) {
+        var help = "Lookups of records by id, negative hits are ids known not to exist.";
+        metrics.counterOf("ezshare_cache_lookups_total", help, cache::getHits, "result", "hit");
+        metrics.counterOf("ezshare_cache_lookups_total", help, cache::getNegativeHits, "result", "negative_hit");
+        metrics.counterOf("ezshare_cache_lookups_total", help, cache::getMisses, "result", "miss");
+    }
+
+    private void registerLimiterMetrics(RateLimiter limiter) {
+        for (var routeClass : RouteClass.values()) {
+            var name = routeClass.name().toLowerCase(Locale.ROOT);
+            var help = "Requests checked by the rate limiter.";
+            metrics.counterOf("ezshare_rate_limit_requests_total", help, () -> limiter.counters(routeClass).allowed(),
+                    "class", name, "result", "allowed");
+            metrics.counterOf("ezshare_rate_limit_requests_total", help, () -> limiter.counters(routeClass).rateLimited(),
+                    "class", name, "result", "rate_limited");
+            metrics.counterOf("ezshare_rate_limit_requests_total", help, () -> limiter.counters(routeClass).concurrencyLimited(),
+                    "class", name, "result", "concurrency_limited");
+        }
+        metrics.gaugeOf("ezshare_rate_limit_tracked_clients", "Client ips the rate limiter keeps state for.", limiter::trackedClients);
+    }
+
+    @SneakyThrows
+    private LogDataSource loadLog() {
+        var ds = new LogDataSource(vertx, Path.of(config.getMetadataDir()));
+        ds.open();
+        return ds;
     }
 
     private void loadStorageProviders() {
@@ -152,9 +183,28 @@ public final class EzShareBoot extends AbstractVerticle {
             dest.toFile().mkdirs();
         }
         providers.put("local", new LocalStorageProvider(vertx, config, dest));
+        providers.put("dedup", new DedupStorageProvider(vertx, config, dest));
+        providers.put("packed", new PackedStorageProvider(vertx, config, dest.resolve("segments")));
+        var archive = Path.of(config.getArchiveDestination());
+        if ("archive".equals(config.getColdStoreType())) {
+            archive.toFile().mkdirs();
+        }
+        // always there, so that archived files stay readable if tiering is turned off.
+        providers.put("archive", new LocalStorageProvider(vertx, config, archive));
+        if (!config.getS3Endpoint().isEmpty()) {
+            providers.put("s3", new S3StorageProvider(vertx, config));
+        }
         //providers.put("local",new LocalStorageProvider(vertx,config.));
     }
 
+    private Future<Void> recoverStorageProviders(DataSource dataSource) {
+        List<Future<Void>> recovered = providers.entrySet().stream()
+                .map(it -> it.getValue().recover(it.getKey(), dataSource)
+                        .onFailure(t -> log.error("Cannot recover storage {}", it.getKey(), t)))
+                .toList();
+        return CompositeFuture.all(new ArrayList<>(recovered)).mapEmpty();
+    }
+
     private void extractResources() {
         if (Files.notExists(STATIC)) {
             STATIC.toFile().mkdirs();
@@ -164,6 +214,16 @@ public final class EzShareBoot extends AbstractVerticle {
         writeIfNotExist(STATIC.resolve("paste.html"),processTemplates(readResourceAsText("templates/paste.html")));
     }
 
+    @SneakyThrows
+    private StaticPages loadStaticPages() {
+        var pages = new StaticPages(STATIC, Map.of(
+                "index.html", "text/html; charset=utf-8",
+                "motd.txt", "text/plain; charset=utf-8"
+        ));
+        pages.start();
+        return pages;
+    }
+
     private String processTemplates(String readResourceAsText) {
         return readResourceAsText
                 .replaceAll("\\{\\{baseUrl}}", config.getBaseUrl())
@@ -192,60 +252,24 @@ public final class EzShareBoot extends AbstractVerticle {
         jo.put("url", config.getJdbcUrl());
         jo.put("driver_class", "org.h2.Driver");
         var pool = JDBCPool.pool(vertx, jo);
-        pool.withConnection(it -> {
-            System.out.println(it);
-            pool.preparedQuery(
-                    """
-                            CREATE TABLE IF NOT EXISTS t_files (
-                              id VARCHAR(6) NOT NULL UNIQUE,
-                              creationDate DATETIME NOT NULL,
-                              pathToFile VARCHAR(128) NOT NULL,
-                              size BIGINT NOT NULL,
-                              fileName VARCHAR(128) NOT NULL,
-                              mimeType VARCHAR(64) NOT NULL,
-                              ip VARCHAR(45) NOT NULL,
-                              storageType VARCHAR(16) NOT NULL,
-                              PRIMARY KEY (`id`)
-                            );
-                            """
-            ).execute().result();
-            pool.preparedQuery("""
-                                CREATE TABLE IF NOT EXISTS t_urls (
-                                    id VARCHAR(6) NOT NULL UNIQUE,
-                                    creationDate DATETIME NOT NULL,
-                                    destination VARCHAR(256) NOT NULL,
-                                    ip VARCHAR(45) NOT NULL,
-                                    PRIMARY KEY (`id`)
-                                );
-                            """)
-                    .execute().result();
-            callback.accept(pool);
-            return null;
+        SimpleDataSource.createSchema(pool).onSuccess(it -> callback.accept(pool)).onFailure(t -> {
+            log.error("Cannot initialize the database, Exiting.", t);
+            System.exit(1);
         });
         return pool;
     }
 
 
-    private void whenHttpReady(AsyncResult<HttpServer> httpServerAsyncResult) {
-        if (!httpServerAsyncResult.succeeded()) {
-            log.warn("Cannot start HTTP Service, Exiting.");
+    private void whenHttpReady(AsyncResult<String> deployment, int instances) {
+        if (!deployment.succeeded()) {
+            log.warn("Cannot start HTTP Service, Exiting.", deployment.cause());
             System.exit(0);
             return;
         }
-        var httpServer = httpServerAsyncResult.result();
-        log.info("EzShare is listening on " + config.getListenAddr() + ":" + config.getPort());
-    }
-
-    private HttpServerOptions getHttpOptions() {
-        var opt = new HttpServerOptions();
-        if (config.getKeyPath().isEmpty() != config.getCertPath().isEmpty()) {
-            log.warn("One of the key-path and cert-path is missing, We will not enable TLS Support.");
-        } else if (!config.getKeyPath().isEmpty()) {
-            opt.setPemKeyCertOptions(new PemKeyCertOptions().addCertPath(config.getCertPath()).addKeyPath(config.getKeyPath()));
-            opt.setSsl(true);
+        if (!config.getKeyPath().isEmpty() && !config.getCertPath().isEmpty()) {
             log.info("TLS Support is ENABLED");
         }
-        return opt;
+        log.info("EzShare is listening on " + config.getListenAddr() + ":" + config.getPort() + " with " + instances + " event loops");
     }
 
     private AppConfig loadConfig() {
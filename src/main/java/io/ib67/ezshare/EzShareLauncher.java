@@ -0,0 +1,78 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare;
+
+import com.typesafe.config.ConfigFactory;
+import io.ib67.ezshare.config.AppConfig;
+import io.vertx.core.Launcher;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+
+/**
+ * Picks the transport before Vert.x starts, {@link EzShareBoot} is deployed only afterwards.
+ * Netty's epoll transport is used on Linux when its native library is on the classpath, NIO otherwise.
+ * <p>
+ * Also the entry point of the native image, which has no manifest to name the main verticle.
+ */
+@Slf4j
+public class EzShareLauncher extends Launcher {
+    private static final boolean NATIVE_IMAGE = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    public static void main(String[] args) {
+        if (NATIVE_IMAGE) {
+            // the native image has no JMX to register c3p0's pools with.
+            System.setProperty("com.mchange.v2.c3p0.management.ManagementCoordinator",
+                    "com.mchange.v2.c3p0.management.NullManagementCoordinator");
+        }
+        new EzShareLauncher().dispatch(args);
+    }
+
+    @Override
+    protected String getMainVerticle() {
+        var verticle = super.getMainVerticle();
+        return verticle != null ? verticle : EzShareBoot.class.getName();
+    }
+
+    @Override
+    public void beforeStartingVertx(VertxOptions options) {
+        // EzShareBoot extracts the template if there's no config yet, its defaults apply until then.
+        var config = AppConfig.loadConfig(ConfigFactory.parseFile(new File("application.conf")));
+        // epoll's JNI bindings aren't part of the native image's metadata.
+        options.setPreferNativeTransport(config.isNativeTransport() && !NATIVE_IMAGE);
+    }
+
+    @Override
+    public void afterStartingVertx(Vertx vertx) {
+        if (vertx.isNativeTransportEnabled()) {
+            log.info("Using the native transport, socket options for Linux are in effect");
+        } else {
+            log.info("Using the NIO transport, reuse-port and the tcp-* socket options have no effect");
+        }
+    }
+}
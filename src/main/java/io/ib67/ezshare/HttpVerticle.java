@@ -0,0 +1,197 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare;
+
+import io.ib67.ezshare.controller.EzShareController;
+import io.ib67.ezshare.controller.MainController;
+import io.ib67.ezshare.limit.RouteClass;
+import io.ib67.ezshare.metrics.RouteMetrics;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves HTTP on its own event loop. Several instances listening on the same port are load-balanced by Vert.x.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public final class HttpVerticle extends AbstractVerticle {
+    private static final long URL_BODY_LIMIT = 1024;
+
+    private final AppContext app;
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        var config = app.config();
+        MainController mainController = new EzShareController(
+                config,
+                app.dataSource(),
+                vertx,
+                app.staticPath(),
+                app.providers(),
+                app.expiry(),
+                app.tiering(),
+                app.quota(),
+                app.pages(),
+                app.qrCodes(),
+                app.ids(),
+                app.uploads(),
+                app.clients()
+        );
+        var limiter = app.limiter();
+        var metrics = app.metrics();
+        var router = Router.router(vertx);
+        // files are streamed into storage providers directly, only url bodies are buffered.
+        var bodyHandler = BodyHandler.create(false)
+                .setBodyLimit(URL_BODY_LIMIT);
+
+        // root handler
+        router.get("/").handler(routeMetrics("main_page")).handler(mainController::handleMainPage);
+        if (config.isEnableMetrics()) {
+            // ahead of /:id.
+            router.get("/metrics").handler(this::handleScrape);
+        }
+        router.get("/:id").handler(routeMetrics("redirect"))
+                .handler(limiter.handler(RouteClass.REDIRECT)).handler(mainController::handleRedirection);
+        router.get("/files/:id").handler(routeMetrics("download"))
+                .handler(limiter.handler(RouteClass.DOWNLOAD)).handler(mainController::handleDownload);
+        router.get("/paste/:id").handler(routeMetrics("paste"))
+                .handler(limiter.handler(RouteClass.DOWNLOAD)).handler(mainController::handleShowPaste);
+        router.get("/qr/:id").handler(routeMetrics("qr_code"))
+                .handler(limiter.handler(RouteClass.REDIRECT)).handler(mainController::handleQrCode);
+        var upload = router.post("/").consumes("multipart/form-data").handler(routeMetrics("upload"))
+                .handler(limiter.handler(RouteClass.UPLOAD));
+        // body handlers have to come first, the url body is small enough to be read before the limits apply.
+        var shorten = router.post("/").handler(bodyHandler).handler(routeMetrics("shorten"))
+                .handler(limiter.handler(RouteClass.UPLOAD));
+        if (config.isEnablePassword()) {
+            upload.handler(mainController::authPass);
+            shorten.handler(mainController::authPass);
+        }
+        upload.handler(mainController::handleUpload);
+        shorten.handler(mainController::handleShortenUrl);
+        if (config.isResumableUploads()) {
+            var create = router.post("/uploads").handler(routeMetrics("upload_create"))
+                    .handler(limiter.handler(RouteClass.UPLOAD));
+            // chunks are let through by their unguessable session, only new uploads are rate limited.
+            // They count as uploads in flight all the same.
+            var chunk = router.patch("/uploads/:sid").handler(routeMetrics("upload_chunk"))
+                    .handler(limiter.inflightHandler(RouteClass.UPLOAD));
+            var status = router.route("/uploads/:sid").method(HttpMethod.HEAD).method(HttpMethod.GET)
+                    .handler(routeMetrics("upload_status"));
+            var finish = router.post("/uploads/:sid").handler(routeMetrics("upload_finish"));
+            var cancel = router.delete("/uploads/:sid").handler(routeMetrics("upload_cancel"));
+            if (config.isEnablePassword()) {
+                List.of(create, chunk, status, finish, cancel).forEach(it -> it.handler(mainController::authPass));
+            }
+            create.handler(mainController::handleCreateUpload);
+            chunk.handler(mainController::handleUploadChunk);
+            status.handler(mainController::handleUploadStatus);
+            finish.handler(mainController::handleFinishUpload);
+            cancel.handler(mainController::handleCancelUpload);
+        }
+        if (config.isEnableMetrics()) {
+            metrics.monitorEventLoop(vertx);
+        }
+        // LETS GO
+        vertx.createHttpServer(getHttpOptions())
+                .requestHandler(router)
+                .listen(config.getPort(), config.getListenAddr())
+                .<Void>mapEmpty()
+                .onComplete(startPromise);
+    }
+
+    /**
+     * Records the requests of a route if metrics are enabled, so the hot paths pay nothing for them otherwise.
+     */
+    private Handler<RoutingContext> routeMetrics(String route) {
+        return app.config().isEnableMetrics() ? new RouteMetrics(app.metrics(), route) : RoutingContext::next;
+    }
+
+    private void handleScrape(RoutingContext ctx) {
+        var token = app.config().getMetricsToken();
+        if (!token.isEmpty()) {
+            var header = ctx.request().getHeader("Authorization");
+            if (header == null || !MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+                    header.getBytes(StandardCharsets.UTF_8))) {
+                ctx.response().setStatusCode(401).putHeader("WWW-Authenticate", "Bearer").end();
+                return;
+            }
+        }
+        ctx.response()
+                .putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .end(app.metrics().scrape());
+    }
+
+    private HttpServerOptions getHttpOptions() {
+        var config = app.config();
+        var opt = new HttpServerOptions()
+                .setTcpNoDelay(config.isTcpNoDelay())
+                .setReusePort(config.isReusePort())
+                .setTcpFastOpen(config.isTcpFastOpen())
+                .setTcpCork(config.isTcpCork())
+                .setTcpQuickAck(config.isTcpQuickAck())
+                .setIdleTimeout(config.getIdleTimeoutSeconds())
+                .setIdleTimeoutUnit(TimeUnit.SECONDS)
+                .setCompressionSupported(config.isHttpCompression())
+                .setCompressionLevel(config.getHttpCompressionLevel())
+                .setInitialSettings(new Http2Settings()
+                        .setMaxConcurrentStreams(config.getHttp2MaxConcurrentStreams())
+                        .setInitialWindowSize(config.getHttp2StreamWindowSize()))
+                .setHttp2ConnectionWindowSize(config.getHttp2ConnectionWindowSize());
+        if (config.getSocketReceiveBuffer() > 0) opt.setReceiveBufferSize(config.getSocketReceiveBuffer());
+        if (config.getSocketSendBuffer() > 0) opt.setSendBufferSize(config.getSocketSendBuffer());
+        if (!config.isHttp2()) {
+            // h2c is always accepted on plain connections, Vert.x only offers this switch for it. Read when a server is created.
+            System.setProperty("vertx.disableH2c", "true");
+        }
+        if (config.getKeyPath().isEmpty() != config.getCertPath().isEmpty()) {
+            log.warn("One of the key-path and cert-path is missing, We will not enable TLS Support.");
+        } else if (!config.getKeyPath().isEmpty()) {
+            opt.setPemKeyCertOptions(new PemKeyCertOptions().addCertPath(config.getCertPath()).addKeyPath(config.getKeyPath()));
+            opt.setSsl(true);
+            if (config.isHttp2()) {
+                opt.setUseAlpn(true).setAlpnVersions(List.of(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1));
+            }
+        }
+        return opt;
+    }
+}
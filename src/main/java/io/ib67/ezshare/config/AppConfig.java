@@ -36,21 +36,92 @@ import java.util.List;
 public final class AppConfig {
     public static AppConfig loadConfig(Config config) {
         var defaultConfig = ConfigFactory.load("templates/application.conf");
-        return ConfigBeanFactory.create(config.resolveWith(defaultConfig), AppConfig.class);
+        return ConfigBeanFactory.create(config.withFallback(defaultConfig).resolve(), AppConfig.class);
     }
 
     private int port;
+    private int instances;
+    private boolean nativeTransport;
+    private boolean reusePort;
+    private boolean tcpFastOpen;
+    private boolean tcpCork;
+    private boolean tcpQuickAck;
     private String listenAddr;
     private String baseUrl;
     private String certPath;
     private String keyPath;
-    private String uploadTmpDir;
+    private boolean http2;
+    private int http2MaxConcurrentStreams;
+    private int http2StreamWindowSize;
+    private int http2ConnectionWindowSize;
+    private boolean httpCompression;
+    private int httpCompressionLevel;
+    private int idleTimeoutSeconds;
+    private boolean tcpNoDelay;
+    private int socketReceiveBuffer;
+    private int socketSendBuffer;
     private String defaultStoreType;
+    private String metadataStore;
+    private String metadataDir;
     private String jdbcUrl;
+    private int writeBatchSize;
+    private int writeFlushMillis;
+    private String idAlphabet;
+    private int idLength;
+    private int idBlockSize;
     private int preservedSpace;
+    private int quotaPerIp;
+    private int quotaTotal;
+    private int spaceReconcileSeconds;
+    private int rateLimitUploadsPerMinute;
+    private int rateLimitUploadBurst;
+    private int rateLimitDownloadsPerMinute;
+    private int rateLimitDownloadBurst;
+    private int rateLimitRedirectsPerMinute;
+    private int rateLimitRedirectBurst;
+    private int maxUploadsPerIp;
+    private int maxDownloadsPerIp;
+    private List<String> trustedProxies;
+    private boolean enableMetrics;
+    private String metricsToken;
+    /**
+     * In minutes despite its name, it has always been read that way and the key is kept for existing configs.
+     */
     private int expireHours;
+    private int urlExpireMinutes;
+    private int expiryBatchSize;
+    private int expiryDeleteConcurrency;
     private long maxBodySize;
+    private boolean resumableUploads;
+    private String uploadSessionDir;
+    private int uploadSessionTtlMinutes;
+    private boolean compressUploads;
+    private List<String> compressibleMimeTypes;
     private boolean enablePassword;
     private List<String> passwords;
     private List<String> bannedMimeTypes;
+    private int cacheSize;
+    private int cacheTtlSeconds;
+    private int negativeCacheTtlSeconds;
+    private int qrCacheSize;
+    private int packedThreshold;
+    private int packedSegmentSize;
+    private double packedCompactionRatio;
+    private String s3Endpoint;
+    private String s3Region;
+    private String s3Bucket;
+    private String s3AccessKey;
+    private String s3SecretKey;
+    private boolean s3PathStyle;
+    private int s3PartSize;
+    private int s3UploadConcurrency;
+    private int s3MaxConnections;
+    private boolean s3PresignDownloads;
+    private int s3PresignTtlSeconds;
+    private String coldStoreType;
+    private String archiveDestination;
+    private int tierDemoteAfterMinutes;
+    private int tierPromoteHits;
+    private int tierMoveConcurrency;
+    private boolean tierCompress;
 }
@@ -25,17 +25,33 @@
 
 package io.ib67.ezshare.controller;
 
-import com.google.zxing.WriterException;
-import io.github.shashankn.qrterminal.QRCode;
 import io.ib67.ezshare.config.AppConfig;
 import io.ib67.ezshare.data.DataSource;
 import io.ib67.ezshare.data.records.FileRecord;
 import io.ib67.ezshare.data.records.URLRecord;
+import io.ib67.ezshare.expiry.ExpiryEngine;
+import io.ib67.ezshare.id.IdAllocator;
+import io.ib67.ezshare.limit.ClientAddresses;
+import io.ib67.ezshare.quota.QuotaExceededException;
+import io.ib67.ezshare.quota.QuotaManager;
 import io.ib67.ezshare.storage.IStorageProvider;
-import io.ib67.ezshare.util.RandomHelper;
+import io.ib67.ezshare.storage.StoragePolicy;
+import io.ib67.ezshare.tiering.TieringEngine;
+import io.ib67.ezshare.upload.ResumableUploads;
+import io.ib67.ezshare.upload.UploadException;
+import io.ib67.ezshare.upload.UploadSession;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.ib67.ezshare.util.EarlyResponse;
+import io.ib67.ezshare.util.HtmlEscapeReadStream;
+import io.ib67.ezshare.util.HttpRanges;
+import io.ib67.ezshare.util.SizeLimitedReadStream;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
-import io.vertx.ext.web.FileUpload;
+import io.vertx.core.http.HttpServerFileUpload;
 import io.vertx.ext.web.RoutingContext;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -43,33 +59,61 @@ import lombok.extern.slf4j.Slf4j;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Map;
+import java.util.Objects;
 
 @Slf4j
 public class EzShareController implements MainController {
+    private static final String CTX_UPLOAD_RECEIVED = "ezshare.uploadReceived";
+    private static final String CTX_MULTIPLE_FILES = "ezshare.multipleFiles";
+    private static final String SKIP_QR_HEADER = "X-Skip-QR";
+    private static final long PASTE_SIZE_LIMIT = 1024 * 1024;
+    private static final Buffer FAIL_PASTE = Buffer.buffer("**The requested paste is not exists or it is too big to preview.**");
     private final AppConfig config;
 
     private final DataSource source;
     private final Vertx vertx;
     private final Path staticPath;
     private final Map<String, IStorageProvider> providerMap;
-    private final String[] templatePaste;
+    private final ExpiryEngine expiry;
+    private final TieringEngine tiering;
+    private final QuotaManager quota;
+    private final StaticPages pages;
+    private final QrCodes qrCodes;
+    private final IdAllocator ids;
+    private final ResumableUploads uploads;
+    private final ClientAddresses clients;
+    private final Buffer[] templatePaste;
 
     @SneakyThrows
-    public EzShareController(AppConfig config, DataSource source, Vertx vertx, Path staticPath, Map<String, IStorageProvider> providerMap) {
+    public EzShareController(AppConfig config, DataSource source, Vertx vertx, Path staticPath, Map<String, IStorageProvider> providerMap, ExpiryEngine expiry, TieringEngine tiering, QuotaManager quota, StaticPages pages, QrCodes qrCodes, IdAllocator ids, ResumableUploads uploads, ClientAddresses clients) {
         this.config = config;
         this.source = source;
         this.vertx = vertx;
         this.staticPath = staticPath;
         this.providerMap = providerMap;
-        templatePaste = Files.readString(staticPath.resolve("paste.html")).split("\\{template}");
-        if (templatePaste.length != 2) {
+        this.expiry = expiry;
+        this.tiering = tiering;
+        this.quota = quota;
+        this.pages = pages;
+        this.qrCodes = qrCodes;
+        this.ids = ids;
+        this.uploads = uploads;
+        this.clients = clients;
+        var template = Files.readString(staticPath.resolve("paste.html")).split("\\{template}");
+        if (template.length != 2) {
             log.warn("You can have only one {template}");
             throw new IllegalStateException();
         }
+        // encoded once, they are written as they are for every paste.
+        templatePaste = new Buffer[]{Buffer.buffer(template[0]), Buffer.buffer(template[1])};
     }
 
     @Override
@@ -81,79 +125,150 @@ public class EzShareController implements MainController {
         }
         // if curl or browser?
         var ua = routingContext.request().getHeader("User-Agent");
-        if (ua == null || ua.contains("curl")) {
-            // greeting with motd for curl;
-            vertx.fileSystem().readFile(staticPath.resolve("motd.txt").toString())
-                    .onSuccess(routingContext::end)
-                    .onFailure(fail -> {
-                        routingContext.response().setStatusCode(500);
-                        log.warn("Cannot load motd.txt: {0}", fail);
-                    });
+        // greeting with motd for curl;
+        var name = ua == null || ua.contains("curl") ? "motd.txt" : "index.html";
+        var page = pages.get(name);
+        var response = routingContext.response();
+        if (page == null) {
+            response.setStatusCode(500).end("Cannot load " + name);
+            return;
+        }
+        response.putHeader("Vary", "Accept-Encoding")
+                .putHeader("Cache-Control", "no-cache")
+                .putHeader("Content-Type", page.contentType());
+        var gzip = page.gzipped().length() < page.content().length()
+                && ContentEncoding.accepts(routingContext.request().getHeader("Accept-Encoding"), ContentEncoding.GZIP);
+        response.putHeader("ETag", gzip ? page.gzipEtag() : page.etag());
+        if (page.notModified(routingContext.request().getHeader("If-None-Match"))) {
+            response.setStatusCode(304).end();
+        } else if (gzip) {
+            response.putHeader("Content-Encoding", ContentEncoding.GZIP).end(page.gzipped());
         } else {
-            // common browsers
-            vertx.fileSystem().readFile(staticPath.resolve("index.html").toString())
-                    .onSuccess(routingContext::end)
-                    .onFailure(fail -> {
-                        routingContext.response().setStatusCode(500);
-                        log.warn("Cannot load index.html: {0}", fail);
-                    });
+            response.end(page.content());
         }
     }
 
-    private void handleFileUpload(RoutingContext routingContext, FileUpload fileUpload) {
-        if (config.getBannedMimeTypes().contains(fileUpload.contentType())) {
-            routingContext.end("Banned MIME type.");
+    private void handleFileUpload(RoutingContext routingContext, HttpServerFileUpload fileUpload, Future<Void> requestEnded) {
+        var expectedSize = contentLength(routingContext);
+        log.info("Receiving File: " + fileUpload.filename() + " (" + Math.max(expectedSize, 0) / 1024 / 1024 + "M), " + fileUpload.contentType());
+        var storageType = StoragePolicy.storageTypeFor(config, expectedSize);
+        var provider = providerMap.get(storageType);
+        var ip = clients.of(routingContext.request());
+        QuotaManager.Reservation reservation;
+        try {
+            reservation = quota.reserve(storageType, ip, expectedSize);
+        } catch (QuotaExceededException e) {
+            rejectUpload(routingContext, e.getStatusCode(), e.getMessage());
             return;
         }
-        log.info("Receiving File: " + fileUpload.fileName() + " (" + fileUpload.size() / 1024 / 1024 + "M), " + fileUpload.contentType());
-        //routingContext.request().pause();
-        var provider = providerMap.get(config.getDefaultStoreType());
-        var id = RandomHelper.randomString();
+        var allocated = ids.next();
         var time = System.currentTimeMillis();
-        provider.store(routingContext, fileUpload, it -> {
-            it.onFailure(msg -> {
-                routingContext.end(msg.getMessage());
-            }).onSuccess(identifier -> {
-                log.info("File " + fileUpload.fileName() + " (" + fileUpload.contentType() + ")" + " is saved! Took " + (System.currentTimeMillis() - time) / 1000 + "s");
-                var fr = new FileRecord(
-                        id,
-                        LocalDateTime.now(),
-                        identifier,
-                        fileUpload.size(),
-                        fileUpload.fileName(),
-                        fileUpload.contentType(),
-                        routingContext.request().localAddress().hostAddress(),
-                        config.getDefaultStoreType()
-                );
-                source.addFileRecord(fr).onSuccess(ignored -> {
-                    String qrcode;
-                    boolean viewPaste = false;
-                    if (fileUpload.size() < 1024 * 1024) {
-                        routingContext.response().putHeader("X-View-URL", config.getBaseUrl() + "/paste/" + id);
-                        try {
-                            qrcode = QRCode.from(config.getBaseUrl() + "/paste/" + id + "\n").generateHalfBlock();
-                        } catch (WriterException e) {
-                            qrcode = "";
-                        }
-                        viewPaste = true;
-                    } else {
-                        try {
-                            qrcode = QRCode.from(config.getBaseUrl() + "/files/" + id).generateHalfBlock();
-                        } catch (WriterException e) {
-                            qrcode = "";
-                        }
-                    }
+        var encoding = StoragePolicy.encodingFor(config, fileUpload.contentType());
+        var content = new SizeLimitedReadStream(fileUpload, config.getMaxBodySize() * 1024);
+        var stored = provider.store(ContentEncoding.encode(content, encoding), expectedSize);
+        CompositeFuture.all(stored, requestEnded, allocated).onComplete(ar -> {
+            var fr = stored.succeeded() ? new FileRecord(
+                    allocated.result(),
+                    LocalDateTime.now(),
+                    stored.result(),
+                    content.bytesRead(),
+                    fileUpload.filename(),
+                    fileUpload.contentType(),
+                    ip,
+                    storageType,
+                    encoding
+            ) : null;
+            if (ar.failed()) {
+                reservation.release();
+                if (fr != null) provider.delete(fr);
+                if (ar.cause() instanceof SizeLimitedReadStream.LimitExceededException) {
+                    rejectUpload(routingContext, 413, "File is too large.");
+                    return;
+                }
+                routingContext.end(ar.cause().getMessage());
+                return;
+            }
+            log.info("File " + fileUpload.filename() + " (" + fileUpload.contentType() + ")" + " is saved! Took " + (System.currentTimeMillis() - time) / 1000 + "s");
+            if (routingContext.<Boolean>get(CTX_MULTIPLE_FILES, false)) {
+                reservation.release();
+                provider.delete(fr);
+                routingContext.end("You can only upload a file at a time");
+                return;
+            }
+            addFileRecord(routingContext, fr, reservation, provider);
+        });
+    }
 
-                    routingContext.end("Download: " + config.getBaseUrl() + "/files/" + id +
-                            (viewPaste ? ("\nView Paste: " + config.getBaseUrl() + "/paste/" + id + "\n") : "\n")
-                            + qrcode+"\n");
-                }).onFailure(throwable -> {
-                    routingContext.end("Cannot insert record into database. Upload failed");
-                });
-            });
+    /**
+     * Saves the record of stored content and answers with its urls, the content is removed again if that fails.
+     */
+    private void addFileRecord(RoutingContext routingContext, FileRecord fr, QuotaManager.Reservation reservation, IStorageProvider provider) {
+        var id = fr.id();
+        // rendered on a worker while the record is being inserted.
+        var qrcode = routingContext.request().headers().contains(SKIP_QR_HEADER)
+                ? Future.succeededFuture("")
+                : qrCodes.render(qrTextOf(fr)).otherwise("");
+        source.addFileRecord(fr).onSuccess(it -> {
+            reservation.commit(fr.size());
+            expiry.schedule(fr);
+            boolean viewPaste = fr.size() <= PASTE_SIZE_LIMIT;
+            if (viewPaste) {
+                routingContext.response().putHeader("X-View-URL", config.getBaseUrl() + "/paste/" + id);
+            }
+            routingContext.response().putHeader("X-QR-URL", config.getBaseUrl() + "/qr/" + id);
+            qrcode.onComplete(qr -> routingContext.end("Download: " + config.getBaseUrl() + "/files/" + id +
+                    (viewPaste ? ("\nView Paste: " + config.getBaseUrl() + "/paste/" + id + "\n") : "\n")
+                    + qr.result() + "\n"));
+        }).onFailure(throwable -> {
+            reservation.release();
+            provider.delete(fr);
+            routingContext.end("Cannot insert record into database. Upload failed");
         });
     }
 
+    private String qrTextOf(FileRecord fr) {
+        return fr.size() <= PASTE_SIZE_LIMIT
+                ? config.getBaseUrl() + "/paste/" + fr.id() + "\n"
+                : config.getBaseUrl() + "/files/" + fr.id();
+    }
+
+    @Override
+    public void handleQrCode(RoutingContext routingContext) {
+        var id = routingContext.pathParam("id");
+        source.fetchFileById(id, ftr -> ftr
+                .compose(fr -> qrCodes.render(qrTextOf(fr)))
+                .onSuccess(qr -> {
+                    routingContext.response().putHeader("Content-Type", "text/plain; charset=utf-8");
+                    routingContext.end(qr + "\n");
+                }).onFailure(t -> {
+                    routingContext.response().setStatusCode(404);
+                    routingContext.end(t.getMessage());
+                }));
+    }
+
+    private void rejectUpload(RoutingContext routingContext, int status, String message) {
+        // the rest of body is still on its way, don't wait for it.
+        routingContext.response().setStatusCode(status);
+        EarlyResponse.end(routingContext, message);
+    }
+
+    private static long contentLength(RoutingContext routingContext) {
+        return longHeader(routingContext, "Content-Length");
+    }
+
+    /**
+     * @return -1 if it's missing or not a number.
+     */
+    private static long longHeader(RoutingContext routingContext, String name) {
+        var header = routingContext.request().getHeader(name);
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     @Override
     public void handleRedirection(RoutingContext routingContext) {
         var id = routingContext.pathParam("id");
@@ -190,6 +305,7 @@ public class EzShareController implements MainController {
                     routingContext.end("This file cannot be downloaded, please contact admin.");
                     return;
                 }
+                tiering.touch(fr);
                 provider.download(fr, routingContext);
             }).onFailure(er -> {
                 // probably not found.
@@ -202,15 +318,199 @@ public class EzShareController implements MainController {
 
     @Override
     public void handleUpload(RoutingContext routingContext) {
-        if (routingContext.fileUploads().size() != 0) {
-            if (routingContext.fileUploads().size() != 1) {
-                routingContext.end("You can only upload a file at a time");
+        var request = routingContext.request();
+        var expectedSize = contentLength(routingContext);
+        if (expectedSize > config.getMaxBodySize() * 1024) {
+            rejectUpload(routingContext, 413, "File is too large.");
+            return;
+        }
+        var requestEnded = Promise.<Void>promise();
+        request.setExpectMultipart(true);
+        request.endHandler(requestEnded::tryComplete);
+        request.exceptionHandler(requestEnded::tryFail);
+        request.uploadHandler(fileUpload -> {
+            if (routingContext.get(CTX_UPLOAD_RECEIVED, false)) {
+                // only the first file is accepted, drop the rest.
+                routingContext.put(CTX_MULTIPLE_FILES, true);
+                fileUpload.handler(ignored -> {});
                 return;
             }
-            handleFileUpload(routingContext, routingContext.fileUploads().get(0));
+            routingContext.put(CTX_UPLOAD_RECEIVED, true);
+            fileUpload.pause();
+            if (config.getBannedMimeTypes().contains(fileUpload.contentType())) {
+                rejectUpload(routingContext, 415, "Banned MIME type.");
+                return;
+            }
+            handleFileUpload(routingContext, fileUpload, requestEnded.future());
+        });
+        requestEnded.future().onSuccess(it -> {
+            if (!routingContext.get(CTX_UPLOAD_RECEIVED, false)) {
+                routingContext.response().setStatusCode(400);
+                routingContext.end("No file is found in the request.");
+            }
+        });
+    }
+
+    @Override
+    public void handleCreateUpload(RoutingContext routingContext) {
+        var request = routingContext.request();
+        var length = longHeader(routingContext, "Upload-Length");
+        if (length < 0) {
+            routingContext.response().setStatusCode(400);
+            routingContext.end("Upload-Length is missing.");
             return;
         }
-        // url
+        var mimeType = Objects.requireNonNullElse(request.getHeader("Upload-Content-Type"), "application/octet-stream");
+        if (config.getBannedMimeTypes().contains(mimeType)) {
+            routingContext.response().setStatusCode(415);
+            routingContext.end("Banned MIME type.");
+            return;
+        }
+        var fileName = request.getHeader("Upload-Filename");
+        try {
+            fileName = fileName == null ? "file" : URLDecoder.decode(fileName, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // not percent-encoded, taken as it is.
+        }
+        log.info("Receiving File in chunks: " + fileName + " (" + length / 1024 / 1024 + "M), " + mimeType);
+        uploads.create(fileName, mimeType, clients.of(request), length).onSuccess(session -> {
+            var location = config.getBaseUrl() + "/uploads/" + session.getId();
+            routingContext.response().setStatusCode(201)
+                    .putHeader("Location", location)
+                    .putHeader("Upload-Offset", "0")
+                    .putHeader("Upload-Expires", uploadExpires(session));
+            routingContext.end(location + "\n");
+        }).onFailure(t -> failUpload(routingContext, t));
+    }
+
+    @Override
+    public void handleUploadChunk(RoutingContext routingContext) {
+        var request = routingContext.request();
+        // nothing is read until the chunk has somewhere to go.
+        request.pause();
+        var session = uploads.get(routingContext.pathParam("sid"));
+        if (session == null) {
+            rejectUpload(routingContext, 404, "No such upload.");
+            return;
+        }
+        var offset = longHeader(routingContext, "Upload-Offset");
+        if (offset < 0) {
+            rejectUpload(routingContext, 400, "Upload-Offset is missing.");
+            return;
+        }
+        var size = contentLength(routingContext);
+        if (size < 0) {
+            rejectUpload(routingContext, 411, "Chunks need a Content-Length.");
+            return;
+        }
+        uploads.write(session, offset, size, request).onSuccess(uploaded -> {
+            routingContext.response().setStatusCode(204)
+                    .putHeader("Upload-Offset", String.valueOf(uploaded))
+                    .putHeader("Upload-Expires", uploadExpires(session));
+            routingContext.end();
+        }).onFailure(t -> {
+            // where to resume from.
+            routingContext.response().putHeader("Upload-Offset", String.valueOf(session.offset()));
+            failUpload(routingContext, t);
+        });
+    }
+
+    @Override
+    public void handleUploadStatus(RoutingContext routingContext) {
+        var session = uploads.get(routingContext.pathParam("sid"));
+        var response = routingContext.response().putHeader("Cache-Control", "no-store");
+        if (session == null) {
+            response.setStatusCode(404);
+            routingContext.end("No such upload.");
+            return;
+        }
+        var offset = session.offset();
+        response.putHeader("Upload-Offset", String.valueOf(offset))
+                .putHeader("Upload-Length", String.valueOf(session.getLength()))
+                .putHeader("Upload-Ranges", session.ranges())
+                .putHeader("Upload-Expires", uploadExpires(session));
+        routingContext.end(offset + "/" + session.getLength() + "\n");
+    }
+
+    @Override
+    public void handleFinishUpload(RoutingContext routingContext) {
+        var session = uploads.get(routingContext.pathParam("sid"));
+        if (session == null) {
+            routingContext.response().setStatusCode(404);
+            routingContext.end("No such upload.");
+            return;
+        }
+        var time = System.currentTimeMillis();
+        var provider = providerMap.get(session.getStorageType());
+        var stored = uploads.complete(session);
+        var allocated = ids.next();
+        CompositeFuture.all(stored, allocated).onComplete(ar -> {
+            var fr = stored.succeeded() ? new FileRecord(
+                    allocated.result(),
+                    LocalDateTime.now(),
+                    stored.result(),
+                    session.getLength(),
+                    session.getFileName(),
+                    session.getMimeType(),
+                    session.getIp(),
+                    session.getStorageType(),
+                    session.getEncoding()
+            ) : null;
+            if (ar.failed()) {
+                if (fr != null) {
+                    // a failed completion has removed the session already.
+                    session.getReservation().release();
+                    provider.delete(fr);
+                }
+                failUpload(routingContext, ar.cause());
+                return;
+            }
+            log.info("File " + fr.fileName() + " (" + fr.mimeType() + ")" + " is saved! Took " + (System.currentTimeMillis() - time) + "ms to finish");
+            addFileRecord(routingContext, fr, session.getReservation(), provider);
+        });
+    }
+
+    @Override
+    public void handleCancelUpload(RoutingContext routingContext) {
+        var session = uploads.get(routingContext.pathParam("sid"));
+        if (session == null) {
+            routingContext.response().setStatusCode(404);
+            routingContext.end("No such upload.");
+            return;
+        }
+        uploads.cancel(session).onSuccess(it -> {
+            routingContext.response().setStatusCode(204);
+            routingContext.end();
+        }).onFailure(t -> failUpload(routingContext, t));
+    }
+
+    private String uploadExpires(UploadSession session) {
+        return HttpRanges.httpDate(Instant.ofEpochMilli(uploads.expiresAt(session)).atZone(ZoneId.systemDefault()));
+    }
+
+    private void failUpload(RoutingContext routingContext, Throwable t) {
+        int status;
+        if (t instanceof UploadException e) {
+            status = e.getStatusCode();
+        } else if (t instanceof QuotaExceededException e) {
+            status = e.getStatusCode();
+        } else if (t instanceof SizeLimitedReadStream.LimitExceededException) {
+            status = 413;
+        } else {
+            status = 500;
+            log.warn("Resumable upload failed", t);
+        }
+        var message = status == 500 ? "Upload failed." : t.getMessage();
+        if (routingContext.request().isEnded()) {
+            routingContext.response().setStatusCode(status);
+            routingContext.end(message);
+        } else {
+            rejectUpload(routingContext, status, message);
+        }
+    }
+
+    @Override
+    public void handleShortenUrl(RoutingContext routingContext) {
         var body = routingContext.body();
         if (!body.available()) {
             routingContext.reroute(HttpMethod.GET, "/");
@@ -227,15 +527,17 @@ public class EzShareController implements MainController {
             routingContext.end("URL is not valid.");
             return;
         }
-        var id = RandomHelper.randomString();
-        //check URL
-        source.addUrlRecord(new URLRecord(id, LocalDateTime.now(), url, routingContext.request().localAddress().host()))
+        ids.next().compose(id -> {
+                    var ur = new URLRecord(id, LocalDateTime.now(), url, clients.of(routingContext.request()));
+                    return source.addUrlRecord(ur).map(ur);
+                })
                 .onFailure(t -> {
                     routingContext.end("Internal Server Error.");
                     log.warn("Can't shorten a url: {}, {}", url, t);
-                }).onSuccess(it -> {
+                }).onSuccess(ur -> {
+                    expiry.schedule(ur);
                     routingContext.response().setStatusCode(201);
-                    routingContext.end(config.getBaseUrl() + "/" + id);
+                    routingContext.end(config.getBaseUrl() + "/" + ur.id());
                 });
     }
 
@@ -247,11 +549,11 @@ public class EzShareController implements MainController {
             ctx.end("Unauthorized. You should provide a password in Bearer scheme");
             return;
         }
-        var sp = data.split(" ");
-        if (sp.length != 2 || !"Bearer".equals(sp[0])) {
+        var passwd = bearerToken(data);
+        if (passwd == null) {
             ctx.end("Unauthorized. You should provide a password in Bearer scheme");
+            return;
         }
-        var passwd = sp[1];
         if (!config.getPasswords().contains(passwd)) {
             ctx.end("Incorrect Password");
         } else {
@@ -259,6 +561,14 @@ public class EzShareController implements MainController {
         }
     }
 
+    /**
+     * @return the credentials of an {@code Authorization: Bearer} header, null if it's in another scheme.
+     */
+    static String bearerToken(String header) {
+        var sp = header.split(" ");
+        return sp.length == 2 && "Bearer".equals(sp[0]) ? sp[1] : null;
+    }
+
     @Override
     public void handleShowPaste(RoutingContext routingContext) {
         var id = routingContext.pathParam("id");
@@ -268,23 +578,27 @@ public class EzShareController implements MainController {
         }
         source.fetchFileById(id, ftr -> {
             ftr.onSuccess(fr -> {
-                if (fr.size() > 1024 * 1024 * 1024) {
-                    // 1M
+                if (fr.size() > PASTE_SIZE_LIMIT) {
                     printFailPaste(routingContext);
                     return;
                 }
-                routingContext.response().setStatusCode(200);
-                //routingContext.response().putHeader("Content-Length", String.valueOf(fr.size()+templatePaste[0].length()+templatePaste[1].length()));
-                routingContext.response().setChunked(true);
-                providerMap.get(fr.storageType()).read(fr).onSuccess(buf -> {
-                    routingContext.response().write(templatePaste[0]);
-                    buf.handler(it -> {
-                        routingContext.response().write(it);
-                        routingContext.response().end(templatePaste[1]);
-                    });
-                }).onFailure(it -> {
-                    it.printStackTrace();
-                    ;
+                tiering.touch(fr);
+                providerMap.get(fr.storageType()).read(fr).onSuccess(stream -> {
+                    var content = new HtmlEscapeReadStream(ContentEncoding.decode(stream, fr.encoding()));
+                    var response = routingContext.response();
+                    // the escaped length is unknown until the content has been read.
+                    response.setStatusCode(200)
+                            .setChunked(true)
+                            .putHeader("Content-Type", "text/html; charset=utf-8");
+                    response.write(templatePaste[0]);
+                    content.pipe().endOnComplete(false).to(response)
+                            .compose(it -> response.end(templatePaste[1]))
+                            .onFailure(t -> {
+                                log.warn("Cannot render paste {}", fr.id(), t);
+                                response.reset();
+                            });
+                }).onFailure(t -> {
+                    log.warn("Cannot read paste {}", fr.id(), t);
                     printFailPaste(routingContext);
                 });
             }).onFailure(tr -> {
@@ -294,12 +608,13 @@ public class EzShareController implements MainController {
     }
 
     private void printFailPaste(RoutingContext routingContext) {
-        routingContext.response().setStatusCode(404);
-        var msg = "**The requested paste is not exists or it is too big to preview.**";
-        routingContext.response().putHeader("Content-Length", String.valueOf(templatePaste[0].length() + templatePaste[1].length() + msg.length()));
-        routingContext.response().write(templatePaste[0]);
-        routingContext.response().write(msg);
-        routingContext.response().end(templatePaste[1]);
+        var response = routingContext.response();
+        response.setStatusCode(404)
+                .putHeader("Content-Type", "text/html; charset=utf-8")
+                .putHeader("Content-Length", String.valueOf(templatePaste[0].length() + FAIL_PASTE.length() + templatePaste[1].length()));
+        response.write(templatePaste[0]);
+        response.write(FAIL_PASTE);
+        response.end(templatePaste[1]);
     }
 
     private static boolean validUrl(String url) {
@@ -36,7 +36,21 @@ public interface MainController {
 
     void handleUpload(RoutingContext routingContext);
 
+    void handleCreateUpload(RoutingContext routingContext);
+
+    void handleUploadChunk(RoutingContext routingContext);
+
+    void handleUploadStatus(RoutingContext routingContext);
+
+    void handleFinishUpload(RoutingContext routingContext);
+
+    void handleCancelUpload(RoutingContext routingContext);
+
+    void handleShortenUrl(RoutingContext routingContext);
+
     void authPass(RoutingContext routingContext);
 
     void handleShowPaste(RoutingContext routingContext);
+
+    void handleQrCode(RoutingContext routingContext);
 }
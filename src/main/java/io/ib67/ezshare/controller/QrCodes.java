@@ -0,0 +1,63 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.controller;
+
+import com.google.zxing.WriterException;
+import io.github.shashankn.qrterminal.QRCode;
+import io.ib67.ezshare.util.LruCache;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+/**
+ * Renders QR codes for terminals on worker threads and remembers the recent ones.
+ * Safe to share between event loops.
+ */
+public final class QrCodes {
+    private final Vertx vertx;
+    private final LruCache<String, String> cache;
+    private final long ttlMillis;
+
+    public QrCodes(Vertx vertx, int cacheSize, long ttlMillis) {
+        this.vertx = vertx;
+        this.cache = new LruCache<>(cacheSize);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the QR code as half-block characters, completed on the caller's context.
+     */
+    public Future<String> render(String text) {
+        var cached = cache.get(text);
+        if (cached != null) return Future.succeededFuture(cached);
+        return vertx.<String>executeBlocking(promise -> {
+            try {
+                promise.complete(QRCode.from(text).generateHalfBlock());
+            } catch (WriterException e) {
+                promise.fail(e);
+            }
+        }, false).onSuccess(it -> cache.put(text, it, ttlMillis));
+    }
+}
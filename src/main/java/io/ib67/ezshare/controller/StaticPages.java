@@ -0,0 +1,153 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.controller;
+
+import io.vertx.core.buffer.Buffer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the pages under the static directory in memory, together with their gzip variant and a strong ETag.
+ * Pages are reloaded when they are changed on disk. Lookups are safe from any event loop.
+ */
+@Slf4j
+public final class StaticPages {
+    private final Path directory;
+    private final Map<String, String> contentTypes;
+    private final Map<String, Page> pages = new ConcurrentHashMap<>();
+    private WatchService watchService;
+
+    /**
+     * @param contentTypes file names to serve, mapped to their content type.
+     */
+    public StaticPages(Path directory, Map<String, String> contentTypes) {
+        this.directory = directory;
+        this.contentTypes = Map.copyOf(contentTypes);
+    }
+
+    /**
+     * Loads every page and starts watching the directory for changes.
+     */
+    public void start() throws IOException {
+        for (String name : contentTypes.keySet()) {
+            reload(name);
+        }
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        var watcher = new Thread(this::watch, "ezshare-static-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public void stop() throws IOException {
+        if (watchService != null) watchService.close();
+    }
+
+    /**
+     * @return the page, or null if it couldn't be loaded.
+     */
+    public Page get(String name) {
+        return pages.get(name);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                for (var event : key.pollEvents()) {
+                    if (event.context() instanceof Path path && contentTypes.containsKey(path.toString())) {
+                        reload(path.toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down.
+        }
+    }
+
+    private void reload(String name) {
+        try {
+            var bytes = Files.readAllBytes(directory.resolve(name));
+            var etag = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 16);
+            var previous = pages.put(name, new Page(
+                    Buffer.buffer(bytes),
+                    Buffer.buffer(gzip(bytes)),
+                    "\"" + etag + "\"",
+                    contentTypes.get(name)
+            ));
+            if (previous != null) log.info("Reloaded " + name);
+        } catch (IOException e) {
+            // keep serving the last good version, an editor may still be writing it.
+            log.warn("Cannot load static page {}: {}", name, e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        var out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An immutable snapshot of a page. The buffers may be written to many responses, but never modified.
+     */
+    public record Page(Buffer content, Buffer gzipped, String etag, String contentType) {
+        public String gzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+
+        /**
+         * Tells whether an {@code If-None-Match} header matches any variant of the page.
+         */
+        public boolean notModified(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag())) return true;
+            }
+            return false;
+        }
+    }
+}
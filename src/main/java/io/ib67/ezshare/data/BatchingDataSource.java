@@ -0,0 +1,221 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.SequenceRange;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Groups single-record writes to another {@link DataSource}.
+ * Inserts and deletes arriving within {@code write-flush-millis} of each other, or {@code write-batch-size} of them,
+ * are written in one transaction. Every caller still gets its own result: when a batch fails,
+ * its records are written one by one, so only the offending one fails.
+ */
+@Slf4j
+public class BatchingDataSource implements DataSource {
+    private final Vertx vertx;
+    private final DataSource delegate;
+    private final int batchSize;
+    private final long flushMillis;
+    private final Batch<FileRecord> fileInserts;
+    private final Batch<URLRecord> urlInserts;
+    private final Batch<FileRecord> fileDeletes;
+    private final Batch<URLRecord> urlDeletes;
+
+    public BatchingDataSource(Vertx vertx, DataSource delegate, AppConfig config) {
+        this.vertx = vertx;
+        this.delegate = delegate;
+        this.batchSize = Math.max(config.getWriteBatchSize(), 1);
+        this.flushMillis = Math.max(config.getWriteFlushMillis(), 1);
+        this.fileInserts = new Batch<>(delegate::addFileRecords, delegate::addFileRecord);
+        this.urlInserts = new Batch<>(delegate::addUrlRecords, delegate::addUrlRecord);
+        this.fileDeletes = new Batch<>(frs -> delegate.removeFileRecords(frs.stream().map(FileRecord::id).toList()), delegate::removeFileRecord);
+        this.urlDeletes = new Batch<>(urs -> delegate.removeURLRecords(urs.stream().map(URLRecord::id).toList()), delegate::removeURLRecord);
+    }
+
+    @Override
+    public Future<?> addFileRecord(FileRecord fr) {
+        return fileInserts.add(fr);
+    }
+
+    @Override
+    public Future<?> addUrlRecord(URLRecord ur) {
+        return urlInserts.add(ur);
+    }
+
+    @Override
+    public Future<?> removeFileRecord(FileRecord fr) {
+        return fileDeletes.add(fr);
+    }
+
+    @Override
+    public Future<?> removeURLRecord(URLRecord ur) {
+        return urlDeletes.add(ur);
+    }
+
+    @Override
+    public Future<?> addFileRecords(List<FileRecord> frs) {
+        return delegate.addFileRecords(frs);
+    }
+
+    @Override
+    public Future<?> addUrlRecords(List<URLRecord> urs) {
+        return delegate.addUrlRecords(urs);
+    }
+
+    @Override
+    public void fetchFileById(String id, Consumer<Future<FileRecord>> callback) {
+        delegate.fetchFileById(id, callback);
+    }
+
+    @Override
+    public void fetchURLById(String id, Consumer<Future<URLRecord>> callback) {
+        delegate.fetchURLById(id, callback);
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesByIds(List<String> ids) {
+        return delegate.fetchFilesByIds(ids);
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFiles(String afterId, int limit) {
+        return delegate.fetchFiles(afterId, limit);
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLs(String afterId, int limit) {
+        return delegate.fetchURLs(afterId, limit);
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, FileRecord after, int limit) {
+        return delegate.fetchFilesCreatedBefore(time, after, limit);
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLsCreatedBefore(LocalDateTime time, int limit) {
+        return delegate.fetchURLsCreatedBefore(time, limit);
+    }
+
+    @Override
+    public Future<?> removeFileRecords(List<String> ids) {
+        return delegate.removeFileRecords(ids);
+    }
+
+    @Override
+    public Future<?> removeURLRecords(List<String> ids) {
+        return delegate.removeURLRecords(ids);
+    }
+
+    @Override
+    public Future<Boolean> updateFileLocation(FileRecord fr, String storageType, String fileIdentifier, String encoding) {
+        return delegate.updateFileLocation(fr, storageType, fileIdentifier, encoding);
+    }
+
+    @Override
+    public Future<SequenceRange> reserveSequence(String name, long count) {
+        return delegate.reserveSequence(name, count);
+    }
+
+    private final class Batch<T> {
+        private final Function<List<T>, Future<?>> batchWriter;
+        private final Function<T, Future<?>> singleWriter;
+        private List<Pending<T>> pending = new ArrayList<>(); // guarded by this
+        private boolean scheduled; // guarded by this
+
+        private Batch(Function<List<T>, Future<?>> batchWriter, Function<T, Future<?>> singleWriter) {
+            this.batchWriter = batchWriter;
+            this.singleWriter = singleWriter;
+        }
+
+        private Future<Void> add(T item) {
+            var promise = Promise.<Void>promise();
+            List<Pending<T>> full = null;
+            synchronized (this) {
+                pending.add(new Pending<>(item, promise, Vertx.currentContext()));
+                if (pending.size() >= batchSize) {
+                    full = pending;
+                    pending = new ArrayList<>();
+                } else if (!scheduled) {
+                    scheduled = true;
+                    vertx.setTimer(flushMillis, id -> flushScheduled());
+                }
+            }
+            if (full != null) write(full);
+            return promise.future();
+        }
+
+        private void flushScheduled() {
+            List<Pending<T>> due;
+            synchronized (this) {
+                scheduled = false;
+                due = pending;
+                pending = new ArrayList<>();
+            }
+            if (!due.isEmpty()) write(due);
+        }
+
+        private void write(List<Pending<T>> due) {
+            batchWriter.apply(due.stream().map(Pending::item).toList()).onComplete(ar -> {
+                if (ar.succeeded() || due.size() == 1) {
+                    due.forEach(it -> it.complete(ar.mapEmpty()));
+                    return;
+                }
+                // one bad record rolls back the whole transaction, find out which.
+                log.debug("A batch of {} writes failed, retrying them one by one: {}", due.size(), ar.cause().getMessage());
+                due.forEach(it -> singleWriter.apply(it.item()).onComplete(single -> it.complete(single.mapEmpty())));
+            });
+        }
+    }
+
+    private record Pending<T>(T item, Promise<Void> promise, Context context) {
+        /**
+         * Completes on the caller's context, the write may have finished on another event loop.
+         */
+        void complete(AsyncResult<Void> result) {
+            if (context == null || context == Vertx.currentContext()) {
+                promise.handle(result);
+            } else {
+                context.runOnContext(v -> promise.handle(result));
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.SequenceRange;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.ib67.ezshare.util.LruCache;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Caches lookups of another {@link DataSource} in memory. Unknown ids are remembered for a short while too,
+ * so that a flood of requests for a dead link won't reach the database either.
+ * Concurrent misses of the same id share one query.
+ */
+public class CachingDataSource implements DataSource {
+    private final DataSource delegate;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LruCache<String, Optional<FileRecord>> files;
+    private final LruCache<String, Optional<URLRecord>> urls;
+    private final Map<String, Future<FileRecord>> pendingFiles = new ConcurrentHashMap<>();
+    private final Map<String, Future<URLRecord>> pendingUrls = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CachingDataSource(DataSource delegate, AppConfig config) {
+        this.delegate = delegate;
+        this.ttlMillis = config.getCacheTtlSeconds() * 1000L;
+        this.negativeTtlMillis = config.getNegativeCacheTtlSeconds() * 1000L;
+        this.files = new LruCache<>(config.getCacheSize());
+        this.urls = new LruCache<>(config.getCacheSize());
+    }
+
+    @Override
+    public void fetchFileById(String id, Consumer<Future<FileRecord>> callback) {
+        fetch(id, files, pendingFiles, delegate::fetchFileById, "Cannot find a file with this id", callback);
+    }
+
+    @Override
+    public void fetchURLById(String id, Consumer<Future<URLRecord>> callback) {
+        fetch(id, urls, pendingUrls, delegate::fetchURLById, "Cannot find a url with this id", callback);
+    }
+
+    private <T> void fetch(String id,
+                           LruCache<String, Optional<T>> cache,
+                           Map<String, Future<T>> pending,
+                           BiConsumer<String, Consumer<Future<T>>> loader,
+                           String notFound,
+                           Consumer<Future<T>> callback) {
+        var cached = cache.get(id);
+        if (cached != null) {
+            if (cached.isPresent()) {
+                hits.increment();
+                callback.accept(Future.succeededFuture(cached.get()));
+            } else {
+                negativeHits.increment();
+                callback.accept(Future.failedFuture(new NoSuchRecordException(notFound)));
+            }
+            return;
+        }
+        misses.increment();
+        var promise = Promise.<T>promise();
+        var inflight = pending.putIfAbsent(id, promise.future());
+        if (inflight != null) {
+            // the query may complete on another event loop, come back to ours.
+            var context = Vertx.currentContext();
+            inflight.onComplete(ar -> {
+                Future<T> result = ar.succeeded() ? Future.succeededFuture(ar.result()) : Future.failedFuture(ar.cause());
+                if (context == null || context == Vertx.currentContext()) {
+                    callback.accept(result);
+                } else {
+                    context.runOnContext(v -> callback.accept(result));
+                }
+            });
+            return;
+        }
+        loader.accept(id, result -> {
+            // an invalidation while loading has dropped the pending load, the result may be stale already.
+            if (pending.remove(id, promise.future())) {
+                result.onSuccess(record -> cache.put(id, Optional.of(record), ttlMillis))
+                        .onFailure(t -> {
+                            if (t instanceof NoSuchRecordException) {
+                                cache.put(id, Optional.empty(), negativeTtlMillis);
+                            }
+                        });
+            }
+            promise.handle(result);
+            callback.accept(result);
+        });
+    }
+
+    /**
+     * Drops the cached entry and the load in flight, if any, which won't be cached once it completes.
+     */
+    private void invalidateFile(String id) {
+        files.invalidate(id);
+        pendingFiles.remove(id);
+    }
+
+    private void invalidateUrl(String id) {
+        urls.invalidate(id);
+        pendingUrls.remove(id);
+    }
+
+    @Override
+    public Future<?> addFileRecord(FileRecord fr) {
+        invalidateFile(fr.id()); // drop the negative entry, if any
+        return delegate.addFileRecord(fr).onComplete(it -> invalidateFile(fr.id()));
+    }
+
+    @Override
+    public Future<?> addUrlRecord(URLRecord ur) {
+        invalidateUrl(ur.id());
+        return delegate.addUrlRecord(ur).onComplete(it -> invalidateUrl(ur.id()));
+    }
+
+    @Override
+    public Future<?> removeFileRecord(FileRecord fr) {
+        invalidateFile(fr.id());
+        return delegate.removeFileRecord(fr).onComplete(it -> invalidateFile(fr.id()));
+    }
+
+    @Override
+    public Future<?> removeURLRecord(URLRecord ur) {
+        invalidateUrl(ur.id());
+        return delegate.removeURLRecord(ur).onComplete(it -> invalidateUrl(ur.id()));
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesByIds(List<String> ids) {
+        return delegate.fetchFilesByIds(ids);
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFiles(String afterId, int limit) {
+        return delegate.fetchFiles(afterId, limit);
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLs(String afterId, int limit) {
+        return delegate.fetchURLs(afterId, limit);
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, FileRecord after, int limit) {
+        return delegate.fetchFilesCreatedBefore(time, after, limit);
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLsCreatedBefore(LocalDateTime time, int limit) {
+        return delegate.fetchURLsCreatedBefore(time, limit);
+    }
+
+    @Override
+    public Future<?> removeFileRecords(List<String> ids) {
+        ids.forEach(this::invalidateFile);
+        return delegate.removeFileRecords(ids).onComplete(it -> ids.forEach(this::invalidateFile));
+    }
+
+    @Override
+    public Future<?> removeURLRecords(List<String> ids) {
+        ids.forEach(this::invalidateUrl);
+        return delegate.removeURLRecords(ids).onComplete(it -> ids.forEach(this::invalidateUrl));
+    }
+
+    @Override
+    public Future<Boolean> updateFileLocation(FileRecord fr, String storageType, String fileIdentifier, String encoding) {
+        invalidateFile(fr.id());
+        return delegate.updateFileLocation(fr, storageType, fileIdentifier, encoding).onComplete(it -> invalidateFile(fr.id()));
+    }
+
+    @Override
+    public Future<?> addFileRecords(List<FileRecord> frs) {
+        frs.forEach(fr -> invalidateFile(fr.id()));
+        return delegate.addFileRecords(frs).onComplete(it -> frs.forEach(fr -> invalidateFile(fr.id())));
+    }
+
+    @Override
+    public Future<?> addUrlRecords(List<URLRecord> urs) {
+        urs.forEach(ur -> invalidateUrl(ur.id()));
+        return delegate.addUrlRecords(urs).onComplete(it -> urs.forEach(ur -> invalidateUrl(ur.id())));
+    }
+
+    @Override
+    public Future<SequenceRange> reserveSequence(String name, long count) {
+        return delegate.reserveSequence(name, count);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -26,16 +26,21 @@
 package io.ib67.ezshare.data;
 
 import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.SequenceRange;
 import io.ib67.ezshare.data.records.URLRecord;
-import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 
-import java.util.Optional;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public interface DataSource {
     String TABLE_FILE = "t_files";
     String TABLE_URL = "t_urls";
+    String TABLE_SEQUENCE = "t_sequences";
+    int SCAN_PAGE_SIZE = 1000;
     void fetchFileById(String id, Consumer<Future<FileRecord>> callback);
     void fetchURLById(String id, Consumer<Future<URLRecord>> callback);
 
@@ -44,4 +49,68 @@ public interface DataSource {
 
     Future<?> removeFileRecord(FileRecord fr);
     Future<?> removeURLRecord(URLRecord ur);
+
+    /**
+     * Inserts all records in one transaction, nothing is inserted if any of them fails.
+     */
+    Future<?> addFileRecords(List<FileRecord> frs);
+    Future<?> addUrlRecords(List<URLRecord> urs);
+
+    Future<List<FileRecord>> fetchFilesByIds(List<String> ids);
+
+    /**
+     * Pages through all files ordered by id, starting after {@code afterId} (null for the first page).
+     */
+    Future<List<FileRecord>> fetchFiles(String afterId, int limit);
+    Future<List<URLRecord>> fetchURLs(String afterId, int limit);
+
+    /**
+     * @return the oldest records created before the given time.
+     */
+    default Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, int limit) {
+        return fetchFilesCreatedBefore(time, null, limit);
+    }
+
+    /**
+     * Pages through the files created before the given time, oldest first and by id for the same time,
+     * starting after {@code after} (null for the first page).
+     */
+    Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, FileRecord after, int limit);
+
+    Future<List<URLRecord>> fetchURLsCreatedBefore(LocalDateTime time, int limit);
+
+    Future<?> removeFileRecords(List<String> ids);
+    Future<?> removeURLRecords(List<String> ids);
+
+    /**
+     * Points a file at a new location, only if it is still where {@code fr} says.
+     *
+     * @param encoding the content coding of the file at the new location.
+     * @return whether the record is updated.
+     */
+    Future<Boolean> updateFileLocation(FileRecord fr, String storageType, String fileIdentifier, String encoding);
+
+    /**
+     * Reserves the next {@code count} numbers of a named sequence, which is created with a random seed on first use.
+     */
+    Future<SequenceRange> reserveSequence(String name, long count);
+
+    /**
+     * Hands every file to the consumer, page by page.
+     */
+    default Future<Void> forEachFile(Consumer<FileRecord> consumer) {
+        return forEachPage(null, this::fetchFiles, FileRecord::id, consumer);
+    }
+
+    default Future<Void> forEachURL(Consumer<URLRecord> consumer) {
+        return forEachPage(null, this::fetchURLs, URLRecord::id, consumer);
+    }
+
+    private static <T> Future<Void> forEachPage(String afterId, BiFunction<String, Integer, Future<List<T>>> pager, Function<T, String> idOf, Consumer<T> consumer) {
+        return pager.apply(afterId, SCAN_PAGE_SIZE).compose(page -> {
+            page.forEach(consumer);
+            if (page.size() < SCAN_PAGE_SIZE) return Future.succeededFuture();
+            return forEachPage(idOf.apply(page.get(page.size() - 1)), pager, idOf, consumer);
+        });
+    }
 }
@@ -0,0 +1,608 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.SequenceRange;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps the metadata in a memory-mapped append-only log, with an in-memory index from ids to log offsets.
+ * <p>
+ * Lookups are a hash lookup plus decoding a few fields from mapped memory, so they run right on the event loop.
+ * The index keeps the ids in order and by creation time too, so pages and expiry sweeps only decode what they return.
+ * Writes are appended under a lock, which is a memory copy too. Dirty pages are written back every second,
+ * a crash of the process loses nothing, a crash of the machine loses at most that second.
+ * Deleted records are dropped when the log is compacted, which happens once most of it is dead.
+ */
+@Slf4j
+public class LogDataSource implements DataSource {
+    private static final String LOG_FILE = "records.log";
+    private static final byte FILE = 1;
+    private static final byte URL = 2;
+    private static final byte FILE_REMOVED = 3;
+    private static final byte URL_REMOVED = 4;
+    private static final byte SEQUENCE = 5;
+    private static final long FORCE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long COMPACTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Vertx vertx;
+    private final Path directory;
+    private final Map<String, long[]> sequences = new HashMap<>(); // guarded by this, {next, seed}
+    private volatile State state;
+    private long deadBytes; // guarded by this
+    private boolean compacting; // guarded by this
+
+    /**
+     * @param vertx null when used offline, e.g. by {@link LogMigration}.
+     */
+    public LogDataSource(Vertx vertx, Path directory) {
+        this.vertx = vertx;
+        this.directory = directory;
+    }
+
+    /**
+     * Replays the log into the index. Blocking.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        var files = new Index();
+        var urls = new Index();
+        var recordLog = RecordLog.open(directory.resolve(LOG_FILE));
+        recordLog.replay((offset, type, payload) -> deadBytes += apply(recordLog, files, urls, sequences, offset, type, payload));
+        state = new State(recordLog, files, urls);
+        log.info("Loaded {} files and {} urls from the log ({} KB, {} KB dead)", files.size(), urls.size(), recordLog.size() / 1024, deadBytes / 1024);
+        if (vertx != null) {
+            vertx.setPeriodic(FORCE_INTERVAL_MILLIS, id -> vertx.executeBlocking(promise -> {
+                state.log().force();
+                promise.complete();
+            }, false));
+            vertx.setPeriodic(COMPACTION_INTERVAL_MILLIS, id -> vertx.executeBlocking(promise -> {
+                compactIfNeeded();
+                promise.complete();
+            }, false).onFailure(t -> LogDataSource.log.error("Cannot compact the log", t)));
+        }
+    }
+
+    /**
+     * Flushes and closes the log. Blocking.
+     */
+    public synchronized void close() throws IOException {
+        state.log().force();
+        state.log().close();
+    }
+
+    @Override
+    public void fetchFileById(String id, Consumer<Future<FileRecord>> callback) {
+        var s = state;
+        var offset = s.files().get(id);
+        callback.accept(offset == null
+                ? Future.failedFuture(new NoSuchRecordException("Cannot find a file with this id"))
+                : Future.succeededFuture(fileAt(s.log(), offset)));
+    }
+
+    @Override
+    public void fetchURLById(String id, Consumer<Future<URLRecord>> callback) {
+        var s = state;
+        var offset = s.urls().get(id);
+        callback.accept(offset == null
+                ? Future.failedFuture(new NoSuchRecordException("Cannot find a url with this id"))
+                : Future.succeededFuture(urlAt(s.log(), offset)));
+    }
+
+    @Override
+    public Future<?> addFileRecord(FileRecord fr) {
+        return addFileRecords(List.of(fr));
+    }
+
+    @Override
+    public Future<?> addUrlRecord(URLRecord ur) {
+        return addUrlRecords(List.of(ur));
+    }
+
+    @Override
+    public synchronized Future<?> addFileRecords(List<FileRecord> frs) {
+        var s = state;
+        for (FileRecord fr : frs) {
+            if (s.files().get(fr.id()) != null) return Future.failedFuture("Duplicate file id " + fr.id());
+        }
+        try {
+            for (FileRecord fr : frs) {
+                s.files().put(fr.id(), fr.time(), s.log().append(FILE, encode(fr)));
+            }
+            return Future.succeededFuture();
+        } catch (IOException e) {
+            log.error("addFileRecords: {}", e.getMessage());
+            return Future.failedFuture(e);
+        }
+    }
+
+    @Override
+    public synchronized Future<?> addUrlRecords(List<URLRecord> urs) {
+        var s = state;
+        for (URLRecord ur : urs) {
+            if (s.urls().get(ur.id()) != null) return Future.failedFuture("Duplicate url id " + ur.id());
+        }
+        try {
+            for (URLRecord ur : urs) {
+                s.urls().put(ur.id(), ur.time(), s.log().append(URL, encode(ur)));
+            }
+            return Future.succeededFuture();
+        } catch (IOException e) {
+            log.error("addUrlRecords: {}", e.getMessage());
+            return Future.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Future<?> removeFileRecord(FileRecord fr) {
+        return removeFileRecords(List.of(fr.id()));
+    }
+
+    @Override
+    public Future<?> removeURLRecord(URLRecord ur) {
+        return removeURLRecords(List.of(ur.id()));
+    }
+
+    @Override
+    public Future<?> removeFileRecords(List<String> ids) {
+        return remove(ids, State::files, FILE_REMOVED);
+    }
+
+    @Override
+    public Future<?> removeURLRecords(List<String> ids) {
+        return remove(ids, State::urls, URL_REMOVED);
+    }
+
+    private synchronized Future<?> remove(List<String> ids, Function<State, Index> indexOf, byte type) {
+        var s = state;
+        var index = indexOf.apply(s);
+        try {
+            for (String id : ids) {
+                var offset = index.get(id);
+                if (offset == null) continue;
+                var tombstone = s.log().append(type, encodeId(id));
+                index.remove(id, s.log());
+                deadBytes += s.log().sizeAt(offset) + s.log().sizeAt(tombstone);
+            }
+            return Future.succeededFuture();
+        } catch (IOException e) {
+            log.error("remove: {}", e.getMessage());
+            return Future.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesByIds(List<String> ids) {
+        var s = state;
+        return Future.succeededFuture(ids.stream()
+                .map(s.files()::get)
+                .filter(Objects::nonNull)
+                .map(offset -> fileAt(s.log(), offset))
+                .toList());
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFiles(String afterId, int limit) {
+        var s = state;
+        return Future.succeededFuture(s.files().page(afterId, limit).stream().map(it -> fileAt(s.log(), it)).toList());
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLs(String afterId, int limit) {
+        var s = state;
+        return Future.succeededFuture(s.urls().page(afterId, limit).stream().map(it -> urlAt(s.log(), it)).toList());
+    }
+
+    @Override
+    public Future<Void> forEachFile(Consumer<FileRecord> consumer) {
+        var s = state;
+        s.files().offsets().forEach(offset -> consumer.accept(fileAt(s.log(), offset)));
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<Void> forEachURL(Consumer<URLRecord> consumer) {
+        var s = state;
+        s.urls().offsets().forEach(offset -> consumer.accept(urlAt(s.log(), offset)));
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, FileRecord after, int limit) {
+        var s = state;
+        var from = after == null ? null : TimeKey.of(after.time(), after.id());
+        return Future.succeededFuture(s.files().createdBefore(time, from, limit).stream().map(it -> fileAt(s.log(), it)).toList());
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLsCreatedBefore(LocalDateTime time, int limit) {
+        var s = state;
+        return Future.succeededFuture(s.urls().createdBefore(time, null, limit).stream().map(it -> urlAt(s.log(), it)).toList());
+    }
+
+    @Override
+    public synchronized Future<Boolean> updateFileLocation(FileRecord fr, String storageType, String fileIdentifier, String encoding) {
+        var s = state;
+        var offset = s.files().get(fr.id());
+        if (offset == null) return Future.succeededFuture(false);
+        var current = fileAt(s.log(), offset);
+        if (!current.storageType().equals(fr.storageType()) || !current.fileIdentifier().equals(fr.fileIdentifier())) {
+            return Future.succeededFuture(false);
+        }
+        var moved = new FileRecord(current.id(), current.time(), fileIdentifier, current.size(), current.fileName(),
+                current.mimeType(), current.ip(), storageType, encoding);
+        try {
+            s.files().put(fr.id(), current.time(), s.log().append(FILE, encode(moved)));
+            deadBytes += s.log().sizeAt(offset);
+            return Future.succeededFuture(true);
+        } catch (IOException e) {
+            log.error("updateFileLocation: {}", e.getMessage());
+            return Future.failedFuture(e);
+        }
+    }
+
+    @Override
+    public synchronized Future<SequenceRange> reserveSequence(String name, long count) {
+        var current = sequences.get(name);
+        var start = current == null ? 0 : current[0];
+        var seed = current == null ? new SecureRandom().nextLong() : current[1];
+        try {
+            restoreSequence(name, start + count, seed);
+            return Future.succeededFuture(new SequenceRange(start, start + count, seed));
+        } catch (IOException e) {
+            log.error("reserveSequence: {}", e.getMessage());
+            return Future.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sets the next value of a sequence, used by {@link LogMigration}.
+     */
+    synchronized void restoreSequence(String name, long next, long seed) throws IOException {
+        var payload = encodeSequence(name, next, seed);
+        state.log().append(SEQUENCE, payload);
+        if (sequences.put(name, new long[]{next, seed}) != null) {
+            deadBytes += RecordLog.sizeOf(payload.length);
+        }
+    }
+
+    private static byte[] encodeSequence(String name, long next, long seed) throws IOException {
+        var payload = new ByteArrayOutputStream();
+        var out = new DataOutputStream(payload);
+        writeString(out, name);
+        out.writeLong(next);
+        out.writeLong(seed);
+        return payload.toByteArray();
+    }
+
+    /**
+     * Rewrites the live entries into a new log once more than half of the current one is dead. Blocking.
+     * <p>
+     * The entries are copied and forced to disk without the lock, writers carry on appending to the old log.
+     * The lock is only taken to carry the entries appended meanwhile over and to swap the logs, readers carry on
+     * with the old log until then.
+     */
+    void compactIfNeeded() {
+        State s;
+        long end;
+        var copiedSequences = new HashMap<String, long[]>();
+        synchronized (this) {
+            s = state;
+            if (compacting || deadBytes < RecordLog.CHUNK_SIZE || deadBytes * 2 < s.log().size()) return;
+            compacting = true;
+            end = s.log().size();
+            sequences.forEach((name, value) -> copiedSequences.put(name, value.clone()));
+        }
+        var time = System.currentTimeMillis();
+        var target = directory.resolve(LOG_FILE + ".compact");
+        RecordLog compacted = null;
+        try {
+            Files.deleteIfExists(target);
+            var files = new Index();
+            var urls = new Index();
+            compacted = RecordLog.open(target);
+            // entries at or after the end are appended again below, in their order.
+            for (var key : s.files().times) {
+                var offset = s.files().get(key.id());
+                if (offset != null && offset < end) files.put(key, compacted.append(FILE, bytesOf(s.log().payloadAt(offset))));
+            }
+            for (var key : s.urls().times) {
+                var offset = s.urls().get(key.id());
+                if (offset != null && offset < end) urls.put(key, compacted.append(URL, bytesOf(s.log().payloadAt(offset))));
+            }
+            for (var entry : copiedSequences.entrySet()) {
+                compacted.append(SEQUENCE, encodeSequence(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+            }
+            compacted.force();
+            synchronized (this) {
+                var into = compacted;
+                var dead = new long[1];
+                s.log().scan(end, s.log().size(), (offset, type, payload) -> {
+                    try {
+                        var copied = into.append(type, bytesOf(payload));
+                        dead[0] += apply(into, files, urls, copiedSequences, copied, type, into.payloadAt(copied));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                Files.move(target, directory.resolve(LOG_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                state = new State(compacted, files, urls);
+                deadBytes = dead[0];
+            }
+            var before = s.log().size();
+            s.log().close();
+            log.info("Compacted the log from {} KB to {} KB in {}ms", before / 1024, compacted.size() / 1024, System.currentTimeMillis() - time);
+        } catch (IOException e) {
+            discard(compacted, e);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            discard(compacted, e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void discard(RecordLog compacted, Exception cause) {
+        if (compacted == null || state.log() == compacted) return;
+        try {
+            compacted.close();
+        } catch (IOException suppressed) {
+            cause.addSuppressed(suppressed);
+        }
+    }
+
+    /**
+     * Puts an entry of the log into the indexes, or removes what it is the tombstone of.
+     *
+     * @return the bytes of the log which are dead because of it.
+     */
+    private static long apply(RecordLog log, Index files, Index urls, Map<String, long[]> sequences, long offset, byte type, ByteBuffer payload) {
+        var size = RecordLog.sizeOf(payload.remaining());
+        long dead = 0;
+        Long previous;
+        switch (type) {
+            case FILE -> previous = files.put(readString(payload), readTime(payload), offset);
+            case URL -> previous = urls.put(readString(payload), readTime(payload), offset);
+            case FILE_REMOVED, URL_REMOVED -> {
+                previous = (type == FILE_REMOVED ? files : urls).remove(readString(payload), log);
+                dead += size; // the tombstone itself.
+            }
+            case SEQUENCE -> {
+                if (sequences.put(readString(payload), new long[]{payload.getLong(), payload.getLong()}) != null) {
+                    dead += size; // approximately, sequence entries of a name have the same size.
+                }
+                previous = null;
+            }
+            default -> throw new IllegalStateException("Unknown entry type " + type + " at " + offset);
+        }
+        if (previous != null) dead += log.sizeAt(previous);
+        return dead;
+    }
+
+    private static byte[] bytesOf(ByteBuffer payload) {
+        var bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    private static FileRecord fileAt(RecordLog log, long offset) {
+        var payload = log.payloadAt(offset);
+        return new FileRecord(
+                readString(payload),
+                readTime(payload),
+                readString(payload),
+                payload.getLong(),
+                readString(payload),
+                readString(payload),
+                readString(payload),
+                readString(payload),
+                readString(payload)
+        );
+    }
+
+    private static URLRecord urlAt(RecordLog log, long offset) {
+        var payload = log.payloadAt(offset);
+        return new URLRecord(
+                readString(payload),
+                readTime(payload),
+                readString(payload),
+                readString(payload)
+        );
+    }
+
+    private static byte[] encode(FileRecord fr) throws IOException {
+        var payload = new ByteArrayOutputStream(128);
+        var out = new DataOutputStream(payload);
+        writeString(out, fr.id());
+        writeTime(out, fr.time());
+        writeString(out, fr.fileIdentifier());
+        out.writeLong(fr.size());
+        writeString(out, fr.fileName());
+        writeString(out, fr.mimeType());
+        writeString(out, fr.ip());
+        writeString(out, fr.storageType());
+        writeString(out, fr.encoding());
+        return payload.toByteArray();
+    }
+
+    private static byte[] encode(URLRecord ur) throws IOException {
+        var payload = new ByteArrayOutputStream(128);
+        var out = new DataOutputStream(payload);
+        writeString(out, ur.id());
+        writeTime(out, ur.time());
+        writeString(out, ur.destination());
+        writeString(out, ur.ip());
+        return payload.toByteArray();
+    }
+
+    private static byte[] encodeId(String id) throws IOException {
+        var payload = new ByteArrayOutputStream(16);
+        writeString(new DataOutputStream(payload), id);
+        return payload.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        var bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Both kinds of records start with their id and creation time.
+     */
+    private static LocalDateTime timeAt(RecordLog log, long offset) {
+        var payload = log.payloadAt(offset);
+        readString(payload);
+        return readTime(payload);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    private static LocalDateTime readTime(ByteBuffer in) {
+        return LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+    }
+
+    private record State(RecordLog log, Index files, Index urls) {
+    }
+
+    /**
+     * Where the live records of one kind are in the log, by id and ordered by id and by creation time.
+     * Changed by writers holding the lock, read from any thread.
+     */
+    private static final class Index {
+        private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+        private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+        private final NavigableSet<TimeKey> times = new ConcurrentSkipListSet<>();
+
+        Long get(String id) {
+            return offsets.get(id);
+        }
+
+        int size() {
+            return offsets.size();
+        }
+
+        Collection<Long> offsets() {
+            return offsets.values();
+        }
+
+        /**
+         * @return the offset of the record it replaces, which has the same creation time.
+         */
+        Long put(String id, LocalDateTime time, long offset) {
+            return put(TimeKey.of(time, id), offset);
+        }
+
+        Long put(TimeKey key, long offset) {
+            var previous = offsets.put(key.id(), offset);
+            if (previous == null) {
+                ids.add(key.id());
+                times.add(key);
+            }
+            return previous;
+        }
+
+        Long remove(String id, RecordLog log) {
+            var offset = offsets.remove(id);
+            if (offset != null) {
+                ids.remove(id);
+                times.remove(TimeKey.of(timeAt(log, offset), id));
+            }
+            return offset;
+        }
+
+        List<Long> page(String afterId, int limit) {
+            return (afterId == null ? ids : ids.tailSet(afterId, false)).stream()
+                    .map(offsets::get)
+                    .filter(Objects::nonNull) // removed meanwhile.
+                    .limit(limit)
+                    .toList();
+        }
+
+        List<Long> createdBefore(LocalDateTime time, TimeKey after, int limit) {
+            var bound = TimeKey.of(time, "");
+            return (after == null ? times : times.tailSet(after, false)).stream()
+                    .takeWhile(it -> it.second() < bound.second() || it.second() == bound.second() && it.nano() <= bound.nano())
+                    .map(it -> offsets.get(it.id()))
+                    .filter(Objects::nonNull)
+                    .limit(limit)
+                    .toList();
+        }
+    }
+
+    private record TimeKey(long second, int nano, String id) implements Comparable<TimeKey> {
+        static TimeKey of(LocalDateTime time, String id) {
+            return new TimeKey(time.toEpochSecond(ZoneOffset.UTC), time.getNano(), id);
+        }
+
+        @Override
+        public int compareTo(TimeKey other) {
+            var result = Long.compare(second, other.second);
+            if (result == 0) result = Integer.compare(nano, other.nano);
+            return result == 0 ? id.compareTo(other.id) : result;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import com.typesafe.config.ConfigFactory;
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.ib67.ezshare.util.ContentEncoding;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * Copies the records of the H2 database into the log of {@link LogDataSource}.
+ * Run it with the server stopped, from the directory of application.conf, then set {@code metadata-store="log"}.
+ */
+public final class LogMigration {
+    public static void main(String[] args) throws Exception {
+        var config = AppConfig.loadConfig(ConfigFactory.parseFile(Path.of("application.conf").toFile()));
+        var target = Path.of(config.getMetadataDir());
+        if (Files.exists(target.resolve("records.log"))) {
+            System.err.println("There is a log in " + target.toAbsolutePath() + " already, move it away first.");
+            System.exit(1);
+        }
+        Class.forName("org.h2.Driver");
+        var log = new LogDataSource(null, target);
+        log.open();
+        try (var connection = DriverManager.getConnection(config.getJdbcUrl());
+             var statement = connection.createStatement()) {
+            var files = 0;
+            // databases from before compressed tiers have no encoding column, their files are all stored as is.
+            var encoded = hasColumn(connection, DataSource.TABLE_FILE, "encoding");
+            try (var rows = statement.executeQuery("SELECT id, creationDate, pathToFile, size, fileName, mimeType, ip, storageType"
+                    + (encoded ? ", encoding" : "") + " FROM " + DataSource.TABLE_FILE)) {
+                while (rows.next()) {
+                    log.addFileRecord(new FileRecord(
+                            rows.getString("id"),
+                            rows.getTimestamp("creationDate").toLocalDateTime(),
+                            rows.getString("pathToFile"),
+                            rows.getLong("size"),
+                            rows.getString("fileName"),
+                            rows.getString("mimeType"),
+                            rows.getString("ip"),
+                            rows.getString("storageType"),
+                            encoded ? rows.getString("encoding") : ContentEncoding.IDENTITY
+                    )).toCompletionStage().toCompletableFuture().join();
+                    files++;
+                }
+            }
+            var urls = 0;
+            try (var rows = statement.executeQuery("SELECT id, creationDate, destination, ip FROM " + DataSource.TABLE_URL)) {
+                while (rows.next()) {
+                    log.addUrlRecord(new URLRecord(
+                            rows.getString("id"),
+                            rows.getTimestamp("creationDate").toLocalDateTime(),
+                            rows.getString("destination"),
+                            rows.getString("ip")
+                    )).toCompletionStage().toCompletableFuture().join();
+                    urls++;
+                }
+            }
+            var sequences = 0;
+            // databases from before the id allocator have no sequences.
+            if (hasTable(connection, DataSource.TABLE_SEQUENCE)) {
+                try (var rows = statement.executeQuery("SELECT name, nextValue, seed FROM " + DataSource.TABLE_SEQUENCE)) {
+                    while (rows.next()) {
+                        log.restoreSequence(rows.getString(1), rows.getLong(2), rows.getLong(3));
+                        sequences++;
+                    }
+                }
+            }
+            log.close();
+            System.out.println("Migrated " + files + " files, " + urls + " urls and " + sequences + " sequences into " + target.toAbsolutePath());
+        } catch (SQLException e) {
+            log.close();
+            Files.deleteIfExists(target.resolve("records.log"));
+            System.err.println("Cannot read the database, nothing was migrated: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String table) throws SQLException {
+        // H2 keeps unquoted names in upper case.
+        try (var tables = connection.getMetaData().getTables(null, null, table.toUpperCase(Locale.ROOT), null)) {
+            return tables.next();
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (var columns = connection.getMetaData().getColumns(null, null, table.toUpperCase(Locale.ROOT), column.toUpperCase(Locale.ROOT))) {
+            return columns.next();
+        }
+    }
+}
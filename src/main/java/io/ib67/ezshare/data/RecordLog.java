@@ -0,0 +1,202 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of typed entries in a memory-mapped file.
+ * <p>
+ * The file grows in chunks of {@link #CHUNK_SIZE}, entries never span two chunks.
+ * An entry is {@code [int length][byte type][payload][int crc]}, a zero length marks the free space of a chunk.
+ * Reads may happen from any thread, appends must be serialized by the owner.
+ */
+final class RecordLog implements Closeable {
+    static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int OVERHEAD = 4 + 1 + 4;
+
+    private final RandomAccessFile file;
+    private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+    private long writePosition; // guarded by the owner
+
+    private RecordLog(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens or creates a log, which has to be {@link #replay(Visitor) replayed} before anything is appended.
+     */
+    static RecordLog open(Path path) throws IOException {
+        var log = new RecordLog(new RandomAccessFile(path.toFile(), "rw"));
+        try {
+            var count = (int) ((log.file.length() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            for (int i = 0; i < Math.max(count, 1); i++) {
+                log.map(i);
+            }
+            return log;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    private void map(int index) throws IOException {
+        file.setLength(Math.max(file.length(), (long) (index + 1) * CHUNK_SIZE));
+        chunks.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE));
+    }
+
+    /**
+     * Hands every intact entry to the visitor, in order. Whatever follows a torn entry is discarded.
+     */
+    void replay(Visitor visitor) {
+        var crc = new CRC32();
+        for (int i = 0; i < chunks.size(); i++) {
+            var chunk = chunks.get(i);
+            var position = 0;
+            while (position + OVERHEAD <= CHUNK_SIZE) {
+                var length = chunk.getInt(position);
+                if (length == 0) break; // the rest of this chunk is free.
+                if (length < 0 || position + OVERHEAD + length > CHUNK_SIZE || !intact(chunk, position, length, crc)) {
+                    // torn by a crash, nothing valid can follow.
+                    writePosition = (long) i * CHUNK_SIZE + position;
+                    for (int j = position; j < CHUNK_SIZE; j++) chunk.put(j, (byte) 0);
+                    return;
+                }
+                var offset = (long) i * CHUNK_SIZE + position;
+                visitor.visit(offset, chunk.get(position + 4), payload(chunk, position, length));
+                position += OVERHEAD + length;
+                writePosition = (long) i * CHUNK_SIZE + position;
+            }
+        }
+    }
+
+    /**
+     * Hands the entries from {@code from} up to {@code to} to the visitor, in order. Both have to be positions
+     * the log has been at, e.g. {@link #size()} at different times, and the entries have to be intact.
+     */
+    void scan(long from, long to, Visitor visitor) {
+        var position = from;
+        while (position < to) {
+            var chunk = chunks.get((int) (position / CHUNK_SIZE));
+            var inChunk = (int) (position % CHUNK_SIZE);
+            var length = inChunk + OVERHEAD <= CHUNK_SIZE ? chunk.getInt(inChunk) : 0;
+            if (length == 0) {
+                // the rest of this chunk is free, appends went on with the next one.
+                position = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+                continue;
+            }
+            visitor.visit(position, chunk.get(inChunk + 4), payload(chunk, inChunk, length));
+            position += OVERHEAD + length;
+        }
+    }
+
+    private static boolean intact(ByteBuffer chunk, int position, int length, CRC32 crc) {
+        crc.reset();
+        crc.update(chunk.slice(position + 4, 1 + length));
+        return chunk.getInt(position + 5 + length) == (int) crc.getValue();
+    }
+
+    private static ByteBuffer payload(ByteBuffer chunk, int position, int length) {
+        return chunk.slice(position + 5, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the offset of the new entry.
+     */
+    long append(byte type, byte[] payload) throws IOException {
+        var size = sizeOf(payload.length);
+        if (size > CHUNK_SIZE) throw new IOException("An entry of " + size + " bytes doesn't fit into a chunk");
+        var index = (int) (writePosition / CHUNK_SIZE);
+        var position = (int) (writePosition % CHUNK_SIZE);
+        if (position + size > CHUNK_SIZE) {
+            index++;
+            position = 0;
+        }
+        if (index == chunks.size()) map(index);
+        var chunk = chunks.get(index);
+        var crc = new CRC32();
+        chunk.put(position + 4, type);
+        chunk.put(position + 5, payload);
+        crc.update(chunk.slice(position + 4, 1 + payload.length));
+        chunk.putInt(position + 5 + payload.length, (int) crc.getValue());
+        chunk.putInt(position, payload.length); // last, so a reader of the file never sees a length without its entry.
+        var offset = (long) index * CHUNK_SIZE + position;
+        writePosition = offset + size;
+        return offset;
+    }
+
+    /**
+     * @return a read-only view of the payload, safe to use from any thread.
+     */
+    ByteBuffer payloadAt(long offset) {
+        var chunk = chunks.get((int) (offset / CHUNK_SIZE));
+        var position = (int) (offset % CHUNK_SIZE);
+        return payload(chunk, position, chunk.getInt(position));
+    }
+
+    int sizeAt(long offset) {
+        return sizeOf(chunks.get((int) (offset / CHUNK_SIZE)).getInt((int) (offset % CHUNK_SIZE)));
+    }
+
+    static int sizeOf(int payloadLength) {
+        return OVERHEAD + payloadLength;
+    }
+
+    long size() {
+        return writePosition;
+    }
+
+    /**
+     * Writes the dirty pages back to the disk.
+     */
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * The mappings stay readable until they are collected, so readers which still hold this log are not broken.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    @FunctionalInterface
+    interface Visitor {
+        void visit(long offset, byte type, ByteBuffer payload);
+    }
+}
@@ -27,45 +27,132 @@ package io.ib67.ezshare.data;
 
 import io.ib67.ezshare.config.AppConfig;
 import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.SequenceRange;
 import io.ib67.ezshare.data.records.URLRecord;
+import io.ib67.ezshare.metrics.Histogram;
+import io.ib67.ezshare.metrics.Metrics;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.jdbcclient.JDBCPool;
 import io.vertx.sqlclient.PrepareOptions;
 import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlConnection;
 import io.vertx.sqlclient.Tuple;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
-@RequiredArgsConstructor
 @Slf4j
 public class SimpleDataSource implements DataSource {
     private final JDBCPool pool;
     private final AppConfig config;
+    private final Histogram connectionWait;
+    private final Histogram[] statementTimes; // null unless enable-metrics is set.
+
+    public SimpleDataSource(JDBCPool pool, AppConfig config, Metrics metrics) {
+        this.pool = pool;
+        this.config = config;
+        if (!config.isEnableMetrics()) {
+            this.connectionWait = null;
+            this.statementTimes = null;
+            return;
+        }
+        this.connectionWait = metrics.histogram("ezshare_db_connection_wait_seconds",
+                "Time spent waiting for a pooled connection.", Histogram.FAST_BUCKETS);
+        this.statementTimes = new Histogram[Statement.values().length];
+        for (var statement : Statement.values()) {
+            statementTimes[statement.ordinal()] = metrics.histogram("ezshare_db_query_seconds",
+                    "Time spent running statements, not counting the wait for a connection.", Histogram.FAST_BUCKETS,
+                    "statement", statement.name().toLowerCase(Locale.ROOT));
+        }
+    }
 
     private static final String SQL_QUERY_FILE_BY_ID = "SELECT * FROM " + TABLE_FILE + " WHERE id = ?";
     private static final String SQL_QUERY_URL_BY_ID = "SELECT * FROM " + TABLE_URL + " WHERE id = ?";
 
-    private static final String SQL_INSERT_FILE = "INSERT INTO " + TABLE_FILE + " VALUES (?,?,?,?,?,?,?,?)";
+    private static final String SQL_INSERT_FILE = "INSERT INTO " + TABLE_FILE + " VALUES (?,?,?,?,?,?,?,?,?)";
     private static final String SQL_INSERT_URL = "INSERT INTO " + TABLE_URL + " VALUES (?,?,?,?)";
 
     private static final String SQL_DELETE_URL_BY_ID = "DELETE FROM " + TABLE_URL + " WHERE id = ?";
     private static final String SQL_DELETE_FILE_BY_ID = "DELETE FROM " + TABLE_FILE + " WHERE id = ?";
 
+    private static final String SQL_UPDATE_FILE_LOCATION = "UPDATE " + TABLE_FILE + " SET storageType = ?, pathToFile = ?, encoding = ? WHERE id = ? AND storageType = ? AND pathToFile = ?";
+
+    private static final String SQL_LOCK_SEQUENCE = "SELECT nextValue, seed FROM " + TABLE_SEQUENCE + " WHERE name = ? FOR UPDATE";
+    private static final String SQL_INSERT_SEQUENCE = "INSERT INTO " + TABLE_SEQUENCE + " VALUES (?,?,?)";
+    private static final String SQL_ADVANCE_SEQUENCE = "UPDATE " + TABLE_SEQUENCE + " SET nextValue = ? WHERE name = ?";
+
+    private static final String SQL_QUERY_FILES_PAGE = "SELECT * FROM " + TABLE_FILE + " WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SQL_QUERY_URLS_PAGE = "SELECT * FROM " + TABLE_URL + " WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SQL_QUERY_FILES_BEFORE = "SELECT * FROM " + TABLE_FILE + " WHERE creationDate <= ? ORDER BY creationDate, id LIMIT ?";
+    private static final String SQL_QUERY_FILES_BEFORE_PAGE = "SELECT * FROM " + TABLE_FILE
+            + " WHERE creationDate <= ? AND creationDate >= ? AND (creationDate > ? OR id > ?) ORDER BY creationDate, id LIMIT ?";
+    private static final String SQL_QUERY_URLS_BEFORE = "SELECT * FROM " + TABLE_URL + " WHERE creationDate <= ? ORDER BY creationDate LIMIT ?";
+
+    /**
+     * Creates the tables and indexes, and migrates the ones created by older versions.
+     */
+    public static Future<Void> createSchema(JDBCPool pool) {
+        return pool.query(
+                """
+                        CREATE TABLE IF NOT EXISTS t_files (
+                          id VARCHAR(32) NOT NULL UNIQUE,
+                          creationDate DATETIME NOT NULL,
+                          pathToFile VARCHAR(128) NOT NULL,
+                          size BIGINT NOT NULL,
+                          fileName VARCHAR(128) NOT NULL,
+                          mimeType VARCHAR(64) NOT NULL,
+                          ip VARCHAR(45) NOT NULL,
+                          storageType VARCHAR(16) NOT NULL,
+                          encoding VARCHAR(16) NOT NULL DEFAULT 'identity',
+                          PRIMARY KEY (`id`)
+                        );
+                        """
+        ).execute().compose(it -> pool.query("""
+                            CREATE TABLE IF NOT EXISTS t_urls (
+                                id VARCHAR(32) NOT NULL UNIQUE,
+                                creationDate DATETIME NOT NULL,
+                                destination VARCHAR(256) NOT NULL,
+                                ip VARCHAR(45) NOT NULL,
+                                PRIMARY KEY (`id`)
+                            );
+                        """).execute()
+        ).compose(it -> pool.query("ALTER TABLE t_files ADD COLUMN IF NOT EXISTS encoding VARCHAR(16) NOT NULL DEFAULT 'identity'").execute()
+        ).compose(it -> pool.query("ALTER TABLE t_files ALTER COLUMN id SET DATA TYPE VARCHAR(32)").execute()
+        ).compose(it -> pool.query("ALTER TABLE t_urls ALTER COLUMN id SET DATA TYPE VARCHAR(32)").execute()
+        ).compose(it -> pool.query("""
+                            CREATE TABLE IF NOT EXISTS t_sequences (
+                                name VARCHAR(32) NOT NULL,
+                                nextValue BIGINT NOT NULL,
+                                seed BIGINT NOT NULL,
+                                PRIMARY KEY (`name`)
+                            );
+                        """).execute()
+        ).compose(it -> pool.query("DROP INDEX IF EXISTS idx_files_creation").execute()
+        ).compose(it -> pool.query("CREATE INDEX IF NOT EXISTS idx_files_creation_id ON t_files (creationDate, id)").execute()
+        ).compose(it -> pool.query("CREATE INDEX IF NOT EXISTS idx_urls_creation ON t_urls (creationDate)").execute()
+        ).<Void>mapEmpty();
+    }
+
     @Override
     public void fetchFileById(String id, Consumer<Future<FileRecord>> callback) {
-        pool.preparedQuery(SQL_QUERY_FILE_BY_ID)
-                .execute(Tuple.of(id))
+        query(Statement.FETCH_FILE, conn -> conn.preparedQuery(SQL_QUERY_FILE_BY_ID).execute(Tuple.of(id)))
                 .onFailure(t -> {
                     log.error("fetchFileById: {}",t.getMessage());
                     callback.accept(Future.failedFuture(t));
                 }).onSuccess(rows -> {
                     if (rows.size() == 0) {
-                        callback.accept(Future.failedFuture("Cannot find a file with this id"));
+                        callback.accept(Future.failedFuture(new NoSuchRecordException("Cannot find a file with this id")));
                         return;
                     }
                     var result = rows.iterator().next(); // id is unique.
@@ -81,34 +168,38 @@ public class SimpleDataSource implements DataSource {
                 result.getString(4),
                 result.getString(5),
                 result.getString(6),
-                result.getString(7)
+                result.getString(7),
+                result.getString(8)
         );
     }
+    public static URLRecord urlFromRow(Row result) {
+        return new URLRecord(
+                result.getString(0),
+                result.getLocalDateTime(1),
+                result.getString(2),
+                result.getString(3)
+        );
+    }
+
     @Override
     public void fetchURLById(String id, Consumer<Future<URLRecord>> callback) {
-        pool.preparedQuery(SQL_QUERY_URL_BY_ID)
-                .execute(Tuple.of(id))
+        query(Statement.FETCH_URL, conn -> conn.preparedQuery(SQL_QUERY_URL_BY_ID).execute(Tuple.of(id)))
                 .onFailure(t -> {
                     log.error("fetchURLById: {}",t.getMessage());
                     callback.accept(Future.failedFuture(t));
                 }).onSuccess(rows -> {
                     if (rows.size() == 0) {
-                        callback.accept(Future.failedFuture("Cannot find a url with this id"));
+                        callback.accept(Future.failedFuture(new NoSuchRecordException("Cannot find a url with this id")));
                         return;
                     }
                     var result = rows.iterator().next(); // id is unique.
-                    callback.accept(Future.succeededFuture(new URLRecord(
-                            result.getString(0),
-                            result.getLocalDateTime(1),
-                            result.getString(2),
-                            result.getString(3)
-                    )));
+                    callback.accept(Future.succeededFuture(urlFromRow(result)));
                 });
     }
 
     @Override
     public Future<?> addFileRecord(FileRecord fr) {
-        return pool.preparedQuery(SQL_INSERT_FILE)
+        return query(Statement.INSERT_FILE, conn -> conn.preparedQuery(SQL_INSERT_FILE)
                 .execute(Tuple.of(
                         fr.id(),
                         fr.time(),
@@ -117,30 +208,200 @@ public class SimpleDataSource implements DataSource {
                         fr.fileName(),
                         fr.mimeType(),
                         fr.ip(),
-                        fr.storageType()
-                )).onFailure(t->log.error("addFileRecord: {}",t.getMessage()));
+                        fr.storageType(),
+                        fr.encoding()
+                ))).onFailure(t->log.error("addFileRecord: {}",t.getMessage()));
     }
 
     @Override
     public Future<?> addUrlRecord(URLRecord ur) {
-        return pool.preparedQuery(SQL_INSERT_URL)
+        return query(Statement.INSERT_URL, conn -> conn.preparedQuery(SQL_INSERT_URL)
                 .execute(Tuple.of(
                         ur.id(),
                         ur.time(),
                         ur.destination(),
                         ur.ip()
-                )).onFailure(t->log.error("addUrlRecord: {}",t.getMessage()));
+                ))).onFailure(t->log.error("addUrlRecord: {}",t.getMessage()));
+    }
+
+    @Override
+    public Future<?> addFileRecords(List<FileRecord> frs) {
+        if (frs.isEmpty()) return Future.succeededFuture();
+        var batch = frs.stream().map(fr -> Tuple.of(
+                fr.id(),
+                fr.time(),
+                fr.fileIdentifier(),
+                fr.size(),
+                fr.fileName(),
+                fr.mimeType(),
+                fr.ip(),
+                fr.storageType(),
+                fr.encoding()
+        )).toList();
+        return transaction(Statement.INSERT_FILES, conn -> conn.preparedQuery(SQL_INSERT_FILE).executeBatch(batch))
+                .onFailure(t -> log.error("addFileRecords: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<?> addUrlRecords(List<URLRecord> urs) {
+        if (urs.isEmpty()) return Future.succeededFuture();
+        var batch = urs.stream().map(ur -> Tuple.of(
+                ur.id(),
+                ur.time(),
+                ur.destination(),
+                ur.ip()
+        )).toList();
+        return transaction(Statement.INSERT_URLS, conn -> conn.preparedQuery(SQL_INSERT_URL).executeBatch(batch))
+                .onFailure(t -> log.error("addUrlRecords: {}", t.getMessage()));
     }
 
     @Override
     public Future<?> removeFileRecord(FileRecord fr) {
-        return pool.preparedQuery(SQL_DELETE_FILE_BY_ID).execute(Tuple.of(fr.id())).onFailure(t->log.error("removeFileRecord: {}",t.getMessage()));
+        return query(Statement.DELETE_FILE, conn -> conn.preparedQuery(SQL_DELETE_FILE_BY_ID).execute(Tuple.of(fr.id()))).onFailure(t->log.error("removeFileRecord: {}",t.getMessage()));
     }
 
     @Override
     public Future<?> removeURLRecord(URLRecord ur) {
-        return pool.preparedQuery(SQL_DELETE_URL_BY_ID)
-                .execute(Tuple.of(ur.id()))
+        return query(Statement.DELETE_URL, conn -> conn.preparedQuery(SQL_DELETE_URL_BY_ID).execute(Tuple.of(ur.id())))
                 .onFailure(t->log.error("removeUrlRecord: {}",t.getMessage()));
     }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesByIds(List<String> ids) {
+        if (ids.isEmpty()) return Future.succeededFuture(List.of());
+        return query(Statement.FETCH_FILES, conn -> conn.preparedQuery("SELECT * FROM " + TABLE_FILE + " WHERE id IN (" + placeholders(ids.size()) + ")")
+                .mapping(SimpleDataSource::fromRow)
+                .execute(Tuple.wrap(ids)))
+                .map(SimpleDataSource::toList)
+                .onFailure(t -> log.error("fetchFilesByIds: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFiles(String afterId, int limit) {
+        return query(Statement.FILES_PAGE, conn -> conn.preparedQuery(SQL_QUERY_FILES_PAGE)
+                .mapping(SimpleDataSource::fromRow)
+                .execute(Tuple.of(afterId == null ? "" : afterId, limit)))
+                .map(SimpleDataSource::toList)
+                .onFailure(t -> log.error("fetchFiles: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLs(String afterId, int limit) {
+        return query(Statement.URLS_PAGE, conn -> conn.preparedQuery(SQL_QUERY_URLS_PAGE)
+                .mapping(SimpleDataSource::urlFromRow)
+                .execute(Tuple.of(afterId == null ? "" : afterId, limit)))
+                .map(SimpleDataSource::toList)
+                .onFailure(t -> log.error("fetchURLs: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<List<FileRecord>> fetchFilesCreatedBefore(LocalDateTime time, FileRecord after, int limit) {
+        return query(Statement.FILES_BEFORE, conn -> after == null
+                ? conn.preparedQuery(SQL_QUERY_FILES_BEFORE)
+                .mapping(SimpleDataSource::fromRow)
+                .execute(Tuple.of(time, limit))
+                : conn.preparedQuery(SQL_QUERY_FILES_BEFORE_PAGE)
+                .mapping(SimpleDataSource::fromRow)
+                .execute(Tuple.of(time, after.time(), after.time(), after.id(), limit)))
+                .map(SimpleDataSource::toList)
+                .onFailure(t -> log.error("fetchFilesCreatedBefore: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<List<URLRecord>> fetchURLsCreatedBefore(LocalDateTime time, int limit) {
+        return query(Statement.URLS_BEFORE, conn -> conn.preparedQuery(SQL_QUERY_URLS_BEFORE)
+                .mapping(SimpleDataSource::urlFromRow)
+                .execute(Tuple.of(time, limit)))
+                .map(SimpleDataSource::toList)
+                .onFailure(t -> log.error("fetchURLsCreatedBefore: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<?> removeFileRecords(List<String> ids) {
+        if (ids.isEmpty()) return Future.succeededFuture();
+        return query(Statement.DELETE_FILES, conn -> conn.preparedQuery("DELETE FROM " + TABLE_FILE + " WHERE id IN (" + placeholders(ids.size()) + ")")
+                .execute(Tuple.wrap(ids)))
+                .onFailure(t -> log.error("removeFileRecords: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<?> removeURLRecords(List<String> ids) {
+        if (ids.isEmpty()) return Future.succeededFuture();
+        return query(Statement.DELETE_URLS, conn -> conn.preparedQuery("DELETE FROM " + TABLE_URL + " WHERE id IN (" + placeholders(ids.size()) + ")")
+                .execute(Tuple.wrap(ids)))
+                .onFailure(t -> log.error("removeURLRecords: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<Boolean> updateFileLocation(FileRecord fr, String storageType, String fileIdentifier, String encoding) {
+        return query(Statement.UPDATE_FILE_LOCATION, conn -> conn.preparedQuery(SQL_UPDATE_FILE_LOCATION)
+                .execute(Tuple.of(storageType, fileIdentifier, encoding, fr.id(), fr.storageType(), fr.fileIdentifier())))
+                .map(it -> it.rowCount() == 1)
+                .onFailure(t -> log.error("updateFileLocation: {}", t.getMessage()));
+    }
+
+    @Override
+    public Future<SequenceRange> reserveSequence(String name, long count) {
+        return transaction(Statement.RESERVE_SEQUENCE, conn -> conn.preparedQuery(SQL_LOCK_SEQUENCE).execute(Tuple.of(name)).compose(rows -> {
+            if (rows.size() == 0) {
+                var seed = new SecureRandom().nextLong();
+                return conn.preparedQuery(SQL_INSERT_SEQUENCE)
+                        .execute(Tuple.of(name, count, seed))
+                        .map(new SequenceRange(0, count, seed));
+            }
+            var row = rows.iterator().next();
+            var start = row.getLong(0);
+            return conn.preparedQuery(SQL_ADVANCE_SEQUENCE)
+                    .execute(Tuple.of(start + count, name))
+                    .map(new SequenceRange(start, start + count, row.getLong(1)));
+        })).onFailure(t -> log.error("reserveSequence: {}", t.getMessage()));
+    }
+
+    /**
+     * Runs the statement on the pool, or on a connection of its own if metrics are enabled,
+     * so the wait for the pool and the statement are timed apart.
+     */
+    private <T> Future<T> query(Statement statement, Function<SqlClient, Future<T>> action) {
+        return statementTimes == null ? action.apply(pool) : timed(statement, action::apply);
+    }
+
+    private <T> Future<T> timed(Statement statement, Function<SqlConnection, Future<T>> action) {
+        var requested = System.nanoTime();
+        return pool.getConnection().compose(conn -> {
+            var acquired = System.nanoTime();
+            connectionWait.observeNanos(acquired - requested);
+            return action.apply(conn).onComplete(ar -> {
+                statementTimes[statement.ordinal()].observeSince(acquired);
+                conn.close();
+            });
+        });
+    }
+
+    /**
+     * Same as {@link JDBCPool#withTransaction(Function)}, timed like {@link #query(Statement, Function)}.
+     */
+    private <T> Future<T> transaction(Statement statement, Function<SqlConnection, Future<T>> action) {
+        if (statementTimes == null) return pool.withTransaction(action);
+        return timed(statement, conn -> conn.begin().compose(tx -> action.apply(conn).compose(
+                result -> tx.commit().map(result),
+                err -> tx.rollback().transform(ignored -> Future.failedFuture(err))
+        )));
+    }
+
+    private static String placeholders(int count) {
+        return "?,".repeat(count - 1) + "?";
+    }
+
+    private static <T> List<T> toList(RowSet<T> rows) {
+        var list = new ArrayList<T>(rows.size());
+        rows.forEach(list::add);
+        return list;
+    }
+
+    private enum Statement {
+        FETCH_FILE, FETCH_URL, FETCH_FILES, FILES_PAGE, URLS_PAGE, FILES_BEFORE, URLS_BEFORE,
+        INSERT_FILE, INSERT_URL, INSERT_FILES, INSERT_URLS,
+        DELETE_FILE, DELETE_URL, DELETE_FILES, DELETE_URLS,
+        UPDATE_FILE_LOCATION, RESERVE_SEQUENCE
+    }
 }
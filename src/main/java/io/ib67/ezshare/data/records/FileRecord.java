@@ -38,6 +38,7 @@ public record FileRecord(
         String mimeType,
         String ip,
 
-        String storageType
+        String storageType,
+        String encoding /* Content coding of the stored bytes, see ContentEncoding */
 ) {
 }
@@ -0,0 +1,264 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.expiry;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.ib67.ezshare.metrics.Counter;
+import io.ib67.ezshare.metrics.Histogram;
+import io.ib67.ezshare.metrics.Metrics;
+import io.ib67.ezshare.quota.QuotaManager;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.upload.ResumableUploads;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes expired files and urls close to when they're due.
+ * <p>
+ * Deadlines are kept in {@link TimingWheel}s (ids only) which are rebuilt from the database at startup.
+ * Due records are purged in batches by one serialized job, so a record is never purged twice at the same time.
+ * A periodic sweep over the creationDate index catches anything the wheels missed, e.g. records inserted by other processes.
+ * It removes resumable uploads which have been abandoned as well.
+ */
+@Slf4j
+public class ExpiryEngine {
+    private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final int WHEEL_SIZE = 3600;
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Vertx vertx;
+    private final DataSource source;
+    private final Map<String, IStorageProvider> providers;
+    private final QuotaManager quota;
+    private final ResumableUploads uploads;
+    private final Duration fileTtl;
+    private final Duration urlTtl;
+    private final int batchSize;
+    private final int deleteConcurrency;
+    private final TimingWheel<String> fileWheel;
+    private final TimingWheel<String> urlWheel;
+    private final Histogram sweepDuration;
+    private final Counter filesRemoved;
+    private final Counter urlsRemoved;
+    private final Counter deleteFailures;
+
+    // accessed from the engine's context only.
+    private final ArrayDeque<String> dueFiles = new ArrayDeque<>();
+    private final ArrayDeque<String> dueUrls = new ArrayDeque<>();
+    private boolean purging;
+    private boolean sweepRequested;
+
+    public ExpiryEngine(Vertx vertx, DataSource source, Map<String, IStorageProvider> providers, QuotaManager quota, ResumableUploads uploads, Metrics metrics, AppConfig config) {
+        this.vertx = vertx;
+        this.source = source;
+        this.providers = providers;
+        this.quota = quota;
+        this.uploads = uploads;
+        this.fileTtl = Duration.ofMinutes(config.getExpireHours());
+        this.urlTtl = Duration.ofMinutes(config.getUrlExpireMinutes());
+        this.batchSize = Math.max(1, config.getExpiryBatchSize());
+        this.deleteConcurrency = Math.max(1, config.getExpiryDeleteConcurrency());
+        var now = System.currentTimeMillis();
+        this.fileWheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, now);
+        this.urlWheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, now);
+        this.sweepDuration = metrics.histogram("ezshare_expiry_sweep_seconds",
+                "Duration of sweeps over the creationDate index.", Histogram.LATENCY_BUCKETS);
+        this.filesRemoved = metrics.counter("ezshare_expiry_removed_total", "Expired records removed.", "kind", "file");
+        this.urlsRemoved = metrics.counter("ezshare_expiry_removed_total", "Expired records removed.", "kind", "url");
+        this.deleteFailures = metrics.counter("ezshare_expiry_delete_failures_total",
+                "Expired files whose content couldn't be deleted from storage.");
+    }
+
+    /**
+     * Rebuilds the wheels and starts ticking on the caller's context.
+     */
+    public Future<Void> start() {
+        var time = System.currentTimeMillis();
+        return CompositeFuture.all(
+                source.forEachFile(this::schedule),
+                urlTtl.isZero() ? Future.succeededFuture() : source.forEachURL(this::schedule)
+        ).onSuccess(it -> {
+            log.info("Expiry engine is tracking {} files and {} urls, took {}ms", fileWheel.size(), urlWheel.size(), System.currentTimeMillis() - time);
+            vertx.setPeriodic(TICK_MILLIS, id -> tick());
+            vertx.setPeriodic(SWEEP_INTERVAL_MILLIS, id -> {
+                sweepRequested = true;
+                purge();
+            });
+        }).mapEmpty();
+    }
+
+    public void schedule(FileRecord fr) {
+        fileWheel.schedule(fr.id(), deadlineOf(fr.time(), fileTtl));
+    }
+
+    public void schedule(URLRecord ur) {
+        if (urlTtl.isZero()) return;
+        urlWheel.schedule(ur.id(), deadlineOf(ur.time(), urlTtl));
+    }
+
+    private static long deadlineOf(LocalDateTime creation, Duration ttl) {
+        return creation.atZone(ZoneId.systemDefault()).toInstant().plus(ttl).toEpochMilli();
+    }
+
+    private void tick() {
+        var now = System.currentTimeMillis();
+        dueFiles.addAll(fileWheel.advance(now));
+        dueUrls.addAll(urlWheel.advance(now));
+        purge();
+    }
+
+    private void purge() {
+        if (purging) return;
+        purging = true;
+        purgeNext().onComplete(it -> purging = false);
+    }
+
+    private Future<Void> purgeNext() {
+        if (!dueFiles.isEmpty() || !dueUrls.isEmpty()) {
+            return CompositeFuture.join(
+                    source.fetchFilesByIds(poll(dueFiles)).compose(this::purgeFiles),
+                    purgeUrls(poll(dueUrls))
+            ).transform(it -> purgeNext());
+        }
+        if (sweepRequested) {
+            sweepRequested = false;
+            var time = System.currentTimeMillis();
+            var start = System.nanoTime();
+            return CompositeFuture.join(sweepFiles(0), sweepUrls(0), uploads.removeExpired()).transform(ar -> {
+                sweepDuration.observeSince(start);
+                if (ar.succeeded()) {
+                    int files = ar.result().resultAt(0);
+                    int urls = ar.result().resultAt(1);
+                    int sessions = ar.result().resultAt(2);
+                    if (files + urls + sessions > 0) {
+                        log.info("Sweep removed {} files, {} urls and {} unfinished uploads, took {}ms",
+                                files, urls, sessions, System.currentTimeMillis() - time);
+                    }
+                } else {
+                    log.warn("Failed to sweep expired records! ", ar.cause());
+                }
+                return purgeNext();
+            });
+        }
+        return Future.succeededFuture();
+    }
+
+    private List<String> poll(ArrayDeque<String> queue) {
+        var batch = new ArrayList<String>(Math.min(queue.size(), batchSize));
+        while (batch.size() < batchSize && !queue.isEmpty()) {
+            batch.add(queue.poll());
+        }
+        return batch;
+    }
+
+    private Future<Integer> sweepFiles(int removed) {
+        var cutoff = LocalDateTime.now().minus(fileTtl);
+        return source.fetchFilesCreatedBefore(cutoff, batchSize).compose(page -> {
+            if (page.isEmpty()) return Future.succeededFuture(removed);
+            return purgeFiles(page).compose(it -> page.size() < batchSize
+                    ? Future.succeededFuture(removed + page.size())
+                    : sweepFiles(removed + page.size()));
+        });
+    }
+
+    private Future<Integer> sweepUrls(int removed) {
+        if (urlTtl.isZero()) return Future.succeededFuture(removed);
+        var cutoff = LocalDateTime.now().minus(urlTtl);
+        return source.fetchURLsCreatedBefore(cutoff, batchSize).compose(page -> {
+            if (page.isEmpty()) return Future.succeededFuture(removed);
+            var ids = page.stream().map(URLRecord::id).toList();
+            return purgeUrls(ids).compose(it -> page.size() < batchSize
+                    ? Future.succeededFuture(removed + page.size())
+                    : sweepUrls(removed + page.size()));
+        });
+    }
+
+    private Future<Void> purgeFiles(List<FileRecord> records) {
+        if (records.isEmpty()) return Future.succeededFuture();
+        var byType = records.stream().collect(Collectors.groupingBy(FileRecord::storageType));
+        return source.removeFileRecords(records.stream().map(FileRecord::id).toList())
+                .onSuccess(it -> {
+                    records.forEach(quota::removed);
+                    filesRemoved.add(records.size());
+                })
+                .compose(it -> {
+                    List<Future<Integer>> deletions = byType.entrySet().stream()
+                            .map(entry -> deleteContent(entry.getKey(), entry.getValue()))
+                            .toList();
+                    return CompositeFuture.join(new ArrayList<>(deletions));
+                })
+                .onSuccess(it -> log.info("Cleaned {} files", records.size() - it.<Integer>list().stream().mapToInt(Integer::intValue).sum()))
+                .onFailure(t -> log.warn("Failed to clean files! ", t))
+                .mapEmpty();
+    }
+
+    /**
+     * @return how many of the records couldn't be deleted, failures are logged here.
+     */
+    private Future<Integer> deleteContent(String storageType, List<FileRecord> records) {
+        var provider = providers.get(storageType);
+        if (provider == null) {
+            log.warn("Unknown storage type {}, cannot remove {} files", storageType, records.size());
+            return Future.succeededFuture(records.size());
+        }
+        return provider.deleteAll(records, deleteConcurrency)
+                .recover(t -> {
+                    log.warn("Failed to remove {} files from {}! ", records.size(), storageType, t);
+                    return Future.succeededFuture(records);
+                })
+                .map(failed -> {
+                    failed.forEach(fr -> log.warn("Failed to remove {}!", fr));
+                    deleteFailures.add(failed.size());
+                    return failed.size();
+                });
+    }
+
+    private Future<Void> purgeUrls(List<String> ids) {
+        if (ids.isEmpty()) return Future.succeededFuture();
+        return source.removeURLRecords(ids)
+                .onSuccess(it -> {
+                    urlsRemoved.add(ids.size());
+                    log.info("Cleaned {} urls", ids.size());
+                })
+                .onFailure(t -> log.warn("Failed to clean urls! ", t))
+                .mapEmpty();
+    }
+}
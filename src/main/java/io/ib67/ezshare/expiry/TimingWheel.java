@@ -0,0 +1,100 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.expiry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel. {@link #schedule(Object, long)} may be called from any thread,
+ * {@link #advance(long)} must be called from a single thread.
+ * Items whose deadline is more than a round away simply stay in their slot until the round they're due in.
+ */
+final class TimingWheel<T> {
+    private final long tickMillis;
+    private final ArrayDeque<Timeout<T>>[] slots;
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long startMillis;
+    private long currentTick = -1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+    }
+
+    void schedule(T item, long deadlineMillis) {
+        pending.add(new Timeout<>(item, Math.max(0, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis)));
+        size.incrementAndGet();
+    }
+
+    /**
+     * Moves the wheel forward to {@code nowMillis}.
+     *
+     * @return items which are due.
+     */
+    List<T> advance(long nowMillis) {
+        var targetTick = (nowMillis - startMillis) / tickMillis;
+        var due = new ArrayList<T>();
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            // overdue items go to the next visited slot.
+            var tick = Math.max(timeout.deadlineTick, currentTick + 1);
+            slots[(int) (tick % slots.length)].add(timeout);
+        }
+        // no need to visit a slot twice in one call.
+        var from = Math.max(currentTick + 1, targetTick - slots.length + 1);
+        for (long tick = from; tick <= targetTick; tick++) {
+            var slot = slots[(int) (tick % slots.length)];
+            for (var it = slot.iterator(); it.hasNext(); ) {
+                var t = it.next();
+                if (t.deadlineTick <= tick) {
+                    it.remove();
+                    due.add(t.item);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        size.addAndGet(-due.size());
+        return due;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private record Timeout<T>(T item, long deadlineTick) {
+    }
+}
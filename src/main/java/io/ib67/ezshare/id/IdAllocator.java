@@ -0,0 +1,122 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.id;
+
+import io.ib67.ezshare.data.records.SequenceRange;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out unique ids without asking the database for each of them.
+ * <p>
+ * Sequence numbers are reserved from a persistent sequence in blocks, then scrambled by {@link IdCodec}.
+ * Allocation from the current block is a single atomic increment, so any event loop may call {@link #next()}.
+ * The following block is reserved in the background once half of the current one is used up.
+ */
+public final class IdAllocator {
+    private final Reserver reserver;
+    private final String alphabet;
+    private final int length;
+    private final int blockSize;
+    private final AtomicReference<Block> current = new AtomicReference<>(Block.EMPTY);
+    private final AtomicReference<Future<Block>> spare = new AtomicReference<>();
+
+    public IdAllocator(Reserver reserver, String alphabet, int length, int blockSize) {
+        if (blockSize < 1) throw new IllegalArgumentException("The id block size must be positive");
+        this.reserver = reserver;
+        this.alphabet = alphabet;
+        this.length = length;
+        this.blockSize = blockSize;
+        new IdCodec(alphabet, length, 0); // fail early on a bad alphabet or length.
+    }
+
+    /**
+     * @return a fresh id. Completes immediately unless a block has to be reserved first.
+     */
+    public Future<String> next() {
+        var block = current.get();
+        var sequence = block.cursor.getAndIncrement();
+        if (sequence < block.end) {
+            if (sequence == block.prefetchAt) reserve();
+            return Future.succeededFuture(block.codec.encode(sequence));
+        }
+        var reserved = reserve();
+        return reserved.compose(next -> {
+            if (current.compareAndSet(block, next)) spare.compareAndSet(reserved, null);
+            return next();
+        });
+    }
+
+    private Future<Block> reserve() {
+        while (true) {
+            var pending = spare.get();
+            if (pending != null) return pending;
+            var promise = Promise.<Block>promise();
+            if (spare.compareAndSet(null, promise.future())) {
+                reserver.reserve(blockSize).map(this::toBlock).onComplete(ar -> {
+                    if (ar.failed()) spare.compareAndSet(promise.future(), null); // try again next time.
+                    promise.handle(ar);
+                });
+                return promise.future();
+            }
+        }
+    }
+
+    private Block toBlock(SequenceRange range) {
+        var codec = new IdCodec(alphabet, length, range.seed());
+        if (range.end() > codec.space()) {
+            throw new IllegalStateException("All ids of " + length + " characters are used up, raise id-length");
+        }
+        return new Block(range.start(), range.end(), codec);
+    }
+
+    @FunctionalInterface
+    public interface Reserver {
+        /**
+         * Reserves {@code count} numbers of the sequence. The same seed must be returned every time.
+         */
+        Future<SequenceRange> reserve(long count);
+    }
+
+    private static final class Block {
+        private static final Block EMPTY = new Block(0, 0, null);
+
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+        private final IdCodec codec;
+
+        private Block(long start, long end, IdCodec codec) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = start + (end - start) / 2;
+            this.codec = codec;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.id;
+
+/**
+ * Maps sequence numbers to fixed-length ids over an alphabet, in an order that cannot be guessed without the seed.
+ * <p>
+ * The mapping is a permutation of {@code [0, alphabet^length)}: a keyed Feistel network over the smallest square
+ * domain covering the id space, with cycle walking for the values which fall outside of it.
+ * Distinct sequence numbers therefore always give distinct ids.
+ * <p>
+ * Ids with more combinations than 62 bits hold are scrambled in their last characters only, as many as fit.
+ * The leading ones are a keyed hash of the scrambled value, so they look random without adding ids to the space.
+ */
+public final class IdCodec {
+    private static final int ROUNDS = 4;
+    private static final long MAX_SPACE = 1L << 62;
+    /**
+     * Ids are stored in VARCHAR(32) columns.
+     */
+    public static final int MAX_LENGTH = 32;
+
+    private final char[] alphabet;
+    private final int length;
+    private final int scrambledLength;
+    private final long space;
+    private final long side;
+    private final long[] keys = new long[ROUNDS];
+    private final long padKey;
+
+    public IdCodec(String alphabet, int length, long seed) {
+        if (alphabet.length() < 2 || alphabet.chars().distinct().count() != alphabet.length()) {
+            throw new IllegalArgumentException("The id alphabet needs at least two distinct characters");
+        }
+        if (length < 1 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("The id length must be between 1 and " + MAX_LENGTH + ", not " + length);
+        }
+        var space = 1L;
+        var scrambledLength = 0;
+        while (scrambledLength < length && space <= MAX_SPACE / alphabet.length()) {
+            space *= alphabet.length();
+            scrambledLength++;
+        }
+        var side = (long) Math.ceil(Math.sqrt((double) space));
+        while (side * side < space) side++;
+        this.alphabet = alphabet.toCharArray();
+        this.length = length;
+        this.scrambledLength = scrambledLength;
+        this.space = space;
+        this.side = side;
+        for (int i = 0; i < ROUNDS; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            keys[i] = mix(seed);
+        }
+        this.padKey = mix(seed + 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * @return the count of distinct ids, at most 2^62.
+     */
+    public long space() {
+        return space;
+    }
+
+    public String encode(long sequence) {
+        var value = scramble(sequence);
+        var chars = new char[length];
+        var padding = length - scrambledLength;
+        for (int i = 0; i < padding; i++) {
+            chars[i] = alphabet[(int) Math.floorMod(mix((value ^ padKey) + i), (long) alphabet.length)];
+        }
+        for (int i = length - 1; i >= padding; i--) {
+            chars[i] = alphabet[(int) (value % alphabet.length)];
+            value /= alphabet.length;
+        }
+        return new String(chars);
+    }
+
+    long scramble(long sequence) {
+        if (sequence < 0 || sequence >= space) {
+            throw new IllegalArgumentException("Sequence " + sequence + " is out of the id space");
+        }
+        var value = sequence;
+        do {
+            value = feistel(value);
+        } while (value >= space);
+        return value;
+    }
+
+    private long feistel(long value) {
+        long left = value / side;
+        long right = value % side;
+        for (long key : keys) {
+            var next = (left + Math.floorMod(mix(right ^ key), side)) % side;
+            left = right;
+            right = next;
+        }
+        return left * side + right;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
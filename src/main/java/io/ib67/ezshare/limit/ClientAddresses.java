@@ -0,0 +1,121 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.limit;
+
+import io.vertx.core.http.HttpServerRequest;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Tells the address of the client behind a request, which is what rate limits, quotas and records are keyed on.
+ * <p>
+ * Behind a reverse proxy every request comes from the proxy, so for requests from one of the trusted proxies the
+ * client is taken from {@code X-Forwarded-For} instead: the last address in it which isn't a trusted proxy itself.
+ * The header of requests from anywhere else is ignored, since clients may send whatever they like in it.
+ */
+public final class ClientAddresses {
+    private static final String FORWARDED_FOR = "X-Forwarded-For";
+
+    private final List<Range> trustedProxies;
+
+    /**
+     * @param trustedProxies addresses like {@code 127.0.0.1} or ranges like {@code 10.0.0.0/8}.
+     * @throws IllegalArgumentException if one of them isn't an ip address or range.
+     */
+    public ClientAddresses(List<String> trustedProxies) {
+        this.trustedProxies = trustedProxies.stream().map(Range::parse).toList();
+    }
+
+    public String of(HttpServerRequest request) {
+        var peer = request.remoteAddress().hostAddress();
+        if (trustedProxies.isEmpty() || !isTrusted(peer)) return peer;
+        var header = request.getHeader(FORWARDED_FOR);
+        if (header == null) return peer;
+        // each proxy appends the address it got the request from, so the list is read from the end.
+        var hops = header.split(",");
+        var client = peer;
+        for (int i = hops.length - 1; i >= 0; i--) {
+            var hop = hops[i].trim();
+            if (hop.isEmpty()) break;
+            client = hop;
+            if (!isTrusted(hop)) break;
+        }
+        return client;
+    }
+
+    private boolean isTrusted(String address) {
+        var bytes = Range.literal(address);
+        if (bytes == null) return false;
+        for (var range : trustedProxies) {
+            if (range.contains(bytes)) return true;
+        }
+        return false;
+    }
+
+    private record Range(byte[] network, int prefix) {
+        static Range parse(String range) {
+            var slash = range.indexOf('/');
+            var network = literal(slash < 0 ? range : range.substring(0, slash));
+            if (network == null) throw new IllegalArgumentException("Not an ip address or range: " + range);
+            var bits = network.length * 8;
+            try {
+                var prefix = slash < 0 ? bits : Integer.parseInt(range.substring(slash + 1));
+                if (prefix < 0 || prefix > bits) throw new IllegalArgumentException("Bad prefix length in " + range);
+                return new Range(network, prefix);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad prefix length in " + range, e);
+            }
+        }
+
+        /**
+         * @return the bytes of an ip address, or null if it is a host name or garbage. Never looks anything up.
+         */
+        static byte[] literal(String address) {
+            var ipv6 = address.indexOf(':') >= 0;
+            if (!ipv6 && !address.matches("\\d{1,3}(\\.\\d{1,3}){3}")) return null;
+            if (ipv6 && !address.matches("[0-9a-fA-F:.]+")) return null;
+            try {
+                return InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+
+        boolean contains(byte[] address) {
+            if (address.length != network.length) return false;
+            var whole = prefix / 8;
+            for (int i = 0; i < whole; i++) {
+                if (address[i] != network[i]) return false;
+            }
+            var rest = prefix % 8;
+            if (rest == 0) return true;
+            var mask = 0xff << (8 - rest);
+            return (address[whole] & mask) == (network[whole] & mask);
+        }
+    }
+}
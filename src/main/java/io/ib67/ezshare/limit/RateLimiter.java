@@ -0,0 +1,204 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.limit;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.util.EarlyResponse;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-ip rate limits for every {@link RouteClass}, and caps on the uploads and downloads an ip may have in flight.
+ * <p>
+ * The rates are token buckets, kept as a "theoretical arrival time" (GCRA) so that a bucket is a single long updated
+ * by CAS. Clients live in a {@link ConcurrentHashMap} shared by all event loops, nothing is locked.
+ * Clients which have been idle for long enough to have full buckets again are evicted every minute.
+ */
+@Slf4j
+public class RateLimiter {
+    private static final long EVICT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final RouteClass[] CLASSES = RouteClass.values();
+
+    private final long[] intervals = new long[CLASSES.length]; // nanos per token, 0 for no limit.
+    private final long[] tolerances = new long[CLASSES.length]; // nanos of burst.
+    private final int[] maxInflight = new int[CLASSES.length]; // 0 for no limit.
+    private final long idleNanos;
+    private final ClientAddresses addresses;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final LongAdder[] allowed = adders();
+    private final LongAdder[] rateLimited = adders();
+    private final LongAdder[] concurrencyLimited = adders();
+
+    public RateLimiter(Vertx vertx, AppConfig config, ClientAddresses addresses) {
+        this.addresses = addresses;
+        setRate(RouteClass.UPLOAD, config.getRateLimitUploadsPerMinute(), config.getRateLimitUploadBurst());
+        setRate(RouteClass.DOWNLOAD, config.getRateLimitDownloadsPerMinute(), config.getRateLimitDownloadBurst());
+        setRate(RouteClass.REDIRECT, config.getRateLimitRedirectsPerMinute(), config.getRateLimitRedirectBurst());
+        maxInflight[RouteClass.UPLOAD.ordinal()] = config.getMaxUploadsPerIp();
+        maxInflight[RouteClass.DOWNLOAD.ordinal()] = config.getMaxDownloadsPerIp();
+        long idle = TimeUnit.MINUTES.toNanos(1);
+        for (int i = 0; i < CLASSES.length; i++) {
+            idle = Math.max(idle, intervals[i] + tolerances[i]);
+        }
+        this.idleNanos = idle;
+        vertx.setPeriodic(EVICT_INTERVAL_MILLIS, id -> evictIdle());
+    }
+
+    private void setRate(RouteClass routeClass, int perMinute, int burst) {
+        if (perMinute <= 0) return;
+        var interval = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        intervals[routeClass.ordinal()] = interval;
+        tolerances[routeClass.ordinal()] = interval * (Math.max(1, burst) - 1);
+    }
+
+    /**
+     * @return a handler which answers 429 to clients over their limits and passes the others on.
+     */
+    public Handler<RoutingContext> handler(RouteClass routeClass) {
+        return handler(routeClass, true);
+    }
+
+    /**
+     * Like {@link #handler(RouteClass)} without taking a token, for requests which go on with something the rate
+     * limit has let through already, like the chunks of a resumable upload. They still count as transfers in flight.
+     */
+    public Handler<RoutingContext> inflightHandler(RouteClass routeClass) {
+        return handler(routeClass, false);
+    }
+
+    private Handler<RoutingContext> handler(RouteClass routeClass, boolean rate) {
+        var index = routeClass.ordinal();
+        return ctx -> {
+            var now = System.nanoTime();
+            var client = clients.computeIfAbsent(addresses.of(ctx.request()), it -> new Client());
+            client.lastSeen = now;
+            var wait = rate ? client.acquire(index, now, intervals[index], tolerances[index]) : 0;
+            if (wait > 0) {
+                rateLimited[index].increment();
+                reject(ctx, TimeUnit.NANOSECONDS.toSeconds(wait) + 1, "Too many requests, please slow down.");
+                return;
+            }
+            var max = maxInflight[index];
+            if (max > 0) {
+                if (client.inflight.incrementAndGet(index) > max) {
+                    client.inflight.decrementAndGet(index);
+                    concurrencyLimited[index].increment();
+                    reject(ctx, 1, "Too many transfers at the same time.");
+                    return;
+                }
+                ctx.addEndHandler(it -> client.inflight.decrementAndGet(index));
+            }
+            allowed[index].increment();
+            ctx.next();
+        };
+    }
+
+    private static void reject(RoutingContext ctx, long retryAfterSeconds, String message) {
+        ctx.response().setStatusCode(429).putHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        var method = ctx.request().method();
+        if (method != HttpMethod.POST && method != HttpMethod.PATCH) {
+            ctx.end(message);
+            return;
+        }
+        // the body is still on its way, don't wait for it.
+        EarlyResponse.end(ctx, message);
+    }
+
+    private void evictIdle() {
+        var now = System.nanoTime();
+        var before = clients.size();
+        clients.values().removeIf(client -> now - client.lastSeen > idleNanos && client.isIdle());
+        var evicted = before - clients.size();
+        if (evicted > 0) {
+            log.debug("Evicted {} idle clients, {} left", evicted, clients.size());
+        }
+    }
+
+    public Counters counters(RouteClass routeClass) {
+        var i = routeClass.ordinal();
+        return new Counters(allowed[i].sum(), rateLimited[i].sum(), concurrencyLimited[i].sum());
+    }
+
+    public int trackedClients() {
+        return clients.size();
+    }
+
+    /**
+     * Requests let through and rejected since startup.
+     */
+    public record Counters(long allowed, long rateLimited, long concurrencyLimited) {
+    }
+
+    private static LongAdder[] adders() {
+        var adders = new LongAdder[CLASSES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static final class Client {
+        private final AtomicLongArray arrivals = new AtomicLongArray(CLASSES.length);
+        private final AtomicIntegerArray inflight = new AtomicIntegerArray(CLASSES.length);
+        private volatile long lastSeen;
+
+        /**
+         * Takes a token from the bucket.
+         *
+         * @return 0 if taken, or the nanos until there is one.
+         */
+        private long acquire(int index, long now, long interval, long tolerance) {
+            if (interval == 0) return 0;
+            while (true) {
+                var arrival = arrivals.get(index);
+                // a bucket which was never used counts as full.
+                var base = arrival == 0 ? now : Math.max(arrival, now);
+                if (base - now > tolerance) {
+                    return base - now - tolerance;
+                }
+                if (arrivals.compareAndSet(index, arrival, base + interval)) {
+                    return 0;
+                }
+            }
+        }
+
+        private boolean isIdle() {
+            for (int i = 0; i < CLASSES.length; i++) {
+                if (inflight.get(i) != 0) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations counted into fixed buckets, observing allocates nothing.
+ */
+public final class Histogram {
+    public static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+    public static final double[] FAST_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1};
+
+    private final long[] bounds; // upper bounds in nanos.
+    private final double[] seconds;
+    private final LongAdder[] counts; // not cumulative, the last one is +Inf.
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(double[] buckets) {
+        this.seconds = buckets.clone();
+        this.bounds = new long[buckets.length];
+        this.counts = new LongAdder[buckets.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            bounds[i] = (long) (buckets[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void observeNanos(long nanos) {
+        int i = 0;
+        while (i < bounds.length && nanos > bounds[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Observes the time passed since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void observeSince(long startNanos) {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    void writeTo(StringBuilder sb, String name, String labels) {
+        var separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i].sum();
+            sb.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(i < seconds.length ? Double.toString(seconds[i]) : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        var braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        sb.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.metrics;
+
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A small registry rendering the Prometheus text format.
+ * Series are created once with fixed labels and kept by their users, so recording never looks anything up.
+ * Registering the same name and labels again returns the existing series.
+ */
+public final class Metrics {
+    private static final long LAG_PROBE_MILLIS = 200;
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private final Map<String, Object> series = new LinkedHashMap<>();
+    private final Histogram eventLoopLag = histogram("ezshare_event_loop_lag_seconds",
+            "How late timers on the event loops fire.", Histogram.FAST_BUCKETS);
+
+    /**
+     * @param labels pairs of label names and values.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return register(name, help, "counter", labels, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return register(name, help, "histogram", labels, () -> new Histogram(buckets));
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return register(name, help, "gauge", labels, Gauge::new);
+    }
+
+    /**
+     * A gauge maintained elsewhere, read when scraped.
+     */
+    public void gaugeOf(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, () -> value);
+    }
+
+    /**
+     * A counter maintained elsewhere, read when scraped.
+     */
+    public void counterOf(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "counter", labels, () -> value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T register(String name, String help, String type, String[] labels, Supplier<T> factory) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels of " + name + " are not paired");
+        }
+        var family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        var labelText = labelText(labels);
+        return (T) series.computeIfAbsent(name + "{" + labelText + "}", k -> {
+            var metric = factory.get();
+            family.series.add(new Series(labelText, metric));
+            return metric;
+        });
+    }
+
+    /**
+     * Probes the event loop of the calling context, a late timer means something is blocking it.
+     */
+    public void monitorEventLoop(Vertx vertx) {
+        var due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LAG_PROBE_MILLIS);
+        vertx.setTimer(LAG_PROBE_MILLIS, id -> {
+            eventLoopLag.observeNanos(Math.max(0, System.nanoTime() - due));
+            monitorEventLoop(vertx);
+        });
+    }
+
+    public synchronized String scrape() {
+        var sb = new StringBuilder(4096);
+        families.forEach((name, family) -> {
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (var s : family.series) {
+                if (s.metric instanceof Histogram histogram) {
+                    histogram.writeTo(sb, name, s.labels);
+                    continue;
+                }
+                sb.append(name);
+                if (!s.labels.isEmpty()) {
+                    sb.append('{').append(s.labels).append('}');
+                }
+                sb.append(' ');
+                if (s.metric instanceof Counter counter) {
+                    sb.append(counter.get());
+                } else if (s.metric instanceof Gauge gauge) {
+                    sb.append(gauge.get());
+                } else if (s.metric instanceof LongSupplier supplier) {
+                    sb.append(supplier.getAsLong());
+                } else {
+                    sb.append(((DoubleSupplier) s.metric).getAsDouble());
+                }
+                sb.append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    private static String labelText(String[] labels) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            var value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                var c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private record Family(String help, String type, List<Series> series) {
+        Family(String help, String type) {
+            this(help, type, new ArrayList<>());
+        }
+    }
+
+    private record Series(String labels, Object metric) {
+    }
+}
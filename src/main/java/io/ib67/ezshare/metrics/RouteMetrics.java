@@ -0,0 +1,69 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.metrics;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Measures the requests of one route, it should be the first handler on the route.
+ */
+public final class RouteMetrics implements Handler<RoutingContext> {
+    private static final String[] CODES = {"1xx", "2xx", "3xx", "4xx", "5xx", "aborted"};
+
+    private final Histogram duration;
+    private final Counter[] responses = new Counter[CODES.length];
+    private final Counter received;
+    private final Counter sent;
+    private final Gauge inFlight;
+
+    public RouteMetrics(Metrics metrics, String route) {
+        this.duration = metrics.histogram("ezshare_http_request_duration_seconds",
+                "Time from routing a request until its response is ended.", Histogram.LATENCY_BUCKETS, "route", route);
+        for (int i = 0; i < CODES.length; i++) {
+            responses[i] = metrics.counter("ezshare_http_requests_total",
+                    "Requests by status class, aborted ones were closed before a response was ended.", "route", route, "code", CODES[i]);
+        }
+        this.received = metrics.counter("ezshare_http_received_bytes_total", "Request body bytes read.", "route", route);
+        this.sent = metrics.counter("ezshare_http_sent_bytes_total", "Response body bytes written.", "route", route);
+        this.inFlight = metrics.gauge("ezshare_http_requests_in_flight", "Requests not yet responded.", "route", route);
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        var start = System.nanoTime();
+        inFlight.increment();
+        ctx.addEndHandler(ar -> {
+            inFlight.decrement();
+            duration.observeSince(start);
+            var response = ctx.response();
+            var code = ar.failed() ? CODES.length - 1 : Math.min(Math.max(response.getStatusCode() / 100, 1), 5) - 1;
+            responses[code].increment();
+            received.add(ctx.request().bytesRead());
+            sent.add(response.bytesWritten());
+        });
+        ctx.next();
+    }
+}
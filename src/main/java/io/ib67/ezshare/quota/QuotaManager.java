@@ -0,0 +1,202 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.quota;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for uploads, done in memory before any byte is written.
+ * <p>
+ * Space on disk is reserved from a {@link SpaceLedger} per file system, which are shared by the storages living on it
+ * and reconciled with the file system every {@code space-reconcile-seconds}.
+ * The size of live files is counted per uploader ip and in total, rebuilt from the records at startup
+ * and kept up to date as files are added and expire.
+ */
+@Slf4j
+public class QuotaManager {
+    private static final long GB = 1024L * 1024 * 1024;
+    private static final long MB = 1024L * 1024;
+
+    private final Vertx vertx;
+    private final AppConfig config;
+    private final Map<String, SpaceLedger> ledgers = new HashMap<>(); // by storage type, filled before start.
+    private final long perIpLimit;
+    private final long totalLimit;
+    private final Map<String, Usage> usageByIp = new HashMap<>(); // guarded by this
+    private final Usage total = new Usage(); // guarded by this
+
+    public QuotaManager(Vertx vertx, AppConfig config, Map<String, IStorageProvider> providers) {
+        this.vertx = vertx;
+        this.config = config;
+        this.perIpLimit = config.getQuotaPerIp() * MB;
+        this.totalLimit = config.getQuotaTotal() * GB;
+        var byStore = new HashMap<FileStore, SpaceLedger>();
+        providers.forEach((type, provider) -> {
+            var dir = provider.localDirectory();
+            if (dir == null) return;
+            try {
+                var store = Files.getFileStore(dir);
+                ledgers.put(type, byStore.computeIfAbsent(store, it -> new SpaceLedger(it, config.getPreservedSpace() * GB)));
+            } catch (IOException e) {
+                log.warn("Cannot find the file system of {}, its free space is not checked. {}", dir, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Counts the existing files and reads the free space, then keeps reconciling on the caller's context.
+     */
+    public Future<Void> start(DataSource source) {
+        return source.forEachFile(fr -> settle(fr.ip(), 0, fr.size()))
+                .compose(it -> reconcile())
+                .onSuccess(it -> {
+                    vertx.setPeriodic(TimeUnit.SECONDS.toMillis(Math.max(1, config.getSpaceReconcileSeconds())), id -> reconcile()
+                            .onFailure(t -> log.warn("Cannot read the free space! {}", t.getMessage())));
+                    synchronized (this) {
+                        log.info("Accounting {} bytes of {} uploaders", total.used, usageByIp.size());
+                    }
+                });
+    }
+
+    private Future<Void> reconcile() {
+        return vertx.executeBlocking(promise -> {
+            try {
+                for (SpaceLedger ledger : ledgers.values().stream().distinct().toList()) {
+                    ledger.reconcile();
+                }
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false);
+    }
+
+    /**
+     * Reserves room for an upload.
+     *
+     * @param ip           the uploader, or null if the content isn't new, e.g. a file moved between storages.
+     * @param expectedSize -1 if unknown, then the most an upload may have is reserved.
+     * @throws QuotaExceededException if it doesn't fit.
+     */
+    public Reservation reserve(String storageType, String ip, long expectedSize) {
+        var bytes = expectedSize >= 0 ? expectedSize : config.getMaxBodySize() * 1024;
+        var ledger = ledgers.get(storageType);
+        synchronized (this) {
+            if (ip != null) {
+                if (totalLimit > 0 && total.used + total.reserved + bytes > totalLimit) {
+                    throw new QuotaExceededException(507, "The storage is full.");
+                }
+                if (perIpLimit > 0 && usageOf(ip).used + usageOf(ip).reserved + bytes > perIpLimit) {
+                    throw new QuotaExceededException(429, "You have uploaded too much, please wait for your files to expire.");
+                }
+            }
+            if (ledger != null && !ledger.tryReserve(bytes)) {
+                throw new QuotaExceededException(507, "The disk is full.");
+            }
+            if (ip != null) {
+                usageOf(ip).reserved += bytes;
+                total.reserved += bytes;
+            }
+        }
+        return new Reservation(ledger, ip, bytes);
+    }
+
+    /**
+     * Gives the quota of an expired file back. Its disk space is picked up by the next reconciliation.
+     */
+    public synchronized void removed(FileRecord fr) {
+        var usage = usageByIp.get(fr.ip());
+        if (usage == null) return;
+        usage.used -= fr.size();
+        total.used -= fr.size();
+        if (usage.used <= 0 && usage.reserved <= 0) {
+            usageByIp.remove(fr.ip());
+        }
+    }
+
+    // holding the lock.
+    private Usage usageOf(String ip) {
+        return usageByIp.computeIfAbsent(ip, it -> new Usage());
+    }
+
+    private synchronized void settle(String ip, long reserved, long used) {
+        var usage = usageOf(ip);
+        usage.reserved -= reserved;
+        usage.used += used;
+        total.reserved -= reserved;
+        total.used += used;
+    }
+
+    private static final class Usage {
+        private long used;
+        private long reserved;
+    }
+
+    /**
+     * Room held for one upload until it is either committed or released, only the first of them counts.
+     */
+    public final class Reservation {
+        private final SpaceLedger ledger;
+        private final String ip;
+        private final long bytes;
+        private boolean settled;
+
+        private Reservation(SpaceLedger ledger, String ip, long bytes) {
+            this.ledger = ledger;
+            this.ip = ip;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param size how much has actually been stored.
+         */
+        public synchronized void commit(long size) {
+            if (settled) return;
+            settled = true;
+            if (ledger != null) ledger.commit(bytes, size);
+            if (ip != null) settle(ip, bytes, size);
+        }
+
+        public synchronized void release() {
+            if (settled) return;
+            settled = true;
+            if (ledger != null) ledger.release(bytes);
+            if (ip != null) settle(ip, bytes, 0);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.quota;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+
+/**
+ * Free space of one file system, estimated from the last statfs minus what has been reserved or written since.
+ * Only {@link #reconcile()} touches the file system, and it runs off the event loop.
+ */
+final class SpaceLedger {
+    private final FileStore store;
+    private final long preserved;
+    private long free; // guarded by this
+    private long reserved; // guarded by this
+    private long written; // guarded by this, only grows.
+
+    SpaceLedger(FileStore store, long preserved) {
+        this.store = store;
+        this.preserved = preserved;
+    }
+
+    synchronized boolean tryReserve(long bytes) {
+        if (free - reserved - bytes < preserved) return false;
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Turns a reservation into used space, {@code bytes} may be less than what was reserved.
+     */
+    synchronized void commit(long reservedBytes, long bytes) {
+        reserved -= reservedBytes;
+        free -= bytes;
+        written += bytes;
+    }
+
+    synchronized void release(long reservedBytes) {
+        reserved -= reservedBytes;
+    }
+
+    /**
+     * Reads the free space again. Writes which finish while it's being read are counted twice until the next time,
+     * which errs on the safe side.
+     */
+    void reconcile() throws IOException {
+        long before;
+        synchronized (this) {
+            before = written;
+        }
+        var usable = store.getUsableSpace();
+        synchronized (this) {
+            free = usable - (written - before);
+        }
+    }
+
+    synchronized long available() {
+        return free - reserved - preserved;
+    }
+}
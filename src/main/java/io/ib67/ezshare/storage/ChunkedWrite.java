@@ -0,0 +1,58 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Content of a resumable upload, written chunk by chunk at their offsets. Chunks may arrive in any order,
+ * over many requests and at the same time.
+ */
+public interface ChunkedWrite {
+    /**
+     * @return what the write is found again by after a restart, see {@link IStorageProvider#chunkedWrite(String, long)}.
+     */
+    String handle();
+
+    /**
+     * Writes a chunk at the given offset, over anything written there before.
+     */
+    Future<Void> write(long offset, ReadStream<Buffer> chunk);
+
+    /**
+     * Called once every byte has been written.
+     *
+     * @return the identifier of the content, which will be saved into {@link io.ib67.ezshare.data.records.FileRecord#fileIdentifier()}
+     */
+    Future<String> complete();
+
+    /**
+     * Removes whatever has been written so far.
+     */
+    Future<Void> abort();
+}
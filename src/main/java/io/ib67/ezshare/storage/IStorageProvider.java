@@ -25,22 +25,69 @@
 
 package io.ib67.ezshare.storage;
 
+import io.ib67.ezshare.data.DataSource;
 import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.util.Futures;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.streams.ReadStream;
-import io.vertx.ext.web.FileUpload;
 import io.vertx.ext.web.RoutingContext;
 
 import java.nio.file.Path;
-import java.util.function.Consumer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public interface IStorageProvider {
-    void store(RoutingContext context, FileUpload file, Consumer<Future<String>> identifierCallback);
+    /**
+     * Writes the content to its final location as it arrives.
+     *
+     * @param expectedSize size hint for admission checks, -1 if unknown.
+     * @return the identifier of stored content, which will be saved into {@link FileRecord#fileIdentifier()}
+     */
+    Future<String> store(ReadStream<Buffer> content, long expectedSize);
+
+    /**
+     * Writes the content of a resumable upload at the offsets its chunks arrive with.
+     *
+     * @param handle {@link ChunkedWrite#handle()} of a write to continue after a restart, null to start a new one.
+     * @param size   the size the content will have.
+     * @return null if this provider can't write at offsets, the upload is then staged on local disk
+     * and {@link #store}d once it's complete.
+     */
+    default ChunkedWrite chunkedWrite(String handle, long size) {
+        return null;
+    }
 
     void download(FileRecord fr, RoutingContext context);
 
     Future<ReadStream<Buffer>> read(FileRecord fr);
 
-    void delete(FileRecord fr);
+    Future<Void> delete(FileRecord fr);
+
+    /**
+     * Deletes the content of many records at once, e.g. of expired files.
+     *
+     * @param concurrency how many deletions may be in flight, for providers deleting records one by one.
+     * @return the records whose content could not be deleted.
+     */
+    default Future<List<FileRecord>> deleteAll(List<FileRecord> records, int concurrency) {
+        var failed = new ConcurrentLinkedQueue<FileRecord>();
+        return Futures.forEachBounded(records, concurrency, fr -> delete(fr).onFailure(t -> failed.add(fr)))
+                .map(it -> List.copyOf(failed));
+    }
+
+    /**
+     * @return the directory content is written to, so that the free space of its disk can be accounted.
+     * null if the content isn't kept on a local disk.
+     */
+    default Path localDirectory() {
+        return null;
+    }
+
+    /**
+     * Rebuilds in-memory bookkeeping from the records stored by this provider. Called once before serving requests.
+     */
+    default Future<Void> recover(String storageType, DataSource source) {
+        return Future.succeededFuture();
+    }
 }
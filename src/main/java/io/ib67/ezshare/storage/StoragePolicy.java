@@ -0,0 +1,52 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.util.ContentEncoding;
+
+/**
+ * Where new content goes and how it's stored, shared by uploads and by files moved back from the cold storage.
+ */
+public final class StoragePolicy {
+    private StoragePolicy() {
+    }
+
+    /**
+     * Small uploads with a known size are packed into segments, everything else goes to the default storage.
+     *
+     * @param expectedSize -1 if unknown.
+     */
+    public static String storageTypeFor(AppConfig config, long expectedSize) {
+        var threshold = config.getPackedThreshold() * 1024L;
+        return expectedSize >= 0 && expectedSize < threshold ? "packed" : config.getDefaultStoreType();
+    }
+
+    public static String encodingFor(AppConfig config, String mimeType) {
+        return config.isCompressUploads() && ContentEncoding.isCompressible(mimeType, config.getCompressibleMimeTypes())
+                ? ContentEncoding.GZIP
+                : ContentEncoding.IDENTITY;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage.impl;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.ChunkedWrite;
+import io.ib67.ezshare.util.DigestReadStream;
+import io.ib67.ezshare.util.RandomHelper;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.streams.ReadStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Stores every distinct content once, named by its SHA-256 digest.
+ * <p>
+ * Uploads are hashed while being written into {@code incoming/}, then either moved into {@code blobs/} or dropped if the blob exists.
+ * The blob is deleted with its last record. Reference counts live in memory and are rebuilt from the database at startup,
+ * all operations on one digest are serialized.
+ */
+@Slf4j
+public class DedupStorageProvider extends LocalStorageProvider {
+    private final Path blobDir;
+    private final Path incomingDir;
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+    private final Map<String, Future<Void>> tails = new ConcurrentHashMap<>();
+
+    public DedupStorageProvider(Vertx vertx, AppConfig config, Path storageDir) {
+        super(vertx, config, storageDir);
+        this.blobDir = storageDir.resolve("blobs");
+        this.incomingDir = storageDir.resolve("incoming");
+        blobDir.toFile().mkdirs();
+        incomingDir.toFile().mkdirs();
+    }
+
+    /**
+     * Staged, content is only known by its hash once it has been written completely.
+     */
+    @Override
+    public ChunkedWrite chunkedWrite(String handle, long size) {
+        return null;
+    }
+
+    @Override
+    public Future<String> store(ReadStream<Buffer> content, long expectedSize) {
+        var tmp = incomingDir.resolve(RandomHelper.randomString() + Long.toHexString(System.nanoTime())).toAbsolutePath().toString();
+        var hashing = new DigestReadStream(content, "SHA-256");
+        return writeFile(tmp, hashing).compose(it -> {
+            var digest = hashing.hexDigest();
+            return serialized(digest, () -> {
+                var count = refs.getOrDefault(digest, 0);
+                Future<Void> placed;
+                if (count > 0) {
+                    placed = vertx.fileSystem().delete(tmp);
+                } else {
+                    var blob = blobPath(digest);
+                    placed = vertx.fileSystem().mkdirs(Path.of(blob).getParent().toString())
+                            .compose(v -> vertx.fileSystem().move(tmp, blob, new CopyOptions().setReplaceExisting(true)));
+                }
+                return placed.onSuccess(v -> refs.merge(digest, 1, Integer::sum))
+                        .onFailure(t -> vertx.fileSystem().delete(tmp))
+                        .map(v -> digest);
+            });
+        });
+    }
+
+    @Override
+    public Future<Void> delete(FileRecord fr) {
+        var digest = fr.fileIdentifier();
+        return serialized(digest, () -> {
+            var left = refs.computeIfPresent(digest, (k, v) -> v - 1);
+            if (left != null && left > 0) {
+                return Future.succeededFuture();
+            }
+            refs.remove(digest);
+            return super.delete(fr);
+        });
+    }
+
+    @Override
+    public Future<Void> recover(String storageType, DataSource source) {
+        refs.clear();
+        return source.forEachFile(fr -> {
+            if (storageType.equals(fr.storageType())) {
+                refs.merge(fr.fileIdentifier(), 1, Integer::sum);
+            }
+        }).compose(it -> vertx.fileSystem().readDir(incomingDir.toString()))
+                .compose(leftovers -> {
+                    // interrupted uploads from the last run.
+                    leftovers.forEach(vertx.fileSystem()::delete);
+                    log.info("Tracking {} distinct blobs, removed {} interrupted uploads", refs.size(), leftovers.size());
+                    return Future.<Void>succeededFuture();
+                });
+    }
+
+    @Override
+    protected String pathOf(FileRecord fr) {
+        return blobPath(fr.fileIdentifier());
+    }
+
+    private String blobPath(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest).toAbsolutePath().toString();
+    }
+
+    /**
+     * Runs the action after every previous action on the same key has completed.
+     */
+    private <T> Future<T> serialized(String key, Supplier<Future<T>> action) {
+        var result = Promise.<T>promise();
+        var tail = tails.compute(key, (k, prev) -> {
+            Future<Void> before = prev == null ? Future.succeededFuture() : prev;
+            var run = before.transform(ignored -> action.get()).onComplete(result);
+            return run.transform(ignored -> Future.succeededFuture());
+        });
+        tail.onComplete(it -> tails.remove(key, tail));
+        return result.future();
+    }
+}
@@ -27,74 +27,259 @@ package io.ib67.ezshare.storage.impl;
 
 import io.ib67.ezshare.config.AppConfig;
 import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.ChunkedWrite;
 import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.ib67.ezshare.util.HttpRanges;
 import io.ib67.ezshare.util.RandomHelper;
+import io.ib67.ezshare.util.TransformReadStream;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
 import io.vertx.core.file.OpenOptions;
-import io.vertx.core.streams.Pump;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.streams.ReadStream;
-import io.vertx.ext.web.FileUpload;
 import io.vertx.ext.web.RoutingContext;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
-import java.net.http.HttpHeaders;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.function.Consumer;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 
 @RequiredArgsConstructor
 @Slf4j
 public class LocalStorageProvider implements IStorageProvider {
-    private final Vertx vertx;
-    private final AppConfig config;
-    private final Path storageDir;
+    protected final Vertx vertx;
+    protected final AppConfig config;
+    protected final Path storageDir;
 
     @Override
-    public void store(RoutingContext ctx, FileUpload file, Consumer<Future<String>> identifierCallback) {
-        var id = RandomHelper.randomString();
-        var path = storageDir.resolve(id).toAbsolutePath();
-        if (storageDir.toFile().getFreeSpace() - file.size() < (long) config.getPreservedSpace() * 1024 * 1024 * 1024) {
-            identifierCallback.accept(Future.failedFuture("The disk is full."));
-            return;
-        }
+    public Future<String> store(ReadStream<Buffer> content, long expectedSize) {
+        var id = RandomHelper.randomString(16);
+        return writeFile(storageDir.resolve(id).toAbsolutePath().toString(), content).map(it -> id);
+    }
+
+    /**
+     * Chunks are written into a file of the upload session directory, which is moved here once complete.
+     * Content of sessions lost to a crash is left there, where the recovery of the sessions cleans it up.
+     * The handle is the name of the file in both places.
+     */
+    @Override
+    public ChunkedWrite chunkedWrite(String handle, long size) {
+        var id = handle == null ? RandomHelper.randomString(16) : handle;
+        var partial = Path.of(config.getUploadSessionDir()).resolve(id).toAbsolutePath().toString();
+        var path = storageDir.resolve(id).toAbsolutePath().toString();
+        return new ChunkedWrite() {
+            @Override
+            public String handle() {
+                return id;
+            }
+
+            @Override
+            public Future<Void> write(long offset, ReadStream<Buffer> chunk) {
+                // every chunk gets its own handle, positional writes don't get in the way of each other.
+                return vertx.fileSystem().open(partial, new OpenOptions().setWrite(true))
+                        .compose(file -> chunk.pipeTo(file.setWritePos(offset)));
+            }
+
+            @Override
+            public Future<String> complete() {
+                // an empty upload never wrote a chunk. Staging writes are in the session directory already.
+                return vertx.fileSystem().open(partial, new OpenOptions().setWrite(true))
+                        .compose(AsyncFile::close)
+                        .compose(it -> partial.equals(path) ? Future.<Void>succeededFuture() : vertx.fileSystem().move(partial, path))
+                        .map(it -> id);
+            }
+
+            @Override
+            public Future<Void> abort() {
+                return vertx.fileSystem().delete(partial)
+                        .recover(t -> t.getCause() instanceof NoSuchFileException ? Future.succeededFuture() : Future.failedFuture(t));
+            }
+        };
+    }
+
+    @Override
+    public Path localDirectory() {
+        return storageDir;
+    }
+
+    /**
+     * Pipes the content into a new file, which is removed again if anything goes wrong.
+     */
+    protected Future<Void> writeFile(String path, ReadStream<Buffer> content) {
+        return vertx.fileSystem().open(path, new OpenOptions().setWrite(true).setCreateNew(true))
+                .compose(file -> content.pipeTo(file)
+                        .recover(t -> vertx.fileSystem().delete(path)
+                                .transform(ignored -> Future.failedFuture(t))));
+    }
 
-        identifierCallback.accept(vertx.fileSystem().move(file.uploadedFileName(), path.toAbsolutePath().toString())
-                .map(it -> id));
+    protected String pathOf(FileRecord fr) {
+        return storageDir.resolve(fr.fileIdentifier()).toAbsolutePath().toString();
     }
 
     @Override
     public void download(FileRecord fr, RoutingContext context) {
-        context.attachment(fr.fileName());
         var time = System.currentTimeMillis();
-        vertx.fileSystem().open(storageDir.resolve(fr.fileIdentifier()).toAbsolutePath().toString(), new OpenOptions().setRead(true))
-                .onSuccess(it -> {
-                    context.response().headers().set("Content-Type", fr.mimeType());
-                    context.response().headers().set("Content-Length", String.valueOf(fr.size()));
-                    it.endHandler(a -> {
-                        context.end();
-                        log.info("[Download] " + fr.fileName() + " tooks " + (System.currentTimeMillis() - time) + "ms");
-                    });
-                    var pump = Pump.pump(it, context.response());
-                    pump.start();
-                }).onFailure(it -> {
-                    context.end("Failed to download file.");
+        var request = context.request();
+        var response = context.response();
+        var etag = "\"" + fr.fileIdentifier() + "\"";
+        var lastModified = fr.time().atZone(ZoneId.systemDefault());
+        context.attachment(fr.fileName());
+        response.putHeader("Last-Modified", HttpRanges.httpDate(lastModified));
+
+        Future<Void> sent;
+        if (!ContentEncoding.IDENTITY.equals(fr.encoding())) {
+            sent = sendEncoded(fr, context);
+            logDownload(fr, response, sent, time);
+            return;
+        }
+        response.putHeader("Accept-Ranges", "bytes").putHeader("ETag", etag);
+        var ranges = HttpRanges.ifRangeMatches(request.getHeader("If-Range"), etag, lastModified)
+                ? HttpRanges.parse(request.getHeader("Range"), fr.size())
+                : null;
+        if (ranges == null) {
+            response.putHeader("Content-Type", fr.mimeType());
+            sent = sendRegion(response, fr, 0, fr.size());
+        } else if (ranges.isEmpty()) {
+            response.setStatusCode(416).putHeader("Content-Range", "bytes */" + fr.size());
+            sent = response.end();
+        } else if (ranges.size() == 1) {
+            var range = ranges.get(0);
+            response.setStatusCode(206)
+                    .putHeader("Content-Type", fr.mimeType())
+                    .putHeader("Content-Range", range.contentRange(fr.size()));
+            sent = sendRegion(response, fr, range.start(), range.length());
+        } else {
+            sent = sendMultipartRanges(fr, ranges, response);
+        }
+        logDownload(fr, response, sent, time);
+    }
+
+    /**
+     * Compressed content is sent as it is stored if the client accepts the coding, and decompressed on the fly otherwise.
+     * Ranges are not offered for it.
+     */
+    private Future<Void> sendEncoded(FileRecord fr, RoutingContext context) {
+        var response = context.response();
+        response.putHeader("Accept-Ranges", "none")
+                .putHeader("Vary", "Accept-Encoding")
+                .putHeader("Content-Type", fr.mimeType());
+        if (ContentEncoding.accepts(context.request().getHeader("Accept-Encoding"), fr.encoding())) {
+            response.putHeader("Content-Encoding", fr.encoding())
+                    .putHeader("ETag", "\"" + fr.fileIdentifier() + "-" + fr.encoding() + "\"");
+            return sendStored(response, fr);
+        }
+        response.putHeader("ETag", "\"" + fr.fileIdentifier() + "\"")
+                .putHeader("Content-Length", String.valueOf(fr.size()));
+        return read(fr).compose(stream -> ContentEncoding.decode(stream, fr.encoding()).pipeTo(response));
+    }
+
+    private void logDownload(FileRecord fr, HttpServerResponse response, Future<Void> sent, long time) {
+        sent.onSuccess(it -> {
+            log.info("[Download] " + fr.fileName() + " tooks " + (System.currentTimeMillis() - time) + "ms");
+        }).onFailure(it -> {
+            if (!response.headWritten()) {
+                response.setStatusCode(500);
+                response.headers().remove("Content-Disposition");
+                response.end("Failed to download file.");
+            } else {
+                response.reset();
+            }
+        });
+    }
+
+    private Future<Void> sendMultipartRanges(FileRecord fr, List<HttpRanges.ByteRange> ranges, HttpServerResponse response) {
+        var boundary = RandomHelper.randomString() + Long.toHexString(System.nanoTime());
+        var headers = new ArrayList<Buffer>(ranges.size());
+        long length = 0;
+        for (HttpRanges.ByteRange range : ranges) {
+            var head = Buffer.buffer("\r\n--" + boundary
+                    + "\r\nContent-Type: " + fr.mimeType()
+                    + "\r\nContent-Range: " + range.contentRange(fr.size())
+                    + "\r\n\r\n");
+            headers.add(head);
+            length += head.length() + range.length();
+        }
+        var tail = Buffer.buffer("\r\n--" + boundary + "--\r\n");
+        length += tail.length();
+        response.setStatusCode(206)
+                .putHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .putHeader("Content-Length", String.valueOf(length));
+        Future<Void> chain = Future.succeededFuture();
+        for (int i = 0; i < ranges.size(); i++) {
+            var head = headers.get(i);
+            var range = ranges.get(i);
+            chain = chain.compose(it -> response.write(head))
+                    .compose(it -> writeRegion(response, fr, range.start(), range.length()));
+        }
+        return chain.compose(it -> response.end(tail));
+    }
+
+    /**
+     * Sends a region of the content and ends the response.
+     */
+    protected Future<Void> sendRegion(HttpServerResponse response, FileRecord fr, long start, long length) {
+        return response.sendFile(pathOf(fr), start, length);
+    }
+
+    /**
+     * Sends the stored bytes as they are and ends the response.
+     */
+    protected Future<Void> sendStored(HttpServerResponse response, FileRecord fr) {
+        return response.sendFile(pathOf(fr));
+    }
+
+    /**
+     * Writes a region of the content without ending the response.
+     */
+    protected Future<Void> writeRegion(HttpServerResponse response, FileRecord fr, long start, long length) {
+        return vertx.fileSystem().open(pathOf(fr), new OpenOptions().setRead(true))
+                .compose(file -> {
+                    file.setReadPos(start).setReadLength(length);
+                    return file.pipe().endOnComplete(false).to(response)
+                            .eventually(v -> file.close());
                 });
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Future<ReadStream<Buffer>> read(FileRecord fr) {
-        return (Future<ReadStream<Buffer>>) (Object) vertx.fileSystem().open(storageDir.resolve(fr.fileIdentifier()).toAbsolutePath().toString(), new OpenOptions().setRead(true));
+        return vertx.fileSystem().open(pathOf(fr), new OpenOptions().setRead(true)).map(ClosingReadStream::new);
+    }
+
+    /**
+     * Closes the file once it has been read to the end or has failed, consumers only see a {@link ReadStream}.
+     */
+    private static final class ClosingReadStream extends TransformReadStream {
+        private ClosingReadStream(AsyncFile file) {
+            super(file);
+        }
+
+        @Override
+        protected Buffer transform(Buffer chunk) {
+            return chunk;
+        }
+
+        @Override
+        protected Buffer finish() {
+            ((AsyncFile) source).close();
+            return null;
+        }
+
+        @Override
+        protected void fail(Throwable t) {
+            super.fail(t);
+            ((AsyncFile) source).close();
+        }
     }
 
-    @SneakyThrows
     @Override
-    public void delete(FileRecord fr) {
-        Files.deleteIfExists(storageDir.resolve(fr.fileIdentifier()));
+    public Future<Void> delete(FileRecord fr) {
+        return vertx.fileSystem().delete(pathOf(fr))
+                .recover(t -> t.getCause() instanceof NoSuchFileException ? Future.succeededFuture() : Future.failedFuture(t));
     }
 }
@@ -0,0 +1,409 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage.impl;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.ChunkedWrite;
+import io.ib67.ezshare.util.BufferReadStream;
+import io.ib67.ezshare.util.Futures;
+import io.ib67.ezshare.util.SizeLimitedReadStream;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.streams.ReadStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Packs small objects into large preallocated segment files, addressed by {@code segment:offset:length}.
+ * <p>
+ * Every segment stays open for the lifetime of the process, so reads are positional reads on a shared channel
+ * instead of an open/close per request. Larger regions are sent with sendfile.
+ * A new segment is started on every boot, older ones are sealed. A sealed segment is deleted once nothing lives in it,
+ * and the live objects of mostly-dead segments are copied forward by a periodic compaction.
+ */
+@Slf4j
+public class PackedStorageProvider extends LocalStorageProvider {
+    private static final long ZERO_COPY_THRESHOLD = 64 * 1024;
+    private static final long COMPACTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long RETIRE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String SUFFIX = ".seg";
+
+    private final long segmentSize;
+    private final long maxObjectSize;
+    private final double compactionRatio;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // objects moved by compaction, old identifier -> new one and back. Records loaded before a move
+    // are deleted with the old identifier, the copy they are followed to is released instead.
+    private final Map<String, String> forwarded = new ConcurrentHashMap<>();
+    private final Map<String, String> forwardedFrom = new ConcurrentHashMap<>();
+    // record id -> its move in flight.
+    private final Map<String, Future<Void>> moving = new ConcurrentHashMap<>();
+    private Segment active; // guarded by this
+    private int nextSegment; // guarded by this
+    private String storageType;
+    private DataSource source;
+    private boolean compacting;
+
+    public PackedStorageProvider(Vertx vertx, AppConfig config, Path storageDir) {
+        super(vertx, config, storageDir);
+        this.segmentSize = config.getPackedSegmentSize() * 1024L * 1024L;
+        this.maxObjectSize = Math.min(config.getPackedThreshold() * 1024L, segmentSize);
+        this.compactionRatio = config.getPackedCompactionRatio();
+        storageDir.toFile().mkdirs();
+    }
+
+    /**
+     * Staged, segments are appended to, there is no room to write into at an offset.
+     */
+    @Override
+    public ChunkedWrite chunkedWrite(String handle, long size) {
+        return null;
+    }
+
+    @Override
+    public Future<String> store(ReadStream<Buffer> content, long expectedSize) {
+        return collect(new SizeLimitedReadStream(content, maxObjectSize))
+                .compose(buffer -> vertx.executeBlocking(promise -> {
+                    try {
+                        promise.complete(append(buffer).toString());
+                    } catch (IOException e) {
+                        promise.fail(e);
+                    }
+                }, false));
+    }
+
+    private static Future<Buffer> collect(ReadStream<Buffer> content) {
+        var promise = Promise.<Buffer>promise();
+        var buffer = Buffer.buffer();
+        content.exceptionHandler(promise::tryFail)
+                .endHandler(v -> promise.tryComplete(buffer))
+                .handler(buffer::appendBuffer);
+        content.resume();
+        return promise.future();
+    }
+
+    private Location append(Buffer buffer) throws IOException {
+        var length = buffer.length();
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            if (active == null || active.writeOffset + length > segmentSize) {
+                roll();
+            }
+            segment = active;
+            offset = segment.writeOffset;
+            segment.writeOffset += length;
+            segment.acquire(length);
+        }
+        try {
+            var bb = buffer.getByteBuf().nioBuffer();
+            while (bb.hasRemaining()) {
+                segment.channel.write(bb, offset + bb.position());
+            }
+        } catch (IOException e) {
+            segment.release(length);
+            throw e;
+        }
+        return new Location(segment.number, offset, length);
+    }
+
+    // holding the lock.
+    private void roll() throws IOException {
+        var previous = active;
+        var segment = openSegment(nextSegment++, true);
+        segments.put(segment.number, segment);
+        active = segment;
+        if (previous != null) {
+            previous.sealed = true;
+            if (previous.liveCount.get() == 0) retire(previous);
+        }
+    }
+
+    private Segment openSegment(int number, boolean create) throws IOException {
+        var path = storageDir.resolve(String.format("%08d", number) + SUFFIX);
+        try (var raf = new RandomAccessFile(path.toFile(), "rw")) {
+            if (create) raf.setLength(segmentSize); // preallocate, sparse where supported.
+        }
+        var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(number, path, channel);
+    }
+
+    private void retire(Segment segment) {
+        if (!segment.retired.compareAndSet(false, true)) return;
+        // readers may still be around with the old location.
+        vertx.setTimer(RETIRE_DELAY_MILLIS, id -> vertx.executeBlocking(promise -> {
+            segments.remove(segment.number, segment);
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false).onFailure(t -> log.warn("Cannot remove segment {}", segment.path, t)));
+    }
+
+    /**
+     * Releases the object where it currently lives, which may not be where the record says if compaction has moved it.
+     */
+    @Override
+    public Future<Void> delete(FileRecord fr) {
+        var move = moving.get(fr.id());
+        // the move decides which of the copies is released, wait for it.
+        return (move == null ? Future.<Void>succeededFuture() : move.otherwiseEmpty()).map(it -> {
+            var location = Location.parse(currentIdentifier(fr.fileIdentifier()));
+            var segment = segments.get(location.segment());
+            if (segment != null) {
+                release(segment, location.length());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Follows the moves from a possibly stale identifier to the current one, and forgets the way there and back.
+     */
+    private String currentIdentifier(String identifier) {
+        var current = identifier;
+        String next;
+        while ((next = forwarded.remove(current)) != null) {
+            forwardedFrom.remove(next);
+            current = next;
+        }
+        var back = identifier;
+        String previous;
+        while ((previous = forwardedFrom.remove(back)) != null) {
+            forwarded.remove(previous);
+            back = previous;
+        }
+        return current;
+    }
+
+    private void release(Segment segment, long length) {
+        if (segment.release(length) == 0 && segment.sealed) {
+            retire(segment);
+        }
+    }
+
+    private Future<Buffer> readRegion(FileRecord fr, long start, long length) {
+        var location = Location.parse(fr.fileIdentifier());
+        var segment = segments.get(location.segment());
+        if (segment == null) {
+            return Future.failedFuture("Segment " + location.segment() + " is missing");
+        }
+        return vertx.executeBlocking(promise -> {
+            try {
+                var bb = ByteBuffer.allocate(Math.toIntExact(length));
+                var position = location.offset() + start;
+                while (bb.hasRemaining()) {
+                    if (segment.channel.read(bb, position + bb.position()) < 0) {
+                        throw new EOFException("Unexpected end of segment " + segment.number);
+                    }
+                }
+                promise.complete(Buffer.buffer(bb.array()));
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false);
+    }
+
+    @Override
+    protected Future<Void> sendRegion(HttpServerResponse response, FileRecord fr, long start, long length) {
+        if (length >= ZERO_COPY_THRESHOLD) {
+            return response.sendFile(pathOf(fr), Location.parse(fr.fileIdentifier()).offset() + start, length);
+        }
+        return readRegion(fr, start, length).compose(response::end);
+    }
+
+    @Override
+    protected Future<Void> sendStored(HttpServerResponse response, FileRecord fr) {
+        return sendRegion(response, fr, 0, Location.parse(fr.fileIdentifier()).length());
+    }
+
+    @Override
+    protected Future<Void> writeRegion(HttpServerResponse response, FileRecord fr, long start, long length) {
+        return readRegion(fr, start, length).compose(response::write);
+    }
+
+    @Override
+    public Future<ReadStream<Buffer>> read(FileRecord fr) {
+        var context = vertx.getOrCreateContext();
+        return readRegion(fr, 0, Location.parse(fr.fileIdentifier()).length()).map(buffer -> new BufferReadStream(context, buffer));
+    }
+
+    @Override
+    protected String pathOf(FileRecord fr) {
+        return storageDir.resolve(String.format("%08d", Location.parse(fr.fileIdentifier()).segment()) + SUFFIX).toAbsolutePath().toString();
+    }
+
+    @Override
+    public Future<Void> recover(String storageType, DataSource source) {
+        this.storageType = storageType;
+        this.source = source;
+        return vertx.<Void>executeBlocking(promise -> {
+            try (var files = Files.list(storageDir)) {
+                var max = -1;
+                for (Path path : files.filter(it -> it.getFileName().toString().endsWith(SUFFIX)).toList()) {
+                    var name = path.getFileName().toString();
+                    var number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                    var segment = openSegment(number, false);
+                    segment.sealed = true;
+                    segments.put(number, segment);
+                    max = Math.max(max, number);
+                }
+                synchronized (this) {
+                    nextSegment = max + 1;
+                }
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }).compose(it -> source.forEachFile(fr -> {
+            if (!storageType.equals(fr.storageType())) return;
+            var location = Location.parse(fr.fileIdentifier());
+            var segment = segments.get(location.segment());
+            if (segment != null) segment.acquire(location.length());
+        })).onSuccess(it -> {
+            segments.values().stream()
+                    .filter(segment -> segment.liveCount.get() == 0)
+                    .toList()
+                    .forEach(this::retire);
+            log.info("Recovered {} segments", segments.size());
+            vertx.setPeriodic(COMPACTION_INTERVAL_MILLIS, id -> compact());
+        });
+    }
+
+    private void compact() {
+        if (compacting || source == null) return;
+        var candidates = segments.values().stream()
+                .filter(segment -> segment.sealed && !segment.retired.get() && segment.liveCount.get() > 0)
+                .filter(segment -> segment.liveBytes.get() < segmentSize * compactionRatio)
+                .map(segment -> segment.number)
+                .collect(Collectors.toCollection(HashSet::new));
+        if (candidates.isEmpty()) return;
+        compacting = true;
+        var time = System.currentTimeMillis();
+        var records = new ArrayList<FileRecord>();
+        source.forEachFile(fr -> {
+            if (storageType.equals(fr.storageType()) && candidates.contains(Location.parse(fr.fileIdentifier()).segment())) {
+                records.add(fr);
+            }
+        }).compose(it -> Futures.forEachBounded(records, 1, this::moveForward)).onComplete(ar -> {
+            compacting = false;
+            if (ar.succeeded()) {
+                log.info("Compacted {} segments, moved {} objects in {}ms", candidates.size(), records.size() - ar.result(), System.currentTimeMillis() - time);
+            } else {
+                log.warn("Failed to compact segments", ar.cause());
+            }
+        });
+    }
+
+    private Future<Void> moveForward(FileRecord fr) {
+        var move = readRegion(fr, 0, Location.parse(fr.fileIdentifier()).length())
+                .compose(buffer -> vertx.<Location>executeBlocking(promise -> {
+                    try {
+                        promise.complete(append(buffer));
+                    } catch (IOException e) {
+                        promise.fail(e);
+                    }
+                }, false))
+                .compose(moved -> source.updateFileLocation(fr, storageType, moved.toString(), fr.encoding()).<Void>map(updated -> {
+                    if (updated) {
+                        forwarded.put(fr.fileIdentifier(), moved.toString());
+                        forwardedFrom.put(moved.toString(), fr.fileIdentifier());
+                    }
+                    // the loser of the race is released, the record is gone if the update didn't win.
+                    var dropped = updated ? Location.parse(fr.fileIdentifier()) : moved;
+                    var segment = segments.get(dropped.segment());
+                    if (segment != null) release(segment, dropped.length());
+                    return null;
+                }));
+        // deletes of the record wait for the move, deletes issued later find it in forwarded.
+        moving.put(fr.id(), move);
+        return move.onComplete(it -> moving.remove(fr.id(), move));
+    }
+
+    private record Location(int segment, long offset, long length) {
+        static Location parse(String identifier) {
+            var parts = identifier.split(":");
+            return new Location(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + offset + ":" + length;
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicInteger liveCount = new AtomicInteger();
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private long writeOffset; // guarded by the provider
+        private volatile boolean sealed;
+
+        private Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        private void acquire(long length) {
+            liveBytes.addAndGet(length);
+            liveCount.incrementAndGet();
+        }
+
+        private int release(long length) {
+            liveBytes.addAndGet(-length);
+            return liveCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage.impl;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.storage.s3.MultipartUploadStream;
+import io.ib67.ezshare.storage.s3.S3Client;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.ib67.ezshare.util.RandomHelper;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.web.RoutingContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores files as objects of an S3-compatible bucket, under a random key.
+ * <p>
+ * Uploads are streamed as multipart uploads (see {@link MultipartUploadStream}).
+ * Downloads are redirected to a presigned url if {@code s3-presign-downloads} is set, so the content never passes
+ * through this node, or proxied with backpressure otherwise.
+ */
+@Slf4j
+public class S3StorageProvider implements IStorageProvider {
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024; // smallest part S3 accepts, but for the last one.
+    private static final int MAX_DELETE_BATCH = 1000; // most keys a DeleteObjects request may carry.
+    private static final List<String> FORWARDED_REQUEST_HEADERS = List.of("Range", "If-Range", "If-None-Match", "If-Modified-Since");
+    private static final List<String> FORWARDED_RESPONSE_HEADERS = List.of("Content-Length", "Content-Range", "ETag", "Last-Modified");
+
+    private final AppConfig config;
+    private final S3Client client;
+    private final int partSize;
+    private final int partConcurrency;
+    private final Duration presignTtl;
+
+    public S3StorageProvider(Vertx vertx, AppConfig config) {
+        this.config = config;
+        this.partSize = Math.max(MIN_PART_SIZE, config.getS3PartSize() * 1024 * 1024);
+        this.partConcurrency = Math.max(1, config.getS3UploadConcurrency());
+        this.presignTtl = Duration.ofSeconds(config.getS3PresignTtlSeconds());
+        this.client = new S3Client(vertx, config.getS3Endpoint(), config.getS3Region(), config.getS3Bucket(),
+                config.getS3AccessKey(), config.getS3SecretKey(), config.isS3PathStyle(), config.getS3MaxConnections());
+    }
+
+    @Override
+    public Future<String> store(ReadStream<Buffer> content, long expectedSize) {
+        var key = RandomHelper.randomString(16);
+        var upload = new MultipartUploadStream(client, key, partSize, partConcurrency);
+        return content.pipeTo(upload)
+                .recover(t -> upload.abort()
+                        .onFailure(e -> log.warn("Cannot abort the upload of {}, its parts are left in the bucket. {}", key, e.getMessage()))
+                        .transform(ignored -> Future.failedFuture(t)))
+                .map(it -> key);
+    }
+
+    @Override
+    public void download(FileRecord fr, RoutingContext context) {
+        var time = System.currentTimeMillis();
+        var response = context.response();
+        var encoded = !ContentEncoding.IDENTITY.equals(fr.encoding());
+        context.attachment(fr.fileName());
+        if (encoded) {
+            response.putHeader("Vary", "Accept-Encoding");
+            if (!ContentEncoding.accepts(context.request().getHeader("Accept-Encoding"), fr.encoding())) {
+                logDownload(fr, response, sendDecoded(fr, response), "decoded", time);
+                return;
+            }
+        }
+        if (config.isS3PresignDownloads()) {
+            logDownload(fr, response, redirect(fr, response, encoded), "redirected", time);
+        } else {
+            logDownload(fr, response, proxy(fr, context, encoded), "proxied", time);
+        }
+    }
+
+    /**
+     * Lets the client fetch the object from the bucket, with the headers we would have sent.
+     */
+    private Future<Void> redirect(FileRecord fr, HttpServerResponse response, boolean encoded) {
+        var params = new HashMap<String, String>();
+        params.put("response-content-type", fr.mimeType());
+        params.put("response-content-disposition", response.headers().get("Content-Disposition"));
+        if (encoded) {
+            params.put("response-content-encoding", fr.encoding());
+        }
+        response.headers().remove("Content-Disposition");
+        return response.setStatusCode(302)
+                .putHeader("Location", client.presignGet(fr.fileIdentifier(), params, presignTtl))
+                .putHeader("Cache-Control", "no-store") // the url expires.
+                .end();
+    }
+
+    /**
+     * Relays the object, conditional and range requests are answered by the bucket.
+     */
+    private Future<Void> proxy(FileRecord fr, RoutingContext context, boolean encoded) {
+        var response = context.response();
+        var headers = new HashMap<String, String>();
+        for (String name : FORWARDED_REQUEST_HEADERS) {
+            var value = context.request().getHeader(name);
+            if (value != null) headers.put(name, value);
+        }
+        return client.getObject(fr.fileIdentifier(), headers).compose(object -> {
+            var status = object.statusCode();
+            if (status != 200 && status != 206 && status != 304 && status != 412 && status != 416) {
+                return discard(object).compose(it -> Future.failedFuture("S3 GetObject failed with " + status));
+            }
+            response.setStatusCode(status).putHeader("Accept-Ranges", encoded ? "none" : "bytes");
+            if (status != 200 && status != 206) {
+                response.headers().remove("Content-Disposition");
+                return discard(object).compose(it -> response.end());
+            }
+            for (String name : FORWARDED_RESPONSE_HEADERS) {
+                var value = object.getHeader(name);
+                if (value != null) response.putHeader(name, value);
+            }
+            response.putHeader("Content-Type", fr.mimeType());
+            if (encoded) {
+                response.putHeader("Content-Encoding", fr.encoding());
+            }
+            return object.pipeTo(response).onFailure(t -> object.request().reset());
+        });
+    }
+
+    private Future<Void> sendDecoded(FileRecord fr, HttpServerResponse response) {
+        response.putHeader("Accept-Ranges", "none")
+                .putHeader("Content-Type", fr.mimeType())
+                .putHeader("Content-Length", String.valueOf(fr.size()));
+        return read(fr).compose(stream -> ContentEncoding.decode(stream, fr.encoding()).pipeTo(response));
+    }
+
+    private static Future<Void> discard(HttpClientResponse object) {
+        return object.body().mapEmpty();
+    }
+
+    private void logDownload(FileRecord fr, HttpServerResponse response, Future<Void> sent, String how, long time) {
+        sent.onSuccess(it -> {
+            log.info("[Download] " + fr.fileName() + " " + how + ", tooks " + (System.currentTimeMillis() - time) + "ms");
+        }).onFailure(it -> {
+            log.warn("Failed to download {}: {}", fr.fileIdentifier(), it.getMessage());
+            if (!response.headWritten()) {
+                response.setStatusCode(500);
+                response.headers().remove("Content-Disposition");
+                response.end("Failed to download file.");
+            } else {
+                response.reset();
+            }
+        });
+    }
+
+    @Override
+    public Future<ReadStream<Buffer>> read(FileRecord fr) {
+        return client.getObject(fr.fileIdentifier(), Map.of()).compose(object -> {
+            if (object.statusCode() != 200) {
+                return discard(object).compose(it -> Future.failedFuture("S3 GetObject failed with " + object.statusCode()));
+            }
+            // nothing is read until the consumer asks for it.
+            object.pause();
+            return Future.succeededFuture(object);
+        });
+    }
+
+    @Override
+    public Future<Void> delete(FileRecord fr) {
+        return deleteAll(List.of(fr), 1).compose(failed -> failed.isEmpty()
+                ? Future.succeededFuture()
+                : Future.failedFuture("Cannot delete " + fr.fileIdentifier() + " from the bucket"));
+    }
+
+    /**
+     * Deletes the objects with as few DeleteObjects requests as possible, one after another.
+     */
+    @Override
+    public Future<List<FileRecord>> deleteAll(List<FileRecord> records, int concurrency) {
+        var failed = new ArrayList<FileRecord>();
+        Future<Void> chain = Future.succeededFuture();
+        for (int i = 0; i < records.size(); i += MAX_DELETE_BATCH) {
+            var batch = records.subList(i, Math.min(records.size(), i + MAX_DELETE_BATCH));
+            chain = chain.compose(it -> client.deleteObjects(batch.stream().map(FileRecord::fileIdentifier).toList())
+                    .<Void>map(keys -> {
+                        Set<String> failedKeys = new HashSet<>(keys);
+                        batch.stream().filter(fr -> failedKeys.contains(fr.fileIdentifier())).forEach(failed::add);
+                        return null;
+                    })
+                    .recover(t -> {
+                        log.warn("Failed to delete {} objects from the bucket! {}", batch.size(), t.getMessage());
+                        failed.addAll(batch);
+                        return Future.succeededFuture();
+                    }));
+        }
+        return chain.map(it -> failed);
+    }
+}
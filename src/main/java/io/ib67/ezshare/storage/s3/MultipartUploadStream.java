@@ -0,0 +1,169 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage.s3;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads what is written to it as an S3 object, in parts of {@code partSize} which are sent while the next one is filled.
+ * <p>
+ * At most {@code concurrency} parts are in flight, further writes are held back by {@link #writeQueueFull()},
+ * so no more than {@code (concurrency + 1) * partSize} bytes are buffered whatever the size of the object.
+ * The multipart upload is only started once the first part is full, smaller objects are sent with a single PUT.
+ * Not thread-safe, it is meant to be the target of a pipe.
+ */
+public final class MultipartUploadStream implements WriteStream<Buffer> {
+    private final S3Client client;
+    private final String key;
+    private final int partSize;
+    private final int concurrency;
+    private final List<String> etags = new ArrayList<>();
+    private final Promise<Void> completion = Promise.promise();
+
+    private Buffer current = Buffer.buffer();
+    private Future<String> uploadId;
+    private int inflight;
+    private boolean ended;
+    private Throwable failure;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<Void> drainHandler;
+
+    public MultipartUploadStream(S3Client client, String key, int partSize, int concurrency) {
+        this.client = client;
+        this.key = key;
+        this.partSize = partSize;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+        if (failure != null) return Future.failedFuture(failure);
+        current.appendBuffer(data);
+        while (current.length() >= partSize) {
+            var part = current.getBuffer(0, partSize);
+            current = current.getBuffer(partSize, current.length());
+            uploadPart(part);
+        }
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+        var result = write(data);
+        if (handler != null) result.onComplete(handler);
+    }
+
+    private void uploadPart(Buffer part) {
+        if (uploadId == null) {
+            uploadId = client.createMultipartUpload(key);
+        }
+        var index = etags.size();
+        etags.add(null);
+        inflight++;
+        uploadId.compose(id -> client.uploadPart(key, id, index + 1, part)).onComplete(ar -> {
+            inflight--;
+            if (ar.failed()) {
+                fail(ar.cause());
+                return;
+            }
+            etags.set(index, ar.result());
+            if (ended) {
+                completeIfDone();
+            } else if (drainHandler != null && !writeQueueFull()) {
+                drainHandler.handle(null);
+            }
+        });
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        if (!ended) {
+            ended = true;
+            if (failure != null) {
+                completion.tryFail(failure);
+            } else if (uploadId == null) {
+                client.putObject(key, current).onComplete(completion);
+            } else {
+                if (current.length() > 0) {
+                    uploadPart(current);
+                }
+                completeIfDone();
+            }
+        }
+        if (handler != null) completion.future().onComplete(handler);
+    }
+
+    private void completeIfDone() {
+        if (inflight > 0 || failure != null) return;
+        uploadId.compose(id -> client.completeMultipartUpload(key, id, etags))
+                .onSuccess(completion::tryComplete)
+                .onFailure(this::fail);
+    }
+
+    private void fail(Throwable t) {
+        if (failure != null) return;
+        failure = t;
+        completion.tryFail(t);
+        if (exceptionHandler != null) exceptionHandler.handle(t);
+    }
+
+    /**
+     * Discards the parts uploaded so far, should be called if the content could not be written completely.
+     */
+    public Future<Void> abort() {
+        if (uploadId == null) return Future.succeededFuture();
+        return uploadId.compose(id -> client.abortMultipartUpload(key, id));
+    }
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return inflight >= concurrency;
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage.s3;
+
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import lombok.SneakyThrows;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handful of S3 calls the storage provider needs, on top of the Vert.x {@link HttpClient}.
+ * Works with AWS as well as compatible servers like MinIO, which usually want path-style addressing.
+ */
+public final class S3Client {
+    private static final long CONTROL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final HttpClient http;
+    private final S3Signer signer;
+    private final boolean ssl;
+    private final String host;
+    private final int port;
+    private final String authority;
+    private final String basePath;
+
+    public S3Client(Vertx vertx, String endpoint, String region, String bucket, String accessKey, String secretKey, boolean pathStyle, int maxConnections) {
+        var uri = URI.create(endpoint);
+        this.ssl = "https".equalsIgnoreCase(uri.getScheme());
+        this.host = pathStyle ? uri.getHost() : bucket + "." + uri.getHost();
+        this.port = uri.getPort() != -1 ? uri.getPort() : ssl ? 443 : 80;
+        this.authority = uri.getPort() != -1 ? host + ":" + port : host;
+        this.basePath = pathStyle ? "/" + S3Signer.encode(bucket, true) : "";
+        this.signer = new S3Signer(region, accessKey, secretKey);
+        this.http = vertx.createHttpClient(new HttpClientOptions()
+                .setSsl(ssl)
+                .setKeepAlive(true)
+                .setMaxPoolSize(maxConnections));
+    }
+
+    public Future<Void> putObject(String key, Buffer content) {
+        return call(HttpMethod.PUT, key, Map.of(), Map.of(), content, S3Signer.UNSIGNED_PAYLOAD).mapEmpty();
+    }
+
+    /**
+     * @return the upload id.
+     */
+    public Future<String> createMultipartUpload(String key) {
+        return call(HttpMethod.POST, key, Map.of("uploads", ""), Map.of(), null, S3Signer.EMPTY_PAYLOAD)
+                .map(body -> tag(body.toString(), "UploadId"));
+    }
+
+    /**
+     * @param partNumber starts from 1.
+     * @return the ETag of the part, which is needed to complete the upload.
+     */
+    public Future<String> uploadPart(String key, String uploadId, int partNumber, Buffer content) {
+        return send(HttpMethod.PUT, key, Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId),
+                Map.of(), content, S3Signer.UNSIGNED_PAYLOAD, true)
+                .compose(resp -> checked(resp, "UploadPart").map(it -> resp.getHeader("ETag")));
+    }
+
+    /**
+     * @param etags of the parts, in the order of their part numbers.
+     */
+    public Future<Void> completeMultipartUpload(String key, String uploadId, List<String> etags) {
+        var xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(escape(etags.get(i))).append("</ETag></Part>");
+        }
+        var body = Buffer.buffer(xml.append("</CompleteMultipartUpload>").toString());
+        return call(HttpMethod.POST, key, Map.of("uploadId", uploadId), Map.of(), body, S3Signer.sha256Hex(body.getBytes()))
+                .compose(response -> {
+                    // the request may still fail after the status line has been sent.
+                    var result = response.toString();
+                    return result.contains("<Error>")
+                            ? Future.failedFuture("S3 CompleteMultipartUpload failed: " + tag(result, "Code"))
+                            : Future.succeededFuture();
+                });
+    }
+
+    public Future<Void> abortMultipartUpload(String key, String uploadId) {
+        return call(HttpMethod.DELETE, key, Map.of("uploadId", uploadId), Map.of(), null, S3Signer.EMPTY_PAYLOAD).mapEmpty();
+    }
+
+    /**
+     * Starts a download, the status is left for the caller to check.
+     * No timeout is applied as the response may be paused by backpressure for a long time.
+     *
+     * @param headers forwarded as they are, e.g. Range.
+     */
+    public Future<HttpClientResponse> getObject(String key, Map<String, String> headers) {
+        return send(HttpMethod.GET, key, Map.of(), headers, null, S3Signer.EMPTY_PAYLOAD, false);
+    }
+
+    /**
+     * Deletes up to 1000 objects with one request.
+     *
+     * @return the keys which couldn't be deleted.
+     */
+    public Future<List<String>> deleteObjects(List<String> keys) {
+        var xml = new StringBuilder("<Delete><Quiet>true</Quiet>");
+        for (String key : keys) {
+            xml.append("<Object><Key>").append(escape(key)).append("</Key></Object>");
+        }
+        var body = Buffer.buffer(xml.append("</Delete>").toString());
+        return call(HttpMethod.POST, null, Map.of("delete", ""), Map.of("content-md5", md5Base64(body.getBytes())),
+                body, S3Signer.sha256Hex(body.getBytes()))
+                .map(response -> {
+                    // only failures are reported in quiet mode.
+                    var result = response.toString();
+                    var failed = new ArrayList<String>();
+                    for (int i = result.indexOf("<Error>"); i != -1; i = result.indexOf("<Error>", i + 1)) {
+                        failed.add(tag(result.substring(i), "Key"));
+                    }
+                    return failed;
+                });
+    }
+
+    /**
+     * @param params added to the query, e.g. response-content-disposition.
+     * @return an url which anyone can GET the object from until {@code ttl} has passed.
+     */
+    public String presignGet(String key, Map<String, String> params, Duration ttl) {
+        var path = pathOf(key);
+        return (ssl ? "https://" : "http://") + authority + path
+                + "?" + signer.presign("GET", path, params, authority, ttl, Instant.now());
+    }
+
+    private Future<Buffer> call(HttpMethod method, String key, Map<String, String> query, Map<String, String> headers, Buffer body, String payloadHash) {
+        return send(method, key, query, headers, body, payloadHash, true)
+                .compose(resp -> checked(resp, method + " " + (key == null ? "" : key)));
+    }
+
+    /**
+     * Fails with the error code from the response body unless the status is 2xx.
+     */
+    private static Future<Buffer> checked(HttpClientResponse resp, String operation) {
+        if (resp.statusCode() / 100 == 2) {
+            return resp.body();
+        }
+        return resp.body().transform(ar -> Future.failedFuture("S3 " + operation + " failed with " + resp.statusCode()
+                + (ar.succeeded() && ar.result().length() > 0 ? ": " + tag(ar.result().toString(), "Code") : "")));
+    }
+
+    private Future<HttpClientResponse> send(HttpMethod method, String key, Map<String, String> query, Map<String, String> headers,
+                                            Buffer body, String payloadHash, boolean timeout) {
+        var path = pathOf(key);
+        var signed = new TreeMap<String, String>();
+        signed.put("host", authority);
+        headers.forEach((name, value) -> signed.put(name.toLowerCase(), value));
+        signer.sign(method.name(), path, query, signed, payloadHash, Instant.now());
+        var queryString = S3Signer.canonicalQuery(query);
+        var options = new RequestOptions()
+                .setMethod(method)
+                .setHost(host)
+                .setPort(port)
+                .setSsl(ssl)
+                .setURI(queryString.isEmpty() ? path : path + "?" + queryString)
+                .setHeaders(MultiMap.caseInsensitiveMultiMap().addAll(signed));
+        if (timeout) {
+            options.setTimeout(CONTROL_TIMEOUT_MILLIS);
+        }
+        return http.request(options).compose(req -> body == null ? req.send() : req.send(body));
+    }
+
+    private String pathOf(String key) {
+        return key == null ? (basePath.isEmpty() ? "/" : basePath) : basePath + "/" + S3Signer.encode(key, false);
+    }
+
+    /**
+     * @return the unescaped text of the first element called {@code name}, or "" if there is none.
+     */
+    static String tag(String xml, String name) {
+        var start = xml.indexOf("<" + name + ">");
+        var end = xml.indexOf("</" + name + ">");
+        if (start == -1 || end < start) return "";
+        return unescape(xml.substring(start + name.length() + 2, end));
+    }
+
+    static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('&') == -1) return text;
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&#34;", "\"").replace("&amp;", "&");
+    }
+
+    @SneakyThrows
+    private static String md5Base64(byte[] content) {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+    }
+}
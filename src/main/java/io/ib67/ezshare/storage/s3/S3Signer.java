@@ -0,0 +1,154 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.storage.s3;
+
+import lombok.SneakyThrows;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * AWS Signature Version 4, either as an Authorization header or as a presigned query string.
+ */
+final class S3Signer {
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String EMPTY_PAYLOAD = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String region;
+    private final String accessKey;
+    private final byte[] secret;
+
+    S3Signer(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secret = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds x-amz-date, x-amz-content-sha256 and authorization to the headers. Every header in the map is signed.
+     *
+     * @param headers lowercase names, must contain host.
+     */
+    void sign(String method, String path, Map<String, String> query, TreeMap<String, String> headers, String payloadHash, Instant now) {
+        var timestamp = TIMESTAMP.format(now);
+        headers.put("x-amz-date", timestamp);
+        headers.put("x-amz-content-sha256", payloadHash);
+        var signedHeaders = String.join(";", headers.keySet());
+        var canonicalHeaders = headers.entrySet().stream()
+                .map(it -> it.getKey() + ":" + it.getValue().trim() + "\n")
+                .collect(Collectors.joining());
+        var canonicalRequest = method + "\n" + path + "\n" + canonicalQuery(query) + "\n"
+                + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+        var scope = scope(timestamp);
+        headers.put("authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + signature(timestamp, scope, canonicalRequest));
+    }
+
+    /**
+     * @return the query string which authorizes the request on its own until {@code ttl} has passed.
+     */
+    String presign(String method, String path, Map<String, String> query, String host, Duration ttl, Instant now) {
+        var timestamp = TIMESTAMP.format(now);
+        var scope = scope(timestamp);
+        var params = new TreeMap<>(query);
+        params.put("X-Amz-Algorithm", ALGORITHM);
+        params.put("X-Amz-Credential", accessKey + "/" + scope);
+        params.put("X-Amz-Date", timestamp);
+        params.put("X-Amz-Expires", String.valueOf(ttl.toSeconds()));
+        params.put("X-Amz-SignedHeaders", "host");
+        var canonicalQuery = canonicalQuery(params);
+        var canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n"
+                + "host:" + host + "\n\nhost\n" + UNSIGNED_PAYLOAD;
+        return canonicalQuery + "&X-Amz-Signature=" + signature(timestamp, scope, canonicalRequest);
+    }
+
+    /**
+     * Parameters sorted by their encoded names. Parameters without a value, like {@code ?uploads}, map to "".
+     */
+    static String canonicalQuery(Map<String, String> query) {
+        return query.entrySet().stream()
+                .map(it -> encode(it.getKey(), true) + "=" + encode(it.getValue(), true))
+                .sorted()
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Percent-encodes everything but the unreserved characters of RFC 3986, and slashes if {@code slash} is false.
+     */
+    static String encode(String value, boolean slash) {
+        var sb = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !slash)) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    @SneakyThrows
+    static String sha256Hex(byte[] content) {
+        return HEX.formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    private String scope(String timestamp) {
+        return timestamp.substring(0, 8) + "/" + region + "/s3/aws4_request";
+    }
+
+    private String signature(String timestamp, String scope, String canonicalRequest) {
+        var stringToSign = ALGORITHM + "\n" + timestamp + "\n" + scope + "\n"
+                + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        var key = hmac(secret, timestamp.substring(0, 8));
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        return HEX.formatHex(hmac(key, stringToSign));
+    }
+
+    @SneakyThrows
+    private static byte[] hmac(byte[] key, String data) {
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
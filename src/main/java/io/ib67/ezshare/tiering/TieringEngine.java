@@ -0,0 +1,253 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.tiering;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.DataSource;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.quota.QuotaExceededException;
+import io.ib67.ezshare.quota.QuotaManager;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.storage.StoragePolicy;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.ib67.ezshare.util.Futures;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves files nobody has read for a while to the cold storage, and back once they are read again.
+ * <p>
+ * Reads are reported by {@link #touch(FileRecord)} and only kept in memory, a file which hasn't been read since boot
+ * counts as last read when it was uploaded. A periodic scan demotes the files whose last read is older than
+ * {@code tier-demote-after-minutes}, optionally gzipped. A cold file read {@code tier-promote-hits} times within that
+ * period is copied back to where a new upload of it would go.
+ * <p>
+ * A move copies the content first and then swaps the location in the record, only if nobody else moved or removed it
+ * in between. The old copy is kept for a while so that downloads which already hold the old record can finish.
+ */
+@Slf4j
+public class TieringEngine {
+    private static final long SCAN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long RETIRE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Vertx vertx;
+    private final DataSource source;
+    private final Map<String, IStorageProvider> providers;
+    private final QuotaManager quota;
+    private final AppConfig config;
+    private final String coldType;
+    private final long coldAfterMillis;
+    private final int promoteHits;
+    private final int concurrency;
+    private final Duration fileTtl;
+    private final Map<String, Access> accesses = new ConcurrentHashMap<>();
+    private final Set<String> moving = ConcurrentHashMap.newKeySet();
+    private boolean scanning; // accessed from the engine's context only.
+
+    public TieringEngine(Vertx vertx, DataSource source, Map<String, IStorageProvider> providers, QuotaManager quota, AppConfig config) {
+        this.vertx = vertx;
+        this.source = source;
+        this.providers = providers;
+        this.quota = quota;
+        this.config = config;
+        this.coldType = config.getColdStoreType();
+        this.coldAfterMillis = TimeUnit.MINUTES.toMillis(config.getTierDemoteAfterMinutes());
+        this.promoteHits = Math.max(1, config.getTierPromoteHits());
+        this.concurrency = Math.max(1, config.getTierMoveConcurrency());
+        this.fileTtl = Duration.ofMinutes(config.getExpireHours());
+    }
+
+    public boolean isEnabled() {
+        return !coldType.isEmpty();
+    }
+
+    /**
+     * Starts scanning on the caller's context.
+     */
+    public Future<Void> start() {
+        if (!isEnabled()) return Future.succeededFuture();
+        if (!providers.containsKey(coldType)) {
+            return Future.failedFuture("Unknown cold storage type " + coldType);
+        }
+        vertx.setPeriodic(SCAN_INTERVAL_MILLIS, id -> scan());
+        log.info("Files not read for {} minutes are moved to {}", config.getTierDemoteAfterMinutes(), coldType);
+        return Future.succeededFuture();
+    }
+
+    /**
+     * Records a read of the file, which may bring it back from the cold storage.
+     */
+    public void touch(FileRecord fr) {
+        if (!isEnabled()) return;
+        var now = System.currentTimeMillis();
+        var hits = accesses.computeIfAbsent(fr.id(), id -> new Access()).hit(now, coldAfterMillis);
+        if (coldType.equals(fr.storageType()) && hits >= promoteHits && moving.size() < concurrency) {
+            var target = StoragePolicy.storageTypeFor(config, fr.size());
+            move(fr, target, StoragePolicy.encodingFor(config, fr.mimeType()))
+                    .onSuccess(moved -> {
+                        if (moved) log.info("Promoted {} to {}", fr.id(), target);
+                    });
+        }
+    }
+
+    private void scan() {
+        if (scanning) return;
+        scanning = true;
+        var time = System.currentTimeMillis();
+        var cutoff = time - coldAfterMillis;
+        // reads before the cutoff neither keep a file warm nor count for a promotion anymore.
+        accesses.values().removeIf(access -> access.lastRead < cutoff);
+        // files uploaded after the cutoff can't have been unread for long enough.
+        var uploadedBefore = LocalDateTime.ofInstant(Instant.ofEpochMilli(cutoff), ZoneId.systemDefault());
+        var counts = new int[2]; // candidates, failed
+        scanPage(uploadedBefore, null, cutoff, time, counts).onComplete(ar -> {
+            scanning = false;
+            if (ar.succeeded()) {
+                if (counts[0] > 0) {
+                    log.info("Demoted {} of {} cold files to {}, took {}ms", counts[0] - counts[1], counts[0], coldType, System.currentTimeMillis() - time);
+                }
+            } else {
+                log.warn("Failed to scan for cold files! ", ar.cause());
+            }
+        });
+    }
+
+    private Future<Void> scanPage(LocalDateTime uploadedBefore, FileRecord after, long cutoff, long time, int[] counts) {
+        return source.fetchFilesCreatedBefore(uploadedBefore, after, DataSource.SCAN_PAGE_SIZE).compose(page -> {
+            var candidates = new ArrayList<FileRecord>();
+            for (var fr : page) {
+                if (!coldType.equals(fr.storageType()) && lastReadOf(fr) < cutoff && !expiresBefore(fr, time + SCAN_INTERVAL_MILLIS)) {
+                    candidates.add(fr);
+                }
+            }
+            counts[0] += candidates.size();
+            return Futures.forEachBounded(candidates, concurrency, fr -> move(fr, coldType, coldEncodingOf(fr))).compose(failed -> {
+                counts[1] += failed;
+                if (page.size() < DataSource.SCAN_PAGE_SIZE) return Future.succeededFuture();
+                return scanPage(uploadedBefore, page.get(page.size() - 1), cutoff, time, counts);
+            });
+        });
+    }
+
+    private long lastReadOf(FileRecord fr) {
+        var access = accesses.get(fr.id());
+        return access != null ? access.lastRead : millisOf(fr.time());
+    }
+
+    /**
+     * No need to archive what is going to be deleted anyway, that would only race with the expiry engine.
+     */
+    private boolean expiresBefore(FileRecord fr, long time) {
+        return millisOf(fr.time().plus(fileTtl)) < time;
+    }
+
+    /**
+     * Only the compressible types are worth it, gzip makes images or archives a bit larger for a lot of cpu.
+     */
+    private String coldEncodingOf(FileRecord fr) {
+        return config.isTierCompress() && ContentEncoding.isCompressible(fr.mimeType(), config.getCompressibleMimeTypes())
+                ? ContentEncoding.GZIP
+                : fr.encoding();
+    }
+
+    private static long millisOf(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return whether the record now points to the new copy.
+     */
+    private Future<Boolean> move(FileRecord fr, String storageType, String encoding) {
+        var from = providers.get(fr.storageType());
+        var to = providers.get(storageType);
+        if (from == null || to == null) {
+            return Future.failedFuture("Unknown storage type " + (from == null ? fr.storageType() : storageType));
+        }
+        if (!moving.add(fr.id())) return Future.succeededFuture(false);
+        var expectedSize = ContentEncoding.IDENTITY.equals(encoding) ? fr.size() : -1;
+        QuotaManager.Reservation reservation;
+        try {
+            // the content isn't new, only the disk space counts.
+            reservation = quota.reserve(storageType, null, fr.size());
+        } catch (QuotaExceededException e) {
+            moving.remove(fr.id());
+            return Future.failedFuture(e);
+        }
+        return from.read(fr)
+                .compose(stream -> to.store(transcode(stream, fr.encoding(), encoding), expectedSize))
+                .onComplete(ar -> {
+                    if (ar.succeeded()) reservation.commit(fr.size());
+                    else reservation.release();
+                })
+                .compose(identifier -> {
+                    var moved = new FileRecord(fr.id(), fr.time(), identifier, fr.size(), fr.fileName(),
+                            fr.mimeType(), fr.ip(), storageType, encoding);
+                    return source.updateFileLocation(fr, storageType, identifier, encoding).map(updated -> {
+                        // whichever copy lost is deleted.
+                        var dropped = updated ? fr : moved;
+                        vertx.setTimer(updated ? RETIRE_DELAY_MILLIS : 1, id -> providers.get(dropped.storageType()).delete(dropped)
+                                .onFailure(t -> log.warn("Failed to remove {}! {}", dropped, t.getMessage())));
+                        return updated;
+                    });
+                })
+                .onFailure(t -> log.warn("Cannot move {} to {}: {}", fr.id(), storageType, t.getMessage()))
+                .onComplete(it -> moving.remove(fr.id()));
+    }
+
+    private static ReadStream<Buffer> transcode(ReadStream<Buffer> stream, String from, String to) {
+        return from.equals(to) ? stream : ContentEncoding.encode(ContentEncoding.decode(stream, from), to);
+    }
+
+    /**
+     * When the file was read last, and how often since the current period started.
+     */
+    private static final class Access {
+        private volatile long lastRead;
+        private long periodStart;
+        private int hits;
+
+        private synchronized int hit(long now, long period) {
+            if (now - periodStart > period) {
+                periodStart = now;
+                hits = 0;
+            }
+            lastRead = now;
+            return ++hits;
+        }
+    }
+}
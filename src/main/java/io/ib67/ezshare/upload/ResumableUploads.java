@@ -0,0 +1,326 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.upload;
+
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.quota.QuotaExceededException;
+import io.ib67.ezshare.quota.QuotaManager;
+import io.ib67.ezshare.storage.ChunkedWrite;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.storage.StoragePolicy;
+import io.ib67.ezshare.storage.impl.LocalStorageProvider;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.ib67.ezshare.util.RandomHelper;
+import io.ib67.ezshare.util.SizeLimitedReadStream;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Large files sent in chunks, which are written into storage as they arrive and survive broken connections and restarts.
+ * Sessions are saved as json into the session directory after every chunk. The content stays in there too until the
+ * upload is complete, so whatever no session can be restored for is removed on startup.
+ * Unfinished sessions are removed by the sweep of the expiry engine.
+ */
+@Slf4j
+public class ResumableUploads {
+    private static final int SESSION_ID_LENGTH = 24;
+    private static final String SESSION_SUFFIX = ".json";
+
+    private final Vertx vertx;
+    private final AppConfig config;
+    private final Map<String, IStorageProvider> providers;
+    private final QuotaManager quota;
+    private final Path directory;
+    private final LocalStorageProvider staging;
+    private final long ttl;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public ResumableUploads(Vertx vertx, AppConfig config, Map<String, IStorageProvider> providers, QuotaManager quota) {
+        this.vertx = vertx;
+        this.config = config;
+        this.providers = providers;
+        this.quota = quota;
+        this.directory = Path.of(config.getUploadSessionDir());
+        this.staging = new LocalStorageProvider(vertx, config, directory);
+        this.ttl = TimeUnit.MINUTES.toMillis(config.getUploadSessionTtlMinutes());
+    }
+
+    /**
+     * Picks the sessions of the last run up again, after the quota has been rebuilt since they reserve it once more.
+     */
+    public Future<Void> start() {
+        if (!config.isResumableUploads()) return Future.succeededFuture();
+        return vertx.<Integer>executeBlocking(promise -> {
+            try {
+                promise.complete(recover());
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false).onSuccess(count -> log.info("Recovered {} unfinished uploads", count)).mapEmpty();
+    }
+
+    private int recover() throws IOException {
+        Files.createDirectories(directory);
+        var handles = new HashSet<String>();
+        try (var files = Files.list(directory)) {
+            for (var path : files.filter(it -> it.getFileName().toString().endsWith(SESSION_SUFFIX)).toList()) {
+                var session = restore(path);
+                if (session == null) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                sessions.put(session.getId(), session);
+                handles.add(session.getWrite().handle());
+            }
+        }
+        // content of sessions which are gone or unreadable, and saves interrupted by a crash.
+        try (var files = Files.list(directory)) {
+            for (var path : files.toList()) {
+                var name = path.getFileName().toString();
+                if (!name.endsWith(SESSION_SUFFIX) && !handles.contains(name)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        return sessions.size();
+    }
+
+    private UploadSession restore(Path path) throws IOException {
+        JsonObject json;
+        try {
+            json = new JsonObject(Files.readString(path));
+        } catch (RuntimeException e) {
+            log.warn("Cannot read upload session {}, it is removed", path, e);
+            return null;
+        }
+        var storageType = json.getString("storageType");
+        var length = json.getLong("length");
+        var encoding = json.getString("encoding");
+        var provider = providers.get(storageType);
+        if (provider == null) {
+            log.warn("Cannot find storageType {} of upload session {}, it is removed", storageType, path);
+            return null;
+        }
+        var write = json.getBoolean("staged")
+                ? new StagedWrite(vertx, staging, json.getString("handle"), provider, encoding, length)
+                : provider.chunkedWrite(json.getString("handle"), length);
+        if (write == null) {
+            log.warn("Storage {} doesn't take chunks anymore, upload session {} is removed", storageType, path);
+            return null;
+        }
+        QuotaManager.Reservation reservation;
+        try {
+            reservation = quota.reserve(storageType, json.getString("ip"), length);
+        } catch (QuotaExceededException e) {
+            log.warn("Upload session {} doesn't fit anymore, it is removed: {}", path, e.getMessage());
+            write.abort();
+            return null;
+        }
+        var session = new UploadSession(json.getString("id"), json.getString("fileName"), json.getString("mimeType"),
+                json.getString("ip"), length, storageType, encoding, write, reservation, json.getLong("lastActivity"));
+        session.restore(json.getJsonArray("received"));
+        return session;
+    }
+
+    /**
+     * @param length the size of the file, which is reserved from the quota until the upload is finished or removed.
+     * @return fails with {@link UploadException} or {@link QuotaExceededException} if the upload can't be taken.
+     */
+    public Future<UploadSession> create(String fileName, String mimeType, String ip, long length) {
+        if (length > config.getMaxBodySize() * 1024) {
+            return Future.failedFuture(new UploadException(413, "File is too large."));
+        }
+        var storageType = StoragePolicy.storageTypeFor(config, length);
+        var provider = providers.get(storageType);
+        QuotaManager.Reservation reservation;
+        try {
+            reservation = quota.reserve(storageType, ip, length);
+        } catch (QuotaExceededException e) {
+            return Future.failedFuture(e);
+        }
+        ChunkedWrite write = provider.chunkedWrite(null, length);
+        var encoding = ContentEncoding.IDENTITY;
+        if (write == null) {
+            // compressed on the way from the staging directory into the storage.
+            encoding = StoragePolicy.encodingFor(config, mimeType);
+            write = new StagedWrite(vertx, staging, null, provider, encoding, length);
+        }
+        var session = new UploadSession(RandomHelper.randomToken(SESSION_ID_LENGTH), fileName, mimeType, ip, length,
+                storageType, encoding, write, reservation, System.currentTimeMillis());
+        sessions.put(session.getId(), session);
+        return save(session).map(session)
+                .onFailure(t -> drop(session));
+    }
+
+    /**
+     * @return null if there's no such session, or it has been finished or removed.
+     */
+    public UploadSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public long expiresAt(UploadSession session) {
+        return session.lastActivity() + ttl;
+    }
+
+    /**
+     * Writes a chunk at the offset, chunks not overlapping each other may be written at the same time.
+     *
+     * @param size the exact size of the chunk.
+     * @return the offset the upload is at afterwards.
+     */
+    public Future<Long> write(UploadSession session, long offset, long size, ReadStream<Buffer> chunk) {
+        try {
+            session.begin(offset, size);
+        } catch (UploadException e) {
+            return Future.failedFuture(e);
+        }
+        var content = new SizeLimitedReadStream(chunk, size);
+        return session.getWrite().write(offset, content)
+                .compose(it -> content.bytesRead() == size
+                        ? Future.<Void>succeededFuture()
+                        : Future.<Void>failedFuture(new UploadException(400, "The chunk ended after " + content.bytesRead() + " of " + size + " bytes.")))
+                .onSuccess(it -> session.written(offset))
+                .onFailure(t -> session.failed(offset))
+                // the chunk is there, a session which couldn't be saved only loses it after a restart.
+                .compose(it -> save(session).otherwiseEmpty())
+                .map(it -> session.offset());
+    }
+
+    /**
+     * Completes the content once every byte has been received. The session is gone afterwards,
+     * its reservation has to be committed or released by the caller.
+     *
+     * @return the identifier of the content in the storage of the session.
+     */
+    public Future<String> complete(UploadSession session) {
+        try {
+            session.finish();
+        } catch (UploadException e) {
+            return Future.failedFuture(e);
+        }
+        return session.getWrite().complete()
+                .onSuccess(it -> forget(session))
+                .onFailure(t -> {
+                    log.warn("Cannot complete upload {}", session.getFileName(), t);
+                    drop(session);
+                });
+    }
+
+    /**
+     * Removes an upload which hasn't been finished.
+     */
+    public Future<Void> cancel(UploadSession session) {
+        try {
+            session.cancel();
+        } catch (UploadException e) {
+            return Future.failedFuture(e);
+        }
+        return drop(session);
+    }
+
+    /**
+     * Removes the sessions nobody has sent a chunk to within the ttl.
+     *
+     * @return how many of them have been removed.
+     */
+    public Future<Integer> removeExpired() {
+        if (!config.isResumableUploads()) return Future.succeededFuture(0);
+        var now = System.currentTimeMillis();
+        var expired = sessions.values().stream().filter(it -> it.expire(now, ttl)).toList();
+        List<Future<Void>> drops = expired.stream().map(this::drop).toList();
+        return CompositeFuture.join(new ArrayList<>(drops)).map(expired.size());
+    }
+
+    /**
+     * @return the unfinished uploads.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    private Future<Void> drop(UploadSession session) {
+        if (sessions.remove(session.getId()) == null) {
+            return Future.succeededFuture();
+        }
+        session.getReservation().release();
+        return CompositeFuture.join(forget(session), session.getWrite().abort()).mapEmpty();
+    }
+
+    private Path fileOf(UploadSession session) {
+        return directory.resolve(session.getId() + SESSION_SUFFIX);
+    }
+
+    private Future<Void> save(UploadSession session) {
+        return vertx.executeBlocking(promise -> {
+            var path = fileOf(session);
+            var tmp = directory.resolve(session.getId() + ".tmp");
+            try {
+                synchronized (session.fileLock) {
+                    // finished or removed in the meantime, it mustn't come back after a restart.
+                    if (sessions.containsKey(session.getId())) {
+                        Files.writeString(tmp, session.toJson().encode());
+                        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                promise.complete();
+            } catch (IOException e) {
+                log.warn("Cannot save upload session {}", path, e);
+                promise.fail(e);
+            }
+        }, false);
+    }
+
+    private Future<Void> forget(UploadSession session) {
+        sessions.remove(session.getId());
+        return vertx.executeBlocking(promise -> {
+            try {
+                synchronized (session.fileLock) {
+                    Files.deleteIfExists(fileOf(session));
+                }
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false);
+    }
+}
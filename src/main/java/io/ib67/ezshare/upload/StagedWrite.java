@@ -0,0 +1,82 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.upload;
+
+import io.ib67.ezshare.storage.ChunkedWrite;
+import io.ib67.ezshare.storage.IStorageProvider;
+import io.ib67.ezshare.storage.impl.LocalStorageProvider;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Keeps the chunks on local disk until every byte is there, then stores the content like any other upload.
+ * For storages which can't be written at offsets.
+ */
+final class StagedWrite implements ChunkedWrite {
+    private final Vertx vertx;
+    private final ChunkedWrite staging;
+    private final String path;
+    private final IStorageProvider target;
+    private final String encoding;
+    private final long size;
+
+    StagedWrite(Vertx vertx, LocalStorageProvider staging, String handle, IStorageProvider target, String encoding, long size) {
+        this.vertx = vertx;
+        this.staging = staging.chunkedWrite(handle, size);
+        this.path = staging.localDirectory().resolve(this.staging.handle()).toAbsolutePath().toString();
+        this.target = target;
+        this.encoding = encoding;
+        this.size = size;
+    }
+
+    @Override
+    public String handle() {
+        return staging.handle();
+    }
+
+    @Override
+    public Future<Void> write(long offset, ReadStream<Buffer> chunk) {
+        return staging.write(offset, chunk);
+    }
+
+    @Override
+    public Future<String> complete() {
+        return staging.complete()
+                .compose(it -> vertx.fileSystem().open(path, new OpenOptions().setRead(true)))
+                .compose(file -> target.store(ContentEncoding.encode(file, encoding), size)
+                        .eventually(v -> file.close()))
+                .compose(id -> staging.abort().otherwiseEmpty().map(id));
+    }
+
+    @Override
+    public Future<Void> abort() {
+        return staging.abort();
+    }
+}
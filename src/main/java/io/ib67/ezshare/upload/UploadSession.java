@@ -0,0 +1,223 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.upload;
+
+import io.ib67.ezshare.quota.QuotaManager;
+import io.ib67.ezshare.storage.ChunkedWrite;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import lombok.Getter;
+
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * An unfinished resumable upload. Its chunks may arrive at the same time on different event loops,
+ * the bytes received and being written are guarded by its lock.
+ */
+public final class UploadSession {
+    @Getter
+    private final String id;
+    @Getter
+    private final String fileName;
+    @Getter
+    private final String mimeType;
+    @Getter
+    private final String ip;
+    @Getter
+    private final long length;
+    @Getter
+    private final String storageType;
+    @Getter
+    private final String encoding;
+    @Getter
+    private final ChunkedWrite write;
+    @Getter
+    private final QuotaManager.Reservation reservation;
+    // start -> end (exclusive), adjacent ranges are merged.
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private final TreeMap<Long, Long> writing = new TreeMap<>();
+    // held while the session is saved, so that an older state never replaces a newer one.
+    final Object fileLock = new Object();
+    private long lastActivity;
+    private boolean finishing;
+
+    UploadSession(String id, String fileName, String mimeType, String ip, long length, String storageType, String encoding,
+                  ChunkedWrite write, QuotaManager.Reservation reservation, long lastActivity) {
+        this.id = id;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.ip = ip;
+        this.length = length;
+        this.storageType = storageType;
+        this.encoding = encoding;
+        this.write = write;
+        this.reservation = reservation;
+        this.lastActivity = lastActivity;
+    }
+
+    /**
+     * Claims the bytes a chunk is going to write.
+     *
+     * @throws UploadException if they are beyond the end, or have been received or claimed by another chunk already.
+     */
+    synchronized void begin(long offset, long size) {
+        if (finishing) {
+            throw new UploadException(409, "The upload is being finished.");
+        }
+        if (offset < 0 || offset + size > length) {
+            throw new UploadException(416, "The chunk doesn't fit into the " + length + " bytes of the upload.");
+        }
+        if (overlaps(received, offset, offset + size) || overlaps(writing, offset, offset + size)) {
+            throw new UploadException(409, "Some bytes of the chunk have been sent already, the upload is at " + offset() + ".");
+        }
+        writing.put(offset, offset + size);
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * The chunk starting at the offset has been written.
+     */
+    synchronized void written(long offset) {
+        var end = writing.remove(offset);
+        if (end == null) return;
+        lastActivity = System.currentTimeMillis();
+        var start = offset;
+        var lower = received.floorEntry(start);
+        if (lower != null && lower.getValue() >= start) {
+            start = lower.getKey();
+            end = Math.max(end, lower.getValue());
+        }
+        var next = received.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            received.remove(next.getKey());
+            next = received.ceilingEntry(start);
+        }
+        received.put(start, end);
+    }
+
+    /**
+     * The chunk starting at the offset failed, its bytes may be sent again.
+     */
+    synchronized void failed(long offset) {
+        writing.remove(offset);
+    }
+
+    private static boolean overlaps(TreeMap<Long, Long> ranges, long start, long end) {
+        if (start == end) return false;
+        var floor = ranges.floorEntry(end - 1);
+        return floor != null && floor.getValue() > start;
+    }
+
+    /**
+     * @return how many bytes from the start have been received without a gap, where a client resumes.
+     */
+    public synchronized long offset() {
+        var first = received.firstEntry();
+        return first != null && first.getKey() == 0 ? first.getValue() : 0;
+    }
+
+    /**
+     * @return the received ranges as {@code first-last} byte positions like in a Range header, e.g. {@code 0-1023,4096-8191}.
+     */
+    public synchronized String ranges() {
+        return received.entrySet().stream()
+                .map(it -> it.getKey() + "-" + (it.getValue() - 1))
+                .collect(Collectors.joining(","));
+    }
+
+    public synchronized long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Stops taking chunks, the content is about to be completed.
+     *
+     * @throws UploadException if it's incomplete or being finished already.
+     */
+    synchronized void finish() {
+        if (finishing) {
+            throw new UploadException(409, "The upload is being finished.");
+        }
+        if (offset() != length) {
+            throw new UploadException(409, "Only " + offset() + " of " + length + " bytes have been received without a gap.");
+        }
+        finishing = true;
+    }
+
+    /**
+     * Stops taking chunks, the upload is about to be removed.
+     *
+     * @throws UploadException if it's being finished, or chunks are still being written.
+     */
+    synchronized void cancel() {
+        if (finishing) {
+            throw new UploadException(409, "The upload is being finished.");
+        }
+        if (!writing.isEmpty()) {
+            throw new UploadException(409, "Chunks are still being written.");
+        }
+        finishing = true;
+    }
+
+    /**
+     * Stops taking chunks if nothing happened to the session for the ttl.
+     *
+     * @return true if the session is to be removed.
+     */
+    synchronized boolean expire(long now, long ttl) {
+        if (finishing || !writing.isEmpty() || lastActivity + ttl > now) {
+            return false;
+        }
+        finishing = true;
+        return true;
+    }
+
+    synchronized JsonObject toJson() {
+        var ranges = new JsonArray();
+        received.forEach((start, end) -> ranges.add(new JsonArray().add(start).add(end)));
+        return new JsonObject()
+                .put("id", id)
+                .put("fileName", fileName)
+                .put("mimeType", mimeType)
+                .put("ip", ip)
+                .put("length", length)
+                .put("storageType", storageType)
+                .put("encoding", encoding)
+                .put("handle", write.handle())
+                .put("staged", write instanceof StagedWrite)
+                .put("lastActivity", lastActivity)
+                .put("received", ranges);
+    }
+
+    synchronized void restore(JsonArray ranges) {
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.getJsonArray(i);
+            received.put(range.getLong(0), range.getLong(1));
+        }
+    }
+}
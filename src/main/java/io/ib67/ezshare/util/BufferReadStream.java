@@ -0,0 +1,114 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Emits a buffer which is already in memory as a stream of slices, honoring pause/fetch.
+ */
+public class BufferReadStream implements ReadStream<Buffer> {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Context context;
+    private final Buffer buffer;
+    private Handler<Buffer> handler;
+    private Handler<Void> endHandler;
+    private int position;
+    private long demand = Long.MAX_VALUE;
+    private boolean emitting;
+    private boolean ended;
+
+    public BufferReadStream(Context context, Buffer buffer) {
+        this.context = context;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+        return this; // never fails.
+    }
+
+    @Override
+    public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+        this.handler = handler;
+        if (handler != null) schedule();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> resume() {
+        return fetch(Long.MAX_VALUE);
+    }
+
+    @Override
+    public ReadStream<Buffer> fetch(long amount) {
+        demand = Long.MAX_VALUE - demand < amount ? Long.MAX_VALUE : demand + amount;
+        schedule();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    private void schedule() {
+        // let the caller finish wiring the handlers first.
+        context.runOnContext(v -> drain());
+    }
+
+    private void drain() {
+        if (emitting || ended) return;
+        emitting = true;
+        try {
+            while (demand > 0 && handler != null && position < buffer.length()) {
+                var end = Math.min(position + CHUNK_SIZE, buffer.length());
+                var chunk = buffer.slice(position, end);
+                position = end;
+                if (demand != Long.MAX_VALUE) demand--;
+                handler.handle(chunk);
+            }
+        } finally {
+            emitting = false;
+        }
+        if (position >= buffer.length() && handler != null) {
+            ended = true;
+            var h = endHandler;
+            if (h != null) h.handle(null);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.List;
+
+/**
+ * Content codings that uploads may be stored with.
+ */
+public final class ContentEncoding {
+    public static final String IDENTITY = "identity";
+    public static final String GZIP = "gzip";
+
+    private ContentEncoding() {
+    }
+
+    public static ReadStream<Buffer> encode(ReadStream<Buffer> content, String encoding) {
+        return switch (encoding) {
+            case IDENTITY -> content;
+            case GZIP -> new GzipReadStream(content);
+            default -> throw new IllegalArgumentException("Unknown content encoding " + encoding);
+        };
+    }
+
+    public static ReadStream<Buffer> decode(ReadStream<Buffer> content, String encoding) {
+        return switch (encoding) {
+            case IDENTITY -> content;
+            case GZIP -> new GunzipReadStream(content);
+            default -> throw new IllegalArgumentException("Unknown content encoding " + encoding);
+        };
+    }
+
+    /**
+     * @param mimeType     the type of the upload, parameters are ignored.
+     * @param compressible types like {@code text/plain}, or {@code text/*} for a whole family.
+     */
+    public static boolean isCompressible(String mimeType, List<String> compressible) {
+        if (mimeType == null) return false;
+        var type = mimeType.split(";", 2)[0].trim().toLowerCase();
+        for (String pattern : compressible) {
+            if (pattern.endsWith("/*") ? type.startsWith(pattern.substring(0, pattern.length() - 1)) : type.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether an {@code Accept-Encoding} header allows the coding. A missing header accepts nothing but identity.
+     */
+    public static boolean accepts(String acceptEncoding, String encoding) {
+        if (IDENTITY.equals(encoding)) return true;
+        if (acceptEncoding == null) return false;
+        var wildcard = false;
+        for (String item : acceptEncoding.split(",")) {
+            var parts = item.split(";");
+            var coding = parts[0].trim().toLowerCase();
+            var rejected = false;
+            for (int i = 1; i < parts.length; i++) {
+                var param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        rejected = true;
+                    }
+                }
+            }
+            if (coding.equals(encoding)) return !rejected;
+            if (coding.equals("*")) wildcard = !rejected;
+        }
+        return wildcard;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import lombok.SneakyThrows;
+
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * Hashes the content passing through.
+ */
+public class DigestReadStream extends TransformReadStream {
+    private final MessageDigest digest;
+    private String hex;
+
+    @SneakyThrows
+    public DigestReadStream(ReadStream<Buffer> source, String algorithm) {
+        super(source);
+        this.digest = MessageDigest.getInstance(algorithm);
+    }
+
+    @Override
+    protected Buffer transform(Buffer chunk) {
+        digest.update(chunk.getByteBuf().nioBuffer());
+        return chunk;
+    }
+
+    @Override
+    protected Buffer finish() {
+        hex = HexFormat.of().formatHex(digest.digest());
+        return null;
+    }
+
+    /**
+     * @return the digest in lowercase hex, only available after the stream has ended.
+     */
+    public String hexDigest() {
+        if (hex == null) throw new IllegalStateException("The stream hasn't ended yet");
+        return hex;
+    }
+}
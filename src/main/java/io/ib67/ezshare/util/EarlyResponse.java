@@ -0,0 +1,54 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.ib67.ezshare.util;
+
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Answers a request whose body is still on its way, e.g. a rejected upload.
+ */
+public final class EarlyResponse {
+    private EarlyResponse() {
+    }
+
+    /**
+     * Ends the response without waiting for the body. HTTP/1 connections are closed, since the rest of the body
+     * would have to be read before the next request. HTTP/2 streams share their connection with others, so the
+     * rest of the body is discarded instead, which keeps the flow control windows open.
+     */
+    public static void end(RoutingContext ctx, String message) {
+        var request = ctx.request();
+        if (request.version() == HttpVersion.HTTP_2) {
+            request.handler(ignored -> {
+            });
+            request.resume();
+            ctx.end(message);
+            return;
+        }
+        ctx.response().putHeader("Connection", "close");
+        ctx.end(message).onComplete(it -> request.connection().close());
+    }
+}
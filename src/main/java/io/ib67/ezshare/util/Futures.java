@@ -0,0 +1,75 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public final class Futures {
+    private Futures() {
+    }
+
+    /**
+     * Applies {@code action} to every item with at most {@code concurrency} of them in flight.
+     * Failures of single items don't stop the others.
+     *
+     * @return a future completed with the count of failed items once all of them are done.
+     */
+    public static <T> Future<Integer> forEachBounded(List<T> items, int concurrency, Function<T, Future<?>> action) {
+        if (items.isEmpty()) return Future.succeededFuture(0);
+        var promise = Promise.<Integer>promise();
+        var next = new AtomicInteger();
+        var done = new AtomicInteger();
+        var failed = new AtomicInteger();
+        Runnable[] worker = new Runnable[1];
+        worker[0] = () -> {
+            var i = next.getAndIncrement();
+            if (i >= items.size()) return;
+            Future<?> result;
+            try {
+                result = action.apply(items.get(i));
+            } catch (Throwable t) {
+                result = Future.failedFuture(t);
+            }
+            result.onComplete(ar -> {
+                if (ar.failed()) failed.incrementAndGet();
+                if (done.incrementAndGet() == items.size()) {
+                    promise.complete(failed.get());
+                } else {
+                    worker[0].run();
+                }
+            });
+        };
+        for (int i = 0; i < Math.min(Math.max(concurrency, 1), items.size()); i++) {
+            worker[0].run();
+        }
+        return promise.future();
+    }
+}
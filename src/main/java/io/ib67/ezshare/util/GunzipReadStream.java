@@ -0,0 +1,111 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.EOFException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip content passing through.
+ * Only single-member streams without optional header fields are understood, which is what {@link GzipReadStream} writes.
+ */
+public class GunzipReadStream extends TransformReadStream {
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] window = new byte[8192];
+    private final Buffer header = Buffer.buffer(HEADER_SIZE);
+    private final Buffer trailer = Buffer.buffer(TRAILER_SIZE);
+
+    public GunzipReadStream(ReadStream<Buffer> source) {
+        super(source);
+    }
+
+    @Override
+    protected Buffer transform(Buffer chunk) throws Exception {
+        var bytes = chunk.getBytes();
+        var offset = 0;
+        if (header.length() < HEADER_SIZE) {
+            offset = Math.min(HEADER_SIZE - header.length(), bytes.length);
+            header.appendBytes(bytes, 0, offset);
+            if (header.length() < HEADER_SIZE) return null;
+            checkHeader();
+        }
+        if (inflater.finished()) {
+            trailer.appendBytes(bytes, offset, bytes.length - offset);
+            return null;
+        }
+        inflater.setInput(bytes, offset, bytes.length - offset);
+        var out = Buffer.buffer();
+        while (!inflater.finished() && !inflater.needsInput()) {
+            int n;
+            try {
+                n = inflater.inflate(window);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            crc.update(window, 0, n);
+            out.appendBytes(window, 0, n);
+        }
+        if (inflater.finished()) {
+            var remaining = inflater.getRemaining();
+            trailer.appendBytes(bytes, bytes.length - remaining, remaining);
+        }
+        return out;
+    }
+
+    private void checkHeader() throws ZipException {
+        if (header.getUnsignedByte(0) != 0x1f || header.getUnsignedByte(1) != 0x8b || header.getByte(2) != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (header.getByte(3) != 0) {
+            throw new ZipException("Unsupported gzip header flags");
+        }
+    }
+
+    @Override
+    protected Buffer finish() throws Exception {
+        try {
+            if (!inflater.finished() || trailer.length() < TRAILER_SIZE) {
+                throw new EOFException("Unexpected end of gzip stream");
+            }
+            if (trailer.getUnsignedIntLE(0) != crc.getValue() || trailer.getIntLE(4) != (int) inflater.getBytesWritten()) {
+                throw new ZipException("Corrupt gzip trailer");
+            }
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
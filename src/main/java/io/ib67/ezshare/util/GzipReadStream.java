@@ -0,0 +1,69 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the content passing through into the gzip format.
+ */
+public class GzipReadStream extends TransformReadStream {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final GZIPOutputStream gzip;
+
+    public GzipReadStream(ReadStream<Buffer> source) {
+        super(source);
+        try {
+            this.gzip = new GZIPOutputStream(out, 8192);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // ByteArrayOutputStream never throws.
+        }
+    }
+
+    @Override
+    protected Buffer transform(Buffer chunk) throws IOException {
+        gzip.write(chunk.getBytes());
+        return drain();
+    }
+
+    @Override
+    protected Buffer finish() throws IOException {
+        gzip.close();
+        return drain();
+    }
+
+    private Buffer drain() {
+        if (out.size() == 0) return null;
+        var buffer = Buffer.buffer(out.toByteArray());
+        out.reset();
+        return buffer;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Escapes UTF-8 text passing through for embedding into HTML.
+ * The escaped characters are all ASCII, which never occur inside a multibyte sequence, so chunks can be escaped independently.
+ */
+public class HtmlEscapeReadStream extends TransformReadStream {
+    public HtmlEscapeReadStream(ReadStream<Buffer> source) {
+        super(source);
+    }
+
+    @Override
+    protected Buffer transform(Buffer chunk) {
+        var length = chunk.length();
+        var i = 0;
+        while (i < length && escape(chunk.getByte(i)) == null) i++;
+        if (i == length) return chunk; // nothing to escape, which is the common case.
+        var out = Buffer.buffer(length + 64);
+        var start = 0;
+        for (; i < length; i++) {
+            var replacement = escape(chunk.getByte(i));
+            if (replacement == null) continue;
+            out.appendBuffer(chunk, start, i - start).appendString(replacement);
+            start = i + 1;
+        }
+        return out.appendBuffer(chunk, start, length - start);
+    }
+
+    private static String escape(byte b) {
+        return switch (b) {
+            case '&' -> "&amp;";
+            case '<' -> "&lt;";
+            case '>' -> "&gt;";
+            case '"' -> "&quot;";
+            case '\'' -> "&#39;";
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Helpers for the Range / If-Range headers, see RFC 7233.
+ */
+public final class HttpRanges {
+    private static final int MAX_RANGES = 16;
+    private static final String UNIT = "bytes=";
+
+    private HttpRanges() {
+    }
+
+    /**
+     * @return null if the header should be ignored (absent, malformed or too many ranges) and the full content is served,
+     * an empty list if none of the ranges is satisfiable, or the merged ranges in ascending order.
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, UNIT, 0, UNIT.length())) {
+            return null;
+        }
+        var specs = header.substring(UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        var ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            var dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long start, end;
+            try {
+                if (dash == 0) {
+                    // suffix: last N bytes
+                    var suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        var last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < start) return null; // "5-2" is invalid, ignore the header.
+                        end = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0) return null;
+            if (start >= length) continue; // unsatisfiable
+            ranges.add(new ByteRange(start, end));
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        ranges.sort(Comparator.comparingLong(ByteRange::start));
+        var merged = new ArrayList<ByteRange>(ranges.size());
+        var current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            var next = ranges.get(i);
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * @return true if the representation is unchanged and the Range header should be honored.
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, ZonedDateTime lastModified) {
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag); // strong comparison
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        try {
+            var date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return date.toEpochSecond() == lastModified.toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    public static String httpDate(ZonedDateTime time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(time.withZoneSameInstant(ZoneOffset.UTC));
+    }
+
+    public record ByteRange(long start, long end /* inclusive */) {
+        public long length() {
+            return end - start + 1;
+        }
+
+        public String contentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+}
@@ -25,14 +25,35 @@
 
 package io.ib67.ezshare.util;
 
+import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class RandomHelper {
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
     public static String randomString() {
-        var buf = new byte[6];
-        for (int i = 0; i < 6; i++) {
-            buf[i] = (byte) ThreadLocalRandom.current().nextInt(97, 122);
+        return randomString(6);
+    }
+
+    /**
+     * Not unique, see {@link io.ib67.ezshare.id.IdAllocator} for record ids.
+     */
+    public static String randomString(int length) {
+        var buf = new byte[length];
+        for (int i = 0; i < length; i++) {
+            buf[i] = (byte) ThreadLocalRandom.current().nextInt('a', 'z' + 1);
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Unguessable, for strings which grant access to something like an upload session.
+     */
+    public static String randomToken(int length) {
+        var buf = new byte[length];
+        for (int i = 0; i < length; i++) {
+            buf[i] = (byte) ('a' + SECURE_RANDOM.nextInt(26));
         }
         return new String(buf);
     }
@@ -0,0 +1,61 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Counts the bytes passing through and fails with {@link LimitExceededException} as soon as the limit is crossed.
+ */
+public class SizeLimitedReadStream extends TransformReadStream {
+    private final long limit;
+    private long bytesRead;
+
+    public SizeLimitedReadStream(ReadStream<Buffer> source, long limit) {
+        super(source);
+        this.limit = limit;
+    }
+
+    @Override
+    protected Buffer transform(Buffer chunk) {
+        bytesRead += chunk.length();
+        if (bytesRead > limit) {
+            throw new LimitExceededException(limit);
+        }
+        return chunk;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public static class LimitExceededException extends RuntimeException {
+        public LimitExceededException(long limit) {
+            super("The content is larger than " + limit + " bytes", null, false, false);
+        }
+    }
+}
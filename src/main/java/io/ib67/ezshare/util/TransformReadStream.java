@@ -0,0 +1,136 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.util;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A {@link ReadStream} which rewrites every chunk of its source before handing it over.
+ * Flow control (pause/resume/fetch) is delegated to the source, so backpressure of the consumer is preserved.
+ * An exception thrown from {@link #transform(Buffer)} or {@link #finish()} fails the stream and the remaining input is discarded.
+ */
+public abstract class TransformReadStream implements ReadStream<Buffer> {
+    protected final ReadStream<Buffer> source;
+    private Handler<Buffer> handler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<Void> endHandler;
+    private boolean failed;
+
+    protected TransformReadStream(ReadStream<Buffer> source) {
+        this.source = source;
+        source.exceptionHandler(this::fail);
+        source.endHandler(this::handleEnd);
+    }
+
+    /**
+     * @return the buffer to emit, or null if there is nothing to emit for now.
+     */
+    protected abstract Buffer transform(Buffer chunk) throws Exception;
+
+    /**
+     * Called once the source has ended.
+     *
+     * @return the trailing buffer to emit, or null.
+     */
+    protected Buffer finish() throws Exception {
+        return null;
+    }
+
+    private void handleData(Buffer chunk) {
+        if (failed) return;
+        try {
+            emit(transform(chunk));
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void handleEnd(Void v) {
+        if (failed) return;
+        try {
+            emit(finish());
+        } catch (Throwable t) {
+            fail(t);
+            return;
+        }
+        var h = endHandler;
+        if (h != null) h.handle(null);
+    }
+
+    private void emit(Buffer buffer) {
+        var h = handler;
+        if (buffer != null && buffer.length() != 0 && h != null) {
+            h.handle(buffer);
+        }
+    }
+
+    protected void fail(Throwable t) {
+        if (failed) return;
+        failed = true;
+        source.resume(); // drain the rest.
+        var h = exceptionHandler;
+        if (h != null) h.handle(t);
+    }
+
+    @Override
+    public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+        this.handler = handler;
+        source.handler(handler == null ? null : this::handleData);
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> pause() {
+        source.pause();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> resume() {
+        source.resume();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> fetch(long amount) {
+        source.fetch(amount);
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+}
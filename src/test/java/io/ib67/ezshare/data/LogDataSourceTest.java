@@ -0,0 +1,225 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.data.records.URLRecord;
+import io.vertx.core.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogDataSourceTest {
+    private static final LocalDateTime BASE = LocalDateTime.of(2022, 8, 1, 12, 0);
+    // big enough that removing most of them leaves a chunk of dead bytes to compact.
+    private static final String LONG_NAME = "n".repeat(64 * 1024);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRecordsAfterReopen() throws IOException {
+        var source = open();
+        var files = List.of(file("a", 0, "a.txt"), file("b", 1, "b.txt"), file("c", 2, "c.txt"));
+        join(source.addFileRecords(files));
+        join(source.addUrlRecord(new URLRecord("u", BASE, "https://example.com", "127.0.0.1")));
+        join(source.removeFileRecord(files.get(1)));
+        assertTrue(join(source.updateFileLocation(files.get(2), "s3", "c-in-s3", "gzip")));
+        var range = join(source.reserveSequence("files", 10));
+        source.close();
+
+        var reopened = open();
+        assertEquals(files.get(0), fetchFile(reopened, "a"));
+        assertNull(fetchFile(reopened, "b"));
+        var moved = fetchFile(reopened, "c");
+        assertEquals("s3", moved.storageType());
+        assertEquals("c-in-s3", moved.fileIdentifier());
+        assertEquals("gzip", moved.encoding());
+        assertEquals(List.of("a", "c"), ids(join(reopened.fetchFiles(null, 10))));
+        assertEquals(List.of("a"), ids(join(reopened.fetchFilesCreatedBefore(BASE.plusSeconds(1), 10))));
+        assertEquals(1, join(reopened.fetchURLs(null, 10)).size());
+        var next = join(reopened.reserveSequence("files", 10));
+        assertEquals(range.end(), next.start());
+        assertEquals(range.seed(), next.seed());
+        reopened.close();
+    }
+
+    @Test
+    void compactsRemovedRecords() throws IOException {
+        var source = open();
+        var files = new ArrayList<FileRecord>();
+        for (int i = 0; i < 300; i++) files.add(file("f" + i, i, LONG_NAME));
+        join(source.addFileRecords(files));
+        join(source.removeFileRecords(ids(files.subList(0, 280))));
+        var before = Files.size(directory.resolve("records.log"));
+
+        source.compactIfNeeded();
+        assertTrue(Files.size(directory.resolve("records.log")) < before, "the log was not compacted");
+        assertFalse(Files.exists(directory.resolve("records.log.compact")));
+        var live = files.subList(280, 300);
+        assertEquals(ids(live), ids(join(source.fetchFiles(null, 100))));
+        // the compacted log takes appends like the old one.
+        join(source.addFileRecord(file("after", 1000, "after.txt")));
+        source.close();
+
+        var reopened = open();
+        var expected = new ArrayList<>(ids(live));
+        expected.add(0, "after");
+        assertEquals(expected, ids(join(reopened.fetchFiles(null, 100))));
+        assertEquals(live.get(0), fetchFile(reopened, live.get(0).id()));
+        reopened.close();
+    }
+
+    @Test
+    void keepsWritesMadeDuringCompaction() throws Exception {
+        var source = open();
+        var files = new ArrayList<FileRecord>();
+        for (int i = 0; i < 300; i++) files.add(file(String.format("f%04d", i), i, LONG_NAME));
+        join(source.addFileRecords(files));
+        join(source.removeFileRecords(ids(files.subList(0, 280))));
+
+        var failure = new AtomicReference<Throwable>();
+        var compaction = new Thread(() -> {
+            try {
+                source.compactIfNeeded();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        compaction.start();
+        var expected = new ArrayList<>(files.subList(280, 300));
+        var i = 0;
+        do {
+            var added = file(String.format("g%06d", i), 1000 + i, "g.txt");
+            join(source.addFileRecord(added));
+            expected.add(added);
+            if (i % 3 == 0) {
+                // removes a record which was copied, or one added meanwhile.
+                join(source.removeFileRecord(expected.remove(i % 2 == 0 ? 0 : expected.size() - 1)));
+            }
+            i++;
+        } while (compaction.isAlive());
+        compaction.join();
+        assertNull(failure.get());
+        expected.sort(Comparator.comparing(FileRecord::id));
+        assertEquals(ids(expected), ids(join(source.fetchFiles(null, Integer.MAX_VALUE))));
+        source.close();
+
+        var reopened = open();
+        assertEquals(ids(expected), ids(join(reopened.fetchFiles(null, Integer.MAX_VALUE))));
+        assertTrue(expected.equals(join(reopened.fetchFiles(null, Integer.MAX_VALUE))), "records differ after reopening");
+        reopened.close();
+    }
+
+    @Test
+    void pagesFilesCreatedBefore() throws IOException {
+        var source = open();
+        var files = new ArrayList<FileRecord>();
+        // three files for every second, so that pages end in the middle of a second.
+        for (int i = 0; i < 30; i++) files.add(file(String.format("f%02d", 29 - i), i / 3, "f.txt"));
+        join(source.addFileRecords(files));
+        var expected = files.stream()
+                .filter(it -> it.time().isBefore(BASE.plusSeconds(8)))
+                .sorted(Comparator.comparing(FileRecord::time).thenComparing(FileRecord::id))
+                .toList();
+
+        var paged = new ArrayList<FileRecord>();
+        FileRecord after = null;
+        while (true) {
+            var page = join(source.fetchFilesCreatedBefore(BASE.plusSeconds(7), after, 4));
+            paged.addAll(page);
+            if (page.size() < 4) break;
+            after = page.get(page.size() - 1);
+        }
+        assertEquals(ids(expected), ids(paged));
+        source.close();
+    }
+
+    @Test
+    void dropsRecordTornInTheMiddle() throws IOException {
+        var source = open();
+        join(source.addFileRecord(file("a", 0, "a.txt")));
+        join(source.addFileRecord(file("b", 1, "b.txt")));
+        source.close();
+        var path = directory.resolve("records.log");
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            // "a" and half of "b".
+            file.setLength(RecordLog.sizeOf(payloadSize(path)) + 10);
+        }
+
+        var reopened = open();
+        assertEquals(List.of("a"), ids(join(reopened.fetchFiles(null, 10))));
+        join(reopened.addFileRecord(file("c", 2, "c.txt")));
+        reopened.close();
+        var again = open();
+        assertEquals(List.of("a", "c"), ids(join(again.fetchFiles(null, 10))));
+        again.close();
+    }
+
+    private LogDataSource open() throws IOException {
+        var source = new LogDataSource(null, directory);
+        source.open();
+        return source;
+    }
+
+    private static int payloadSize(Path log) throws IOException {
+        try (var file = new RandomAccessFile(log.toFile(), "r")) {
+            return file.readInt();
+        }
+    }
+
+    private static FileRecord file(String id, int second, String name) {
+        return new FileRecord(id, BASE.plusSeconds(second), "files/" + id, 42, name, "text/plain", "127.0.0.1", "local", "identity");
+    }
+
+    private static FileRecord fetchFile(LogDataSource source, String id) {
+        var result = new AtomicReference<FileRecord>();
+        source.fetchFileById(id, future -> result.set(future.result()));
+        return result.get();
+    }
+
+    private static List<String> ids(List<FileRecord> records) {
+        return records.stream().map(FileRecord::id).toList();
+    }
+
+    private static <T> T join(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+}
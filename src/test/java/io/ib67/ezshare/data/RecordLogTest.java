@@ -0,0 +1,125 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RecordLogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysWhatWasAppended() throws IOException {
+        var path = directory.resolve("records.log");
+        var offsets = new ArrayList<Long>();
+        try (var log = RecordLog.open(path)) {
+            log.replay((offset, type, payload) -> {
+            });
+            for (int i = 0; i < 100; i++) offsets.add(log.append((byte) (i % 5 + 1), ("entry " + i).getBytes(StandardCharsets.UTF_8)));
+            log.force();
+        }
+        try (var log = RecordLog.open(path)) {
+            var entries = replay(log);
+            assertEquals(100, entries.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(new Entry(offsets.get(i), (byte) (i % 5 + 1), "entry " + i), entries.get(i));
+            }
+            assertEquals("entry 42", string(log.payloadAt(offsets.get(42))));
+            // appends go on after the last entry.
+            var next = log.append((byte) 1, "more".getBytes(StandardCharsets.UTF_8));
+            assertEquals(offsets.get(99) + RecordLog.sizeOf("entry 99".length()), next);
+        }
+    }
+
+    @Test
+    void startsNewChunkWhenEntryDoesNotFit() throws IOException {
+        var path = directory.resolve("records.log");
+        var big = new byte[RecordLog.CHUNK_SIZE / 2];
+        try (var log = RecordLog.open(path)) {
+            log.replay((offset, type, payload) -> {
+            });
+            assertEquals(0, log.append((byte) 1, big));
+            assertEquals(RecordLog.CHUNK_SIZE, log.append((byte) 2, big));
+            var scanned = new ArrayList<Byte>();
+            log.scan(0, log.size(), (offset, type, payload) -> scanned.add(type));
+            assertEquals(List.of((byte) 1, (byte) 2), scanned);
+        }
+        try (var log = RecordLog.open(path)) {
+            assertEquals(2, replay(log).size());
+            assertEquals(RecordLog.CHUNK_SIZE + RecordLog.sizeOf(big.length), log.size());
+        }
+    }
+
+    @Test
+    void discardsEntryTornInTheMiddle() throws IOException {
+        var path = directory.resolve("records.log");
+        long last;
+        try (var log = RecordLog.open(path)) {
+            log.replay((offset, type, payload) -> {
+            });
+            log.append((byte) 1, "first".getBytes(StandardCharsets.UTF_8));
+            log.append((byte) 1, "second".getBytes(StandardCharsets.UTF_8));
+            last = log.append((byte) 1, "the one being written when the power went out".getBytes(StandardCharsets.UTF_8));
+            log.force();
+        }
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(last + 20);
+        }
+        try (var log = RecordLog.open(path)) {
+            var entries = replay(log);
+            assertEquals(List.of("first", "second"), entries.stream().map(Entry::payload).toList());
+            assertEquals(last, log.size());
+            assertEquals(last, log.append((byte) 1, "third".getBytes(StandardCharsets.UTF_8)));
+        }
+        try (var log = RecordLog.open(path)) {
+            assertEquals(List.of("first", "second", "third"), replay(log).stream().map(Entry::payload).toList());
+        }
+    }
+
+    private static List<Entry> replay(RecordLog log) {
+        var entries = new ArrayList<Entry>();
+        log.replay((offset, type, payload) -> entries.add(new Entry(offset, type, string(payload))));
+        return entries;
+    }
+
+    private static String string(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    private record Entry(long offset, byte type, String payload) {
+    }
+}
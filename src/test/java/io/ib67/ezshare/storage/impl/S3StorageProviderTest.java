@@ -0,0 +1,130 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage.impl;
+
+import com.typesafe.config.ConfigFactory;
+import io.ib67.ezshare.config.AppConfig;
+import io.ib67.ezshare.data.records.FileRecord;
+import io.ib67.ezshare.storage.s3.FakeS3Server;
+import io.ib67.ezshare.util.ContentEncoding;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3StorageProviderTest {
+    private static final String REGION = "us-east-1";
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String BUCKET = "ezshare";
+
+    private static Vertx vertx;
+    private static FakeS3Server server;
+    private static S3StorageProvider provider;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        vertx = Vertx.vertx();
+        server = new FakeS3Server(REGION, ACCESS_KEY, SECRET_KEY, BUCKET);
+        var endpoint = "http://127.0.0.1:" + await(server.start(vertx, 0));
+        var config = AppConfig.loadConfig(ConfigFactory.parseMap(Map.of(
+                "s3-endpoint", endpoint, "s3-region", REGION, "s3-bucket", BUCKET,
+                "s3-access-key", ACCESS_KEY, "s3-secret-key", SECRET_KEY, "s3-part-size", 5)));
+        provider = new S3StorageProvider(vertx, config);
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        await(server.close());
+        await(vertx.close());
+    }
+
+    @Test
+    void storesAndReads() throws Exception {
+        var bytes = new byte[FakeS3Server.MIN_PART_SIZE * 2 + 7];
+        new Random(42).nextBytes(bytes);
+        var content = Buffer.buffer(bytes);
+        var file = directory.resolve("upload.bin");
+        Files.write(file, bytes);
+        var source = await(vertx.fileSystem().open(file.toString(), new OpenOptions().setRead(true)));
+        var key = await(provider.store(source, content.length()));
+        assertTrue(content.equals(server.objects().get(key)), "stored content differs");
+
+        var read = await(provider.read(record(key)));
+        var received = Buffer.buffer();
+        var done = Promise.<Void>promise();
+        read.handler(received::appendBuffer).exceptionHandler(done::tryFail).endHandler(done::tryComplete).resume();
+        await(done.future());
+        assertTrue(content.equals(received), "read content differs");
+    }
+
+    @Test
+    void deletesInBatches() throws Exception {
+        var records = IntStream.range(0, 1001).mapToObj(i -> record("batch-" + i)).toList();
+        for (FileRecord fr : records) {
+            server.objects().put(fr.fileIdentifier(), Buffer.buffer("x"));
+        }
+        server.lockedKeys().add("batch-1000");
+        try {
+            var failed = await(provider.deleteAll(records, 1));
+            assertEquals(List.of("batch-1000"), failed.stream().map(FileRecord::fileIdentifier).toList());
+            assertEquals(List.of("batch-1000"), server.objects().keySet().stream().filter(it -> it.startsWith("batch-")).toList());
+            assertThrows(ExecutionException.class, () -> await(provider.delete(record("batch-1000"))), "locked object deleted");
+        } finally {
+            server.lockedKeys().clear();
+        }
+    }
+
+    private static FileRecord record(String key) {
+        return new FileRecord("test", LocalDateTime.now(), key, 0, "test.bin", "application/octet-stream", "127.0.0.1", "s3", ContentEncoding.IDENTITY);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage.s3;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import lombok.SneakyThrows;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory stand-in for an S3 bucket, path-style, with the calls {@link S3Client} makes.
+ * <p>
+ * It checks requests the way S3 does: header and presigned signatures (with its own SigV4 code, not {@link S3Signer}),
+ * the payload hash, presign expiry, Content-MD5 of DeleteObjects, ETags and the 5MiB minimum size of parts.
+ * Keys in {@link #lockedKeys()} can't be deleted, and {@link #failNextComplete()} makes the next
+ * CompleteMultipartUpload fail after a 200 status line, as S3 may do.
+ */
+public final class FakeS3Server {
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final Duration MAX_SKEW = Duration.ofMinutes(15);
+    private static final Pattern AUTHORIZATION = Pattern.compile(
+            "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/s3/aws4_request, SignedHeaders=([^,]+), Signature=([0-9a-f]{64})");
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>");
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>(.*?)</ETag>");
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final String bucket;
+    private final Map<String, Buffer> objects = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Set<String> lockedKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private volatile boolean failNextComplete;
+    private HttpServer server;
+
+    private record Upload(String key, Map<Integer, Buffer> parts) {
+    }
+
+    public FakeS3Server(String region, String accessKey, String secretKey, String bucket) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.bucket = bucket;
+    }
+
+    /**
+     * @return the port it listens on, {@code port} unless that is 0.
+     */
+    public Future<Integer> start(Vertx vertx, int port) {
+        server = vertx.createHttpServer().requestHandler(req -> req.body()
+                .onSuccess(body -> handle(req, body))
+                .onFailure(t -> req.response().setStatusCode(400).end()));
+        return server.listen(port, "127.0.0.1").map(HttpServer::actualPort);
+    }
+
+    public Future<Void> close() {
+        return server.close();
+    }
+
+    public Map<String, Buffer> objects() {
+        return objects;
+    }
+
+    /**
+     * @return the multipart uploads which are neither completed nor aborted.
+     */
+    public int pendingUploads() {
+        return uploads.size();
+    }
+
+    public Set<String> lockedKeys() {
+        return lockedKeys;
+    }
+
+    /**
+     * @return how many requests were refused for their signature, date or checksum.
+     */
+    public int rejected() {
+        return rejected.get();
+    }
+
+    public void failNextComplete() {
+        failNextComplete = true;
+    }
+
+    private void handle(HttpServerRequest req, Buffer body) {
+        var query = parseQuery(req.query());
+        var denied = authenticate(req, query, body);
+        if (denied != null) {
+            rejected.incrementAndGet();
+            error(req, 403, denied);
+            return;
+        }
+        var path = req.path();
+        var prefix = "/" + bucket;
+        if (!path.equals(prefix) && !path.startsWith(prefix + "/")) {
+            error(req, 404, "NoSuchBucket");
+            return;
+        }
+        var key = path.length() > prefix.length() + 1 ? decodePath(path.substring(prefix.length() + 1)) : null;
+        var method = req.method().name();
+        if (key == null) {
+            if (method.equals("POST") && query.containsKey("delete")) {
+                deleteObjects(req, body);
+            } else {
+                error(req, 400, "NotImplemented");
+            }
+            return;
+        }
+        switch (method) {
+            case "PUT" -> {
+                if (query.containsKey("uploadId")) {
+                    uploadPart(req, key, query, body);
+                } else {
+                    objects.put(key, body);
+                    req.response().putHeader("ETag", etag(body)).end();
+                }
+            }
+            case "POST" -> {
+                if (query.containsKey("uploads")) {
+                    var id = "upload-" + uploadIds.incrementAndGet();
+                    uploads.put(id, new Upload(key, new ConcurrentHashMap<>()));
+                    xml(req, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + escape(key)
+                            + "</Key><UploadId>" + id + "</UploadId></InitiateMultipartUploadResult>");
+                } else if (query.containsKey("uploadId")) {
+                    completeUpload(req, key, query.get("uploadId"), body.toString());
+                } else {
+                    error(req, 400, "NotImplemented");
+                }
+            }
+            case "DELETE" -> {
+                var upload = query.containsKey("uploadId") ? uploads.remove(query.get("uploadId")) : null;
+                if (query.containsKey("uploadId") && upload == null) {
+                    error(req, 404, "NoSuchUpload");
+                    return;
+                }
+                if (upload == null) objects.remove(key);
+                req.response().setStatusCode(204).end();
+            }
+            case "GET" -> getObject(req, key, query);
+            default -> error(req, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void uploadPart(HttpServerRequest req, String key, Map<String, String> query, Buffer body) {
+        var upload = uploads.get(query.get("uploadId"));
+        if (upload == null || !upload.key().equals(key)) {
+            error(req, 404, "NoSuchUpload");
+            return;
+        }
+        upload.parts().put(Integer.parseInt(query.get("partNumber")), body);
+        req.response().putHeader("ETag", etag(body)).end();
+    }
+
+    private void completeUpload(HttpServerRequest req, String key, String uploadId, String xml) {
+        var upload = uploads.get(uploadId);
+        if (upload == null || !upload.key().equals(key)) {
+            error(req, 404, "NoSuchUpload");
+            return;
+        }
+        if (failNextComplete) {
+            failNextComplete = false;
+            xml(req, "<Error><Code>InternalError</Code><Message>We encountered an internal error.</Message></Error>");
+            return;
+        }
+        var content = Buffer.buffer();
+        var matcher = PART.matcher(xml);
+        var expected = 1;
+        while (matcher.find()) {
+            var number = Integer.parseInt(matcher.group(1));
+            var part = upload.parts().get(number);
+            if (number != expected++ || part == null || !etag(part).equals(unescape(matcher.group(2)))) {
+                error(req, 400, "InvalidPart");
+                return;
+            }
+            // all parts but the last one.
+            if (number > 1 && upload.parts().get(number - 1).length() < MIN_PART_SIZE) {
+                error(req, 400, "EntityTooSmall");
+                return;
+            }
+            content.appendBuffer(part);
+        }
+        if (expected == 1) {
+            error(req, 400, "MalformedXML");
+            return;
+        }
+        uploads.remove(uploadId);
+        objects.put(key, content);
+        xml(req, "<CompleteMultipartUploadResult><Key>" + escape(key) + "</Key><ETag>" + escape(etag(content))
+                + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void deleteObjects(HttpServerRequest req, Buffer body) {
+        var md5 = req.getHeader("Content-MD5");
+        if (md5 == null) {
+            error(req, 400, "MissingContentMD5");
+            return;
+        }
+        if (!md5.equals(Base64.getEncoder().encodeToString(digest("MD5", body.getBytes())))) {
+            rejected.incrementAndGet();
+            error(req, 400, "BadDigest");
+            return;
+        }
+        var result = new StringBuilder("<DeleteResult>");
+        var quiet = body.toString().contains("<Quiet>true</Quiet>");
+        var matcher = KEY.matcher(body.toString());
+        var count = 0;
+        while (matcher.find()) {
+            var escaped = matcher.group(1);
+            var key = unescape(escaped);
+            count++;
+            if (lockedKeys.contains(key)) {
+                result.append("<Error><Key>").append(escaped).append("</Key><Code>AccessDenied</Code><Message>Access Denied</Message></Error>");
+            } else {
+                objects.remove(key);
+                if (!quiet) result.append("<Deleted><Key>").append(escaped).append("</Key></Deleted>");
+            }
+        }
+        if (count > 1000) {
+            error(req, 400, "MalformedXML");
+            return;
+        }
+        xml(req, result.append("</DeleteResult>").toString());
+    }
+
+    private void getObject(HttpServerRequest req, String key, Map<String, String> query) {
+        var content = objects.get(key);
+        if (content == null) {
+            error(req, 404, "NoSuchKey");
+            return;
+        }
+        var response = req.response().putHeader("ETag", etag(content)).putHeader("Accept-Ranges", "bytes");
+        if (query.containsKey("response-content-type")) response.putHeader("Content-Type", query.get("response-content-type"));
+        if (query.containsKey("response-content-disposition")) response.putHeader("Content-Disposition", query.get("response-content-disposition"));
+        if (query.containsKey("response-content-encoding")) response.putHeader("Content-Encoding", query.get("response-content-encoding"));
+        var range = req.getHeader("Range");
+        if (range != null && range.matches("bytes=\\d+-\\d*")) {
+            var bounds = range.substring(6).split("-", -1);
+            var start = Integer.parseInt(bounds[0]);
+            var end = bounds[1].isEmpty() ? content.length() - 1 : Math.min(content.length() - 1, Integer.parseInt(bounds[1]));
+            if (start >= content.length()) {
+                response.putHeader("Content-Range", "bytes */" + content.length());
+                error(req, 416, "InvalidRange");
+                return;
+            }
+            response.setStatusCode(206).putHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length())
+                    .end(content.getBuffer(start, end + 1));
+            return;
+        }
+        response.end(content);
+    }
+
+    /**
+     * @return the error code to refuse the request with, or null if it is signed properly.
+     */
+    private String authenticate(HttpServerRequest req, Map<String, String> query, Buffer body) {
+        var host = req.getHeader("Host");
+        if (query.containsKey("X-Amz-Signature")) {
+            var timestamp = query.get("X-Amz-Date");
+            var credential = accessKey + "/" + timestamp.substring(0, 8) + "/" + region + "/s3/aws4_request";
+            if (!"AWS4-HMAC-SHA256".equals(query.get("X-Amz-Algorithm")) || !credential.equals(query.get("X-Amz-Credential"))
+                    || !"host".equals(query.get("X-Amz-SignedHeaders"))) {
+                return "AuthorizationQueryParametersError";
+            }
+            var expires = Instant.from(TIMESTAMP.parse(timestamp)).plusSeconds(Long.parseLong(query.get("X-Amz-Expires")));
+            if (Instant.now().isAfter(expires)) return "AccessDenied";
+            var params = new TreeMap<>(query);
+            params.remove("X-Amz-Signature");
+            var canonical = req.method().name() + "\n" + req.path() + "\n" + canonicalQuery(params) + "\n"
+                    + "host:" + host + "\n\nhost\nUNSIGNED-PAYLOAD";
+            return signature(timestamp, canonical).equals(query.get("X-Amz-Signature")) ? null : "SignatureDoesNotMatch";
+        }
+        var authorization = AUTHORIZATION.matcher(String.valueOf(req.getHeader("Authorization")));
+        if (!authorization.matches()) return "AccessDenied";
+        if (!authorization.group(1).equals(accessKey)) return "InvalidAccessKeyId";
+        var timestamp = req.getHeader("x-amz-date");
+        if (timestamp == null || !timestamp.startsWith(authorization.group(2)) || !authorization.group(3).equals(region)) {
+            return "AuthorizationHeaderMalformed";
+        }
+        if (Duration.between(Instant.from(TIMESTAMP.parse(timestamp)), Instant.now()).abs().compareTo(MAX_SKEW) > 0) {
+            return "RequestTimeTooSkewed";
+        }
+        var payloadHash = req.getHeader("x-amz-content-sha256");
+        if (payloadHash == null) return "InvalidRequest";
+        if (!payloadHash.equals("UNSIGNED-PAYLOAD") && !payloadHash.equals(HEX.formatHex(digest("SHA-256", body.getBytes())))) {
+            return "XAmzContentSHA256Mismatch";
+        }
+        var signedHeaders = List.of(authorization.group(4).split(";"));
+        if (!signedHeaders.contains("host") || !signedHeaders.contains("x-amz-date")) return "AccessDenied";
+        var canonicalHeaders = new StringBuilder();
+        for (String name : signedHeaders) {
+            var value = req.getHeader(name);
+            if (value == null) return "AccessDenied";
+            canonicalHeaders.append(name).append(':').append(value.trim()).append('\n');
+        }
+        var canonical = req.method().name() + "\n" + req.path() + "\n" + canonicalQuery(query) + "\n"
+                + canonicalHeaders + "\n" + authorization.group(4) + "\n" + payloadHash;
+        return signature(timestamp, canonical).equals(authorization.group(5)) ? null : "SignatureDoesNotMatch";
+    }
+
+    private String signature(String timestamp, String canonicalRequest) {
+        var date = timestamp.substring(0, 8);
+        var stringToSign = "AWS4-HMAC-SHA256\n" + timestamp + "\n" + date + "/" + region + "/s3/aws4_request\n"
+                + HEX.formatHex(digest("SHA-256", canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        var key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+        for (String part : List.of(date, region, "s3", "aws4_request", stringToSign)) {
+            key = hmac(key, part);
+        }
+        return HEX.formatHex(key);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        var params = new TreeMap<String, String>();
+        if (query == null || query.isEmpty()) return params;
+        for (String pair : query.split("&")) {
+            var separator = pair.indexOf('=');
+            var name = separator < 0 ? pair : pair.substring(0, separator);
+            var value = separator < 0 ? "" : pair.substring(separator + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Percent-decoding only, a plus is a plus in paths.
+     */
+    private static String decodePath(String path) {
+        return URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    private static String canonicalQuery(Map<String, String> params) {
+        return params.entrySet().stream()
+                .map(it -> uriEncode(it.getKey()) + "=" + uriEncode(it.getValue()))
+                .sorted()
+                .collect(Collectors.joining("&"));
+    }
+
+    private static String uriEncode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String unescape(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static String etag(Buffer content) {
+        return "\"" + HEX.formatHex(digest("MD5", content.getBytes())) + "\"";
+    }
+
+    private static void xml(HttpServerRequest req, String body) {
+        req.response().putHeader("Content-Type", "application/xml").end(body);
+    }
+
+    private static void error(HttpServerRequest req, int status, String code) {
+        req.response().setStatusCode(status).putHeader("Content-Type", "application/xml")
+                .end("<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    @SneakyThrows
+    private static byte[] digest(String algorithm, byte[] content) {
+        return MessageDigest.getInstance(algorithm).digest(content);
+    }
+
+    @SneakyThrows
+    private static byte[] hmac(byte[] key, String data) {
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
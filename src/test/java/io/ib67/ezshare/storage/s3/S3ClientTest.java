@@ -0,0 +1,260 @@
+/*
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 iceBear67 and Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.ib67.ezshare.storage.s3;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link S3Client} and {@link MultipartUploadStream} against {@link FakeS3Server}: header and presigned
+ * signatures, multipart uploads and their failures, batch deletes with Content-MD5, and the parsing of the XML answers.
+ */
+class S3ClientTest {
+    private static final String REGION = "us-east-1";
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String BUCKET = "ezshare";
+    private static final String ODD_KEY = "dir/a b+c&d<\u00e9>~.txt";
+
+    private static Vertx vertx;
+    private static Context context;
+    private static FakeS3Server server;
+    private static String endpoint;
+    private static S3Client client;
+
+    private final Random random = new Random(42);
+    private int rejectedBefore;
+    private int expectedRejections;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        server = new FakeS3Server(REGION, ACCESS_KEY, SECRET_KEY, BUCKET);
+        endpoint = "http://127.0.0.1:" + await(server.start(vertx, 0));
+        client = new S3Client(vertx, endpoint, REGION, BUCKET, ACCESS_KEY, SECRET_KEY, true, 8);
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        await(server.close());
+        await(vertx.close());
+    }
+
+    @BeforeEach
+    void countRejections() {
+        rejectedBefore = server.rejected();
+    }
+
+    @AfterEach
+    void nothingElseWasRejected() {
+        assertEquals(expectedRejections, server.rejected() - rejectedBefore, "requests refused by the server");
+    }
+
+    @Test
+    void unescapesXmlText() {
+        assertEquals("a&b <c> \"d\"", S3Client.tag("<Error><Key>a&amp;b &lt;c&gt; &quot;d&quot;</Key></Error>", "Key"));
+        assertTrue(S3Client.tag("<Error><Code>x</Code></Error>", "Key").isEmpty(), "missing element");
+        assertEquals(ODD_KEY, S3Client.tag("<Key>" + S3Client.escape(ODD_KEY) + "</Key>", "Key"));
+    }
+
+    @Test
+    void putsAndGets() throws Exception {
+        var content = randomBuffer(1000);
+        await(client.putObject(ODD_KEY, content));
+        assertEquals(content, server.objects().get(ODD_KEY), "stored under " + server.objects().keySet());
+        var response = await(client.getObject(ODD_KEY, Map.of()).compose(Response::of));
+        assertEquals(200, response.status());
+        assertEquals(content, response.body());
+    }
+
+    @Test
+    void getsRanges() throws Exception {
+        var content = randomBuffer(1000);
+        await(client.putObject("ranged", content));
+        var response = await(client.getObject("ranged", Map.of("Range", "bytes=10-19")).compose(Response::of));
+        assertEquals(206, response.status());
+        assertEquals(content.getBuffer(10, 20), response.body());
+    }
+
+    @Test
+    void uploadsInParts() throws Exception {
+        var content = randomBuffer(2 * FakeS3Server.MIN_PART_SIZE + 12345);
+        var upload = new MultipartUploadStream(client, "multipart", FakeS3Server.MIN_PART_SIZE, 2);
+        await(onContext(() -> writeInChunks(upload, content).end()));
+        assertTrue(content.equals(server.objects().get("multipart")), "content differs");
+        assertEquals(0, server.pendingUploads(), "uploads left");
+    }
+
+    @Test
+    void uploadsSmallContentInASinglePut() throws Exception {
+        var content = randomBuffer(4096);
+        var upload = new MultipartUploadStream(client, "small", FakeS3Server.MIN_PART_SIZE, 2);
+        await(onContext(() -> writeInChunks(upload, content).end()));
+        assertEquals(content, server.objects().get("small"));
+    }
+
+    @Test
+    void abortDiscardsTheParts() throws Exception {
+        var upload = new MultipartUploadStream(client, "aborted", FakeS3Server.MIN_PART_SIZE, 2);
+        var content = randomBuffer(FakeS3Server.MIN_PART_SIZE + 1);
+        await(onContext(() -> writeInChunks(upload, content).abort()));
+        assertEquals(0, server.pendingUploads(), "uploads left");
+        assertFalse(server.objects().containsKey("aborted"), "object created");
+    }
+
+    @Test
+    void failsOnErrorAfterTheStatusLineOfComplete() throws Exception {
+        server.failNextComplete();
+        var upload = new MultipartUploadStream(client, "late", FakeS3Server.MIN_PART_SIZE, 2);
+        var content = randomBuffer(FakeS3Server.MIN_PART_SIZE + 1);
+        var failure = awaitFailure(onContext(() -> writeInChunks(upload, content).end()));
+        assertTrue(failure.contains("InternalError"), failure);
+        await(onContext(upload::abort));
+        assertEquals(0, server.pendingUploads(), "uploads left");
+    }
+
+    @Test
+    void presignsGets() throws Exception {
+        var content = randomBuffer(1000);
+        await(client.putObject(ODD_KEY, content));
+        var disposition = "attachment; filename=\"a b.txt\"; filename*=UTF-8''%C3%A9.txt";
+        var url = client.presignGet(ODD_KEY, Map.of("response-content-disposition", disposition, "response-content-type", "text/plain"),
+                Duration.ofMinutes(5));
+        var response = fetch(url);
+        assertEquals(200, response.status());
+        assertEquals(disposition, response.headers().get("Content-Disposition"));
+        assertEquals(content, response.body());
+    }
+
+    @Test
+    void refusesTamperedAndExpiredPresignedUrls() throws Exception {
+        await(client.putObject(ODD_KEY, randomBuffer(10)));
+        var url = client.presignGet(ODD_KEY, Map.of(), Duration.ofMinutes(5));
+        var last = url.charAt(url.length() - 1);
+        var tampered = fetch(url.substring(0, url.length() - 1) + (last == '0' ? '1' : '0'));
+        expectedRejections++;
+        assertEquals(403, tampered.status(), "tampered");
+        var expired = fetch(client.presignGet(ODD_KEY, Map.of(), Duration.ZERO));
+        expectedRejections++;
+        assertEquals(403, expired.status(), "expired");
+    }
+
+    @Test
+    void reportsKeysABatchDeleteFailedFor() throws Exception {
+        var keys = List.of("one", "two", ODD_KEY);
+        for (String key : keys) {
+            await(client.putObject(key, randomBuffer(10)));
+        }
+        server.lockedKeys().add(ODD_KEY);
+        try {
+            assertEquals(List.of(ODD_KEY), await(client.deleteObjects(keys)));
+            assertFalse(server.objects().containsKey("one") || server.objects().containsKey("two"), "left " + server.objects().keySet());
+        } finally {
+            server.lockedKeys().clear();
+        }
+    }
+
+    @Test
+    void refusesWrongSecret() throws Exception {
+        var stranger = new S3Client(vertx, endpoint, REGION, BUCKET, ACCESS_KEY, "not the secret", true, 1);
+        var failure = awaitFailure(stranger.putObject("intruder", randomBuffer(10)));
+        expectedRejections++;
+        assertTrue(failure.contains("403") && failure.contains("SignatureDoesNotMatch"), failure);
+        assertFalse(server.objects().containsKey("intruder"), "object created");
+    }
+
+    private Response fetch(String url) throws Exception {
+        return await(vertx.createHttpClient().request(new RequestOptions().setMethod(HttpMethod.GET).setAbsoluteURI(url))
+                .compose(HttpClientRequest::send)
+                .compose(Response::of));
+    }
+
+    /**
+     * A response read completely, the body has to be asked for before the event loop moves on.
+     */
+    private record Response(int status, MultiMap headers, Buffer body) {
+        static Future<Response> of(HttpClientResponse response) {
+            return response.body().map(body -> new Response(response.statusCode(), response.headers(), body));
+        }
+    }
+
+    private static MultipartUploadStream writeInChunks(MultipartUploadStream upload, Buffer content) {
+        for (int i = 0; i < content.length(); i += 64 * 1024) {
+            upload.write(content.getBuffer(i, Math.min(content.length(), i + 64 * 1024)));
+        }
+        return upload;
+    }
+
+    /**
+     * Runs {@code action} on an event loop, as {@link MultipartUploadStream} isn't thread-safe.
+     */
+    private static <T> Future<T> onContext(Supplier<Future<T>> action) {
+        var result = Promise.<T>promise();
+        context.runOnContext(ignored -> action.get().onComplete(result));
+        return result.future();
+    }
+
+    private Buffer randomBuffer(int size) {
+        var bytes = new byte[size];
+        random.nextBytes(bytes);
+        return Buffer.buffer(bytes);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    private static String awaitFailure(Future<?> future) {
+        return String.valueOf(assertThrows(ExecutionException.class, () -> await(future)).getCause().getMessage());
+    }
+}